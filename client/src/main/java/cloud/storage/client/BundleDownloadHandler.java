@@ -0,0 +1,189 @@
+package cloud.storage.client;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.BundleReader;
+import cloud.storage.nio.CommandHandler;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.nio.ResponseDispatcher;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Client side handler of BundleDownload commands.
+ * Downloads all the files of a folder on the server and its subfolders in a single request, see {@link BundleReader},
+ * and writes every file as its bytes arrive, so the bundle is never held in memory.
+ * Files are only created: the files which exist in the target folder already are skipped.
+ * A file which is not received completely, e.g. if it can't be written or the bundle is broken, is removed,
+ * so the next download of the folder creates it again.
+ */
+public class BundleDownloadHandler implements CommandHandler {
+    private static final Cmd CMD = Cmd.BUNDLE_DOWNLOAD;
+
+    @Override
+    public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
+        if (arguments.size() != 2) {
+            promise.setFailure(new RuntimeException("Wrong number of arguments.\n" +
+                    "You have to pass only path to folder on server and path to save folder to as arguments."));
+            return;
+        }
+        Path folder;
+        try {
+            folder = Path.of(arguments.get(1)).toAbsolutePath().normalize();
+            Files.createDirectories(folder);
+        } catch (InvalidPathException e) {
+            promise.setFailure(new RuntimeException("Invalid path passed. Please check the path and try again.", e));
+            return;
+        } catch (IOException e) {
+            promise.setFailure(new RuntimeException("Error occurred while creating a folder.", e));
+            return;
+        }
+        int requestId = ResponseDispatcher.get(context).register(new BundleSaver(folder));
+        context.writeAndFlush(new Packet(new Payload(requestId, CMD, arguments.get(0).getBytes(StandardCharsets.UTF_8))),
+                promise);
+    }
+
+    /**
+     * Writes the files of the bundle into the folder and prints the summary of the download.
+     */
+    private static class BundleSaver implements PayloadHandler, BundleReader.Listener {
+        private final Path folder;
+        private final BundleReader reader = new BundleReader(this);
+        private final StringJoiner failures = new StringJoiner(System.lineSeparator());
+        private String entryPath;
+        private Path filePath;
+        private FileChannel fileChannel;
+        private long position;
+        private long savedFiles;
+        private long savedBytes;
+        private long skippedFiles;
+
+        private BundleSaver(Path folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        public void handle(ChannelHandlerContext context, Payload payload) {
+            try {
+                if (payload.cmd == Cmd.BUNDLE_DATA) {
+                    try {
+                        reader.read(payload.getBody());
+                    } catch (IllegalArgumentException e) {
+                        ResponseDispatcher.get(context).unregister(payload.requestId);
+                        closeFile();
+                        context.fireChannelRead("Got malformed bundle: " + e.getMessage());
+                    }
+                    return;
+                }
+                ResponseDispatcher.get(context).unregister(payload.requestId);
+                closeFile();
+                StringJoiner message = new StringJoiner(System.lineSeparator());
+                if (failures.length() > 0) {
+                    message.add(failures.toString());
+                }
+                message.add(payload.getBody().toString(StandardCharsets.UTF_8));
+                if (reader.isEnded()) {
+                    message.add(String.format("%d files (%d bytes) saved to %s, %d skipped",
+                            savedFiles, savedBytes, folder, skippedFiles));
+                }
+                context.fireChannelRead(message.toString());
+            } finally {
+                ReferenceCountUtil.release(payload);
+            }
+        }
+
+        @Override
+        public void startEntry(String path, long size) {
+            entryPath = path;
+            position = 0;
+            Path file;
+            try {
+                file = folder.resolve(path).normalize();
+            } catch (InvalidPathException e) {
+                skip("invalid path");
+                return;
+            }
+            if (!file.startsWith(folder) || file.equals(folder)) {
+                skip("path is outside the folder");
+                return;
+            }
+            try {
+                Files.createDirectories(file.getParent());
+                fileChannel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                filePath = file;
+            } catch (IOException e) {
+                skip(e.toString());
+            }
+        }
+
+        @Override
+        public void entryData(ByteBuf data) {
+            if (fileChannel == null) {
+                return;
+            }
+            try {
+                while (data.isReadable()) {
+                    position += data.readBytes(fileChannel, position, data.readableBytes());
+                }
+            } catch (IOException e) {
+                closeFile();
+                skip(e.toString());
+            }
+        }
+
+        @Override
+        public void endEntry() {
+            if (fileChannel == null) {
+                return;
+            }
+            // the file is complete, so it is kept
+            filePath = null;
+            closeFile();
+            savedFiles++;
+            savedBytes += position;
+        }
+
+        @Override
+        public void endBundle() {
+        }
+
+        private void skip(String reason) {
+            skippedFiles++;
+            failures.add(entryPath + " skipped: " + reason);
+        }
+
+        /**
+         * Closes the file being written and removes it if its entry has not reached the end.
+         */
+        private void closeFile() {
+            if (fileChannel == null) {
+                return;
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) {
+            }
+            fileChannel = null;
+            if (filePath != null) {
+                try {
+                    Files.deleteIfExists(filePath);
+                } catch (IOException ignored) {
+                }
+                filePath = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package cloud.storage.client;
+
+import cloud.storage.data.ByteBufPayload;
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.BundleReader;
+import cloud.storage.nio.BundleResult;
+import cloud.storage.nio.BundleWriter;
+import cloud.storage.nio.CommandHandler;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.nio.ResponseDispatcher;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.stream.Stream;
+
+/**
+ * Client side handler of BundleUpload commands.
+ * Uploads all the files of a folder and its subfolders in a single request, see {@link BundleReader}:
+ * the folder is walked while the bundle is sent, and every file is opened only when its record is written,
+ * so neither the list of the files nor their content is held in memory.
+ * Prints the files the server failed to save and the summary of the upload.
+ */
+public class BundleUploadHandler implements CommandHandler {
+    private static final Cmd CMD = Cmd.BUNDLE_UPLOAD;
+    private static final int DATA_SIZE = 256 * 1024;
+
+    @Override
+    public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
+        if (arguments.size() != 2) {
+            promise.setFailure(new RuntimeException("Wrong number of arguments.\n" +
+                    "You have to pass only path to folder and path to save folder on server as arguments."));
+            return;
+        }
+        Path folder;
+        try {
+            folder = Path.of(arguments.get(0));
+        } catch (InvalidPathException e) {
+            promise.setFailure(new RuntimeException("Invalid path passed. Please check the path and try again.", e));
+            return;
+        }
+        if (!Files.isDirectory(folder)) {
+            promise.setFailure(new RuntimeException("Folder not found. Please check the path and try again."));
+            return;
+        }
+        Stream<Path> files;
+        try {
+            files = Files.walk(folder);
+        } catch (IOException e) {
+            promise.setFailure(new RuntimeException("Error occurred while reading a folder.", e));
+            return;
+        }
+        BundleSender sender = new BundleSender(context, folder, files, promise);
+        sender.requestId = ResponseDispatcher.get(context).register(sender);
+        context.writeAndFlush(new Packet(new Payload(sender.requestId, CMD,
+                arguments.get(1).getBytes(StandardCharsets.UTF_8)))).addListener(sender);
+    }
+
+    /**
+     * Sends the bundle payload by payload, the next payload is filled when the previous one has been written,
+     * and completes the command promise with the last one.
+     * <p>
+     * Gets the results of the files and the summary of the bundle, which ends the request.
+     * The server replies with the summary before the end of the bundle only if the upload failed,
+     * so the rest of the bundle is not sent.
+     */
+    private static class BundleSender implements ChannelFutureListener, PayloadHandler, BundleWriter.EntrySource {
+        private final ChannelHandlerContext context;
+        private final Path folder;
+        private final Stream<Path> files;
+        private final Iterator<Path> iterator;
+        private final ChannelPromise promise;
+        private final BundleWriter writer = new BundleWriter(this);
+        private final StringJoiner failures = new StringJoiner(System.lineSeparator());
+        private int requestId;
+        private long skippedFiles;
+        private volatile boolean cancelled;
+
+        private BundleSender(ChannelHandlerContext context, Path folder, Stream<Path> files, ChannelPromise promise) {
+            this.context = context;
+            this.folder = folder;
+            this.files = files;
+            this.iterator = files.iterator();
+            this.promise = promise;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (cancelled) {
+                return;
+            }
+            if (!future.isSuccess()) {
+                close();
+                promise.tryFailure(future.cause());
+                return;
+            }
+            ByteBuf data = context.alloc().ioBuffer(DATA_SIZE);
+            boolean more;
+            try {
+                more = writer.fill(data, DATA_SIZE);
+            } catch (IOException | RuntimeException e) {
+                data.release();
+                close();
+                // the server drops the bundle when the connection is closed, a broken bundle is never committed
+                promise.tryFailure(new RuntimeException("Error occurred while reading a file.", e));
+                context.close();
+                return;
+            }
+            Packet packet = new Packet(new ByteBufPayload(requestId, Cmd.BUNDLE_DATA, data));
+            if (more) {
+                context.writeAndFlush(packet).addListener(this);
+            } else {
+                close();
+                context.writeAndFlush(packet, promise);
+            }
+        }
+
+        @Override
+        public BundleWriter.Entry next() throws IOException {
+            try {
+                while (iterator.hasNext()) {
+                    Path file = iterator.next();
+                    if (!Files.isRegularFile(file)) {
+                        continue;
+                    }
+                    String path = folder.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                    FileChannel fileChannel;
+                    try {
+                        fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+                    } catch (IOException e) {
+                        skippedFiles++;
+                        failures.add(path + " skipped: " + e.getMessage());
+                        continue;
+                    }
+                    return BundleWriter.fileEntry(path, fileChannel);
+                }
+                return null;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        public void handle(ChannelHandlerContext responseContext, Payload payload) {
+            try {
+                if (payload.cmd == Cmd.BUNDLE_RESULT) {
+                    BundleResult result = BundleResult.fromBytes(payload.getBody().nioBuffer());
+                    if (!result.isSaved()) {
+                        failures.add(result.toString());
+                    }
+                    return;
+                }
+                ResponseDispatcher.get(responseContext).unregister(payload.requestId);
+                cancel();
+                StringJoiner message = new StringJoiner(System.lineSeparator());
+                if (failures.length() > 0) {
+                    message.add(failures.toString());
+                }
+                message.add(payload.getBody().toString(StandardCharsets.UTF_8));
+                if (skippedFiles > 0) {
+                    message.add(skippedFiles + " files could not be read");
+                }
+                responseContext.fireChannelRead(message.toString());
+            } finally {
+                ReferenceCountUtil.release(payload);
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            close();
+            promise.trySuccess();
+        }
+
+        private void close() {
+            writer.close();
+            files.close();
+        }
+    }
+}
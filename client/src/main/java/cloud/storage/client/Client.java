@@ -2,16 +2,16 @@ package cloud.storage.client;
 
 import cloud.storage.nio.PacketEncoder;
 import cloud.storage.nio.PayloadDecoder;
-import cloud.storage.nio.ReplayingPacketDecoder;
+import cloud.storage.nio.ResponseDispatcher;
+import cloud.storage.nio.Transport;
+import cloud.storage.nio.PacketFrameDecoder;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedReader;
@@ -23,6 +23,7 @@ import java.io.Reader;
 import java.io.Writer;
 import java.net.ConnectException;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * Client-side application to connect and work with server.
@@ -31,17 +32,20 @@ import java.nio.charset.StandardCharsets;
 @Slf4j
 public class Client {
     static final String CLIENT_HANDLER_NAME = "userInteraction";
+    private static final String DEFAULT_COMPRESSIONS = "deflate,snappy";
 
     /**
      * The general way for user to interact with the application.
      *
-     * @param args args[0]:args[1] -- server remote address.
+     * @param args args[0]:args[1] -- server remote address,
+     *             optional args[2] -- comma-separated compressions of file transfers in the order of preference.
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
+        if (args.length != 2 && args.length != 3) {
             log.error("You have to pass host and port as arguments.");
             return;
         }
+        List<String> compressions = List.of((args.length == 3 ? args[2] : DEFAULT_COMPRESSIONS).split(","));
         String host;
         int port;
         try {
@@ -51,7 +55,8 @@ public class Client {
             log.error("Port must be a number");
             return;
         }
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        Transport transport = Transport.getDefault();
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(0);
 
         try (Reader reader = new InputStreamReader(System.in, StandardCharsets.UTF_8);
              BufferedReader bufferedReader = new BufferedReader(reader);
@@ -60,7 +65,7 @@ public class Client {
         ) {
             Bootstrap bootstrap = new Bootstrap();
             bootstrap.group(workerGroup);
-            bootstrap.channel(NioSocketChannel.class);
+            bootstrap.channel(transport.getChannelClass());
             bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
             // TODO:: make PacketEncoder MessageToByteEncoder<Payload> and change it in every handler
             // TODO:: make all messages (e.g. errors) be Cmd.MESSAGE payloads
@@ -69,12 +74,9 @@ public class Client {
                 @Override
                 public void initChannel(SocketChannel ch) {
                     ChannelPipeline pipeline = ch.pipeline();
-                    pipeline.addLast("ReplayingPacketDecoder", new ReplayingPacketDecoder());
-                    pipeline.addLast("PayloadDecoder", new PayloadDecoder());
+                    initPipeline(pipeline);
 
-                    pipeline.addLast("PacketEncoder", new PacketEncoder());
-
-                    pipeline.addLast(CLIENT_HANDLER_NAME, new ClientHandler(bufferedReader, bufferedWriter));
+                    pipeline.addLast(CLIENT_HANDLER_NAME, new ClientHandler(bufferedReader, bufferedWriter, compressions));
                 }
             });
 
@@ -92,4 +94,16 @@ public class Client {
         }
     }
 
+    /**
+     * Adds the handlers every channel to the server needs: codecs and the {@link ResponseDispatcher}.
+     */
+    static void initPipeline(ChannelPipeline pipeline) {
+        pipeline.addLast("PacketFrameDecoder", new PacketFrameDecoder());
+        pipeline.addLast("PayloadDecoder", new PayloadDecoder());
+
+        pipeline.addLast("PacketEncoder", new PacketEncoder());
+
+        pipeline.addLast("ResponseDispatcher", new ResponseDispatcher());
+    }
+
 }
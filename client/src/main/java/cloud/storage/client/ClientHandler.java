@@ -1,12 +1,13 @@
 package cloud.storage.client;
 
 import cloud.storage.data.Cmd;
-import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
+import cloud.storage.nio.CommandHandler;
 import cloud.storage.util.Pair;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedReader;
@@ -23,32 +24,40 @@ import java.util.concurrent.Executors;
  */
 @Slf4j
 class ClientHandler extends ChannelInboundHandlerAdapter {
-    final static String COMMAND_HANDLER_NAME = "commandHandler";
-    private final Map<Cmd, AbstractDuplexCommandPayloadHandler> HANDLER_INSTANCES;
+    private final Map<Cmd, CommandHandler> HANDLER_INSTANCES;
     private final ExecutorService executorService;
     private volatile ChannelHandlerContext ctx;
+    private final List<String> compressions;
     private final BufferedReader reader;
     private volatile BufferedWriter writer;
     private volatile String workingDirectory;
 
     /**
-     * @param reader -- where to read user commands
-     * @param writer -- where to print messages to user
+     * @param reader       -- where to read user commands
+     * @param writer       -- where to print messages to user
+     * @param compressions -- compressions of file transfers to offer the server in the order of preference
      */
-    ClientHandler(BufferedReader reader, BufferedWriter writer) {
+    ClientHandler(BufferedReader reader, BufferedWriter writer, List<String> compressions) {
         super();
+        this.compressions = compressions;
         this.reader = reader;
         this.writer = writer;
         this.executorService = Executors.newFixedThreadPool(1);
-        HANDLER_INSTANCES = Map.of(
-                Cmd.PING, new PingHandler(),
-                Cmd.TIME, new TimeHandler(),
-                Cmd.SIGN_UP, new SignUpHandler(this),
-                Cmd.SIGN_IN, new SignInHandler(this),
-                Cmd.SIGN_OUT, new SignOutHandler(this),
-                Cmd.UPLOAD, new UploadHandler(),
-                Cmd.DOWNLOAD, new DownloadHandler(),
-                Cmd.MOVE, new MoveHandler()
+        HANDLER_INSTANCES = Map.ofEntries(
+                Map.entry(Cmd.COMPRESSION, new CompressionHandler()),
+                Map.entry(Cmd.PING, new PingHandler()),
+                Map.entry(Cmd.TIME, new TimeHandler()),
+                Map.entry(Cmd.SIGN_UP, new SignUpHandler(this)),
+                Map.entry(Cmd.SIGN_IN, new SignInHandler(this)),
+                Map.entry(Cmd.SIGN_OUT, new SignOutHandler(this)),
+                Map.entry(Cmd.UPLOAD, new UploadHandler()),
+                Map.entry(Cmd.DOWNLOAD, new DownloadHandler()),
+                Map.entry(Cmd.MOVE, new MoveHandler()),
+                Map.entry(Cmd.SYNC, new SyncHandler()),
+                Map.entry(Cmd.LIST, new ListHandler()),
+                Map.entry(Cmd.STAT, new StatHandler()),
+                Map.entry(Cmd.BUNDLE_UPLOAD, new BundleUploadHandler()),
+                Map.entry(Cmd.BUNDLE_DOWNLOAD, new BundleDownloadHandler())
         );
     }
 
@@ -66,11 +75,16 @@ class ClientHandler extends ChannelInboundHandlerAdapter {
 
     private void startWorking() {
         println("Connected to server.");
+        ChannelPromise promise = ctx.channel().newPromise();
+        promise.addListener(reportFailure);
+        executeCommand(Cmd.COMPRESSION, compressions, promise);
         sendCommand();
     }
 
     /**
      * Gets user command from passed reader and sends it down the pipeline.
+     * The next command is read right after that, without waiting for the response,
+     * so many commands may be in flight at once.
      */
     private void sendCommand() {
         executorService.submit(() -> {
@@ -92,6 +106,7 @@ class ClientHandler extends ChannelInboundHandlerAdapter {
             }
 
             ChannelPromise promise = ctx.channel().newPromise();
+            promise.addListener(reportFailure);
             executorService.submit(() -> {
                 Pair<Cmd, List<String>> res = parseCommand(input, promise);
                 if (res == null) {
@@ -99,7 +114,7 @@ class ClientHandler extends ChannelInboundHandlerAdapter {
                 }
                 executeCommand(res.getFirst(), res.getSecond(), promise);
             });
-            promise.addListener(sendNextCommand);
+            sendCommand();
         });
     }
 
@@ -124,13 +139,12 @@ class ClientHandler extends ChannelInboundHandlerAdapter {
     }
 
     private void executeCommand(Cmd cmd, List<String> arguments, ChannelPromise promise) {
-        AbstractDuplexCommandPayloadHandler handler = HANDLER_INSTANCES.get(cmd);
+        CommandHandler handler = HANDLER_INSTANCES.get(cmd);
         if (handler == null) {
             promise.setFailure(new RuntimeException("Unknown command passed."));
             return;
         }
         try {
-            ctx.pipeline().addBefore(Client.CLIENT_HANDLER_NAME, COMMAND_HANDLER_NAME, handler);
             handler.execute(ctx, arguments, promise);
         } catch (RuntimeException e) {
             promise.setFailure(e);
@@ -142,6 +156,8 @@ class ClientHandler extends ChannelInboundHandlerAdapter {
         if (msg instanceof String string) {
             println(string);
             print("<" + (workingDirectory == null ? "" : workingDirectory) + ">:");
+        } else {
+            ReferenceCountUtil.release(msg);
         }
     }
 
@@ -162,11 +178,26 @@ class ClientHandler extends ChannelInboundHandlerAdapter {
         println("-----For signed in users-----");
         println("upload pathFrom pathTo");
         println("\tUpload file from this computer by pathFrom to server by pathTo");
-        println("download pathFrom pathTo");
+        println("download pathFrom pathTo [channels]");
         println("\tDownload file from server by pathFrom to this computer by pathTo");
+        println("\toptionally fetching its parts over several channels in parallel");
+        println("sync pathFrom pathTo");
+        println("\tUpdate file on server by pathTo with file from this computer by pathFrom");
+        println("\tsending only the parts which changed (files up to 2 GiB)");
+        println("list [path] [-r]");
+        println("\tList folder in server by path (your folder by default) with sizes and modification times");
+        println("\t-r lists subfolders too");
+        println("stat [path]");
+        println("\tShow size and modification time of file or folder in server by path (your folder by default)");
+        println("bundleUpload folderFrom folderTo");
+        println("\tUpload all files of folder from this computer by folderFrom to server by folderTo in a single request");
+        println("bundleDownload folderFrom folderTo");
+        println("\tDownload all files of folder from server by folderFrom to this computer by folderTo in a single request");
         println("move pathFrom pathTo");
         println("\tMove file in server from pathFrom to pathTo (also may be used to rename file)");
         println("-----For signed in users-----");
+        println("compression names...");
+        println("\tOffer the server compressions of file transfers (none, snappy, deflate) in the order of preference");
         println("exit");
         println("\tShutdown client");
         println("help");
@@ -174,24 +205,15 @@ class ClientHandler extends ChannelInboundHandlerAdapter {
     }
 
     /**
-     * Responsible to continue working at the end of the previous command.
+     * Informs the user about commands which failed to be sent.
      */
-    private final ChannelFutureListener sendNextCommand = future -> {
+    private final ChannelFutureListener reportFailure = future -> {
         if (future.isCancelled()) {
             log.error("Command was cancelled");
-            try {
-                future.channel().pipeline().remove(COMMAND_HANDLER_NAME);
-            } catch (RuntimeException ignored) {
-            }
         } else if (future.cause() != null) {
             log.error("Command ended with failure: {}", future.cause().getMessage());
             println("Enter \"help\" to get a list of available commands");
-            try {
-                future.channel().pipeline().remove(COMMAND_HANDLER_NAME);
-            } catch (RuntimeException ignored) {
-            }
         }
-        sendCommand();
     };
 
     private void shutdown() {
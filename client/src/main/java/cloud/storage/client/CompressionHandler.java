@@ -0,0 +1,67 @@
+package cloud.storage.client;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
+import cloud.storage.nio.Compression;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.List;
+
+/**
+ * Client side handler of Compression commands.
+ * Offers the server compression algorithms for file chunks in the order of preference,
+ * the chosen one is used for the following uploads of the connection.
+ */
+class CompressionHandler extends AbstractDuplexCommandPayloadHandler {
+    private static final Cmd CMD = Cmd.COMPRESSION;
+
+    private static Packet getPacket(int requestId, byte[] cmdBody) {
+        return new Packet(new Payload(requestId, CMD, cmdBody));
+    }
+
+    @Override
+    protected Cmd getCmd() {
+        return CMD;
+    }
+
+    /**
+     * Sends the offered compression algorithms to server.
+     *
+     * @param context   context in which to execute the command
+     * @param arguments names of compression algorithms
+     * @param promise   promise to monitor the execution status of the command
+     */
+    @Override
+    public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
+        byte[] offered = new byte[arguments.size()];
+        try {
+            for (int i = 0; i < offered.length; i++) {
+                offered[i] = Compression.getCompression(arguments.get(i)).getVal();
+            }
+        } catch (IllegalArgumentException e) {
+            promise.setFailure(new IllegalArgumentException("Unknown compression. Available: none, snappy, deflate.", e));
+            return;
+        }
+        context.writeAndFlush(getPacket(newRequestId(context), offered), promise);
+    }
+
+    /**
+     * Remembers the compression chosen by the server.
+     *
+     * @param context context which got the payload.
+     * @param body    data of the payload to handle.
+     */
+    @Override
+    public void handle0(ChannelHandlerContext context, ByteBuf body) {
+        Compression compression = body.isReadable() ? Compression.fromVal(body.readByte()) : null;
+        if (compression == null) {
+            compression = Compression.NONE;
+        }
+        Compression.set(context.channel(), compression);
+        context.fireChannelRead("Compression of file transfers: " + compression.name().toLowerCase());
+    }
+}
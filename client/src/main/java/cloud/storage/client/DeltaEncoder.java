@@ -0,0 +1,204 @@
+package cloud.storage.client;
+
+import cloud.storage.nio.BlockSignatures;
+import cloud.storage.nio.Delta;
+import cloud.storage.nio.RollingChecksum;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the blocks of the server version of a file in the local version, as rsync does,
+ * and describes the local version with {@link Delta} instructions.
+ * <p>
+ * A window of the block size slides over the local file byte by byte with its {@link RollingChecksum} updated,
+ * and only when the checksum is one of a server block the window is hashed to make sure it is that block.
+ * Bytes between the matched blocks are sent as they are.
+ * The instructions are produced batch by batch, so the delta of a big file does not have to be held in memory.
+ */
+class DeltaEncoder {
+    private static final int BATCH_LENGTH = 1024 * 1024;
+    private static final int FILTER_SIZE = 1 << 16;
+
+    private final ByteBuffer data;
+    private final int size;
+    private final BlockSignatures signatures;
+    private final int blockSize;
+    private final Map<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+    private final boolean[] checksumFilter = new boolean[FILTER_SIZE];
+    private final RollingChecksum checksum = new RollingChecksum();
+    private boolean windowValid;
+    private int position;
+    private int literalStart;
+    private int copyFirst;
+    private int copyCount;
+    private boolean finished;
+    private long literalBytes;
+    private int copiedBlocks;
+
+    /**
+     * @param data       the whole local version of the file.
+     * @param signatures signatures of the blocks of the server version.
+     */
+    DeltaEncoder(ByteBuffer data, BlockSignatures signatures) {
+        this.data = data;
+        this.size = data.limit();
+        this.signatures = signatures;
+        this.blockSize = signatures.getBlockSize();
+        for (int i = 0; i < signatures.getBlockCount(); i++) {
+            int value = signatures.getChecksum(i);
+            blocksByChecksum.computeIfAbsent(value, key -> new ArrayList<>(1)).add(i);
+            checksumFilter[filterIndex(value)] = true;
+        }
+    }
+
+    private static int filterIndex(int checksum) {
+        return (checksum ^ checksum >>> 16) & (FILTER_SIZE - 1);
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return number of bytes sent as they are.
+     */
+    long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * @return number of server blocks reused.
+     */
+    int getCopiedBlocks() {
+        return copiedBlocks;
+    }
+
+    /**
+     * Writes the next instructions until there are about a batch of them or the file is over.
+     */
+    void fill(ByteBuf out) {
+        while (!finished && out.readableBytes() < BATCH_LENGTH) {
+            if (size - position < blockSize) {
+                finishTail(out);
+                return;
+            }
+            if (!windowValid) {
+                checksum.reset(data, position, blockSize);
+                windowValid = true;
+            }
+            int lastWindow = size - blockSize;
+            int literalLimit = (int) Math.min(lastWindow, (long) literalStart + Delta.MAX_DATA_LENGTH);
+            int block = -1;
+            while (true) {
+                int value = checksum.getValue();
+                if (checksumFilter[filterIndex(value)] && (block = findBlock(value, position, blockSize)) >= 0) {
+                    break;
+                }
+                if (position >= literalLimit) {
+                    break;
+                }
+                checksum.roll(data.get(position), data.get(position + blockSize));
+                position++;
+            }
+            if (block >= 0) {
+                flushLiteral(out, position);
+                addCopy(out, block);
+                position += blockSize;
+                literalStart = position;
+                windowValid = false;
+            } else if (position == lastWindow) {
+                position++;
+                windowValid = false;
+            } else {
+                flushLiteral(out, position);
+            }
+        }
+    }
+
+    /**
+     * Handles the bytes after the last full window: they may be the last block of the server version,
+     * which is shorter than the others, otherwise they are sent as they are.
+     */
+    private void finishTail(ByteBuf out) {
+        int count = signatures.getBlockCount();
+        if (count > 0) {
+            int last = count - 1;
+            int lastLength = signatures.getBlockLength(last);
+            int candidate = size - lastLength;
+            if (lastLength < blockSize && candidate >= position) {
+                checksum.reset(data, candidate, lastLength);
+                if (checksum.getValue() == signatures.getChecksum(last)
+                        && signatures.hashEquals(last, BlockSignatures.hash(data.slice(candidate, lastLength)))) {
+                    flushLiteral(out, candidate);
+                    addCopy(out, last);
+                    literalStart = size;
+                }
+            }
+        }
+        position = size;
+        flushLiteral(out, size);
+        flushCopy(out);
+        finished = true;
+    }
+
+    /**
+     * @return index of the server block which the window is equal to or -1.
+     */
+    private int findBlock(int value, int offset, int length) {
+        List<Integer> candidates = blocksByChecksum.get(value);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] hash = BlockSignatures.hash(data.slice(offset, length));
+        // the block after the previous match goes first, so unchanged runs are copied with a single instruction
+        int next = copyCount > 0 ? copyFirst + copyCount : -1;
+        if (candidates.contains(next) && signatures.getBlockLength(next) == length && signatures.hashEquals(next, hash)) {
+            return next;
+        }
+        for (int block : candidates) {
+            if (signatures.getBlockLength(block) == length && signatures.hashEquals(block, hash)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private void addCopy(ByteBuf out, int block) {
+        copiedBlocks++;
+        if (copyCount > 0 && copyFirst + copyCount == block) {
+            copyCount++;
+            return;
+        }
+        flushCopy(out);
+        copyFirst = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy(ByteBuf out) {
+        if (copyCount > 0) {
+            Delta.writeCopy(out, copyFirst, copyCount);
+            copyCount = 0;
+        }
+    }
+
+    /**
+     * Writes the bytes from the literal start till the end as they are.
+     */
+    private void flushLiteral(ByteBuf out, int end) {
+        if (literalStart >= end) {
+            return;
+        }
+        flushCopy(out);
+        while (literalStart < end) {
+            int length = Math.min(Delta.MAX_DATA_LENGTH, end - literalStart);
+            Delta.writeData(out, data.slice(literalStart, length));
+            literalStart += length;
+            literalBytes += length;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package cloud.storage.client;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.ChunkCodec;
+import cloud.storage.nio.Compression;
+import cloud.storage.nio.DownloadRequest;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.nio.ResponseDispatcher;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download of a single file, possibly split into byte ranges fetched over several channels at once.
+ * <p>
+ * With one channel the whole file is requested right away.
+ * Otherwise the file size is requested first, then the file is split into segments:
+ * the first one is fetched over the channel of the command and the rest over new channels,
+ * which are attached to the same session with a token got from the server.
+ * Every segment is written into the file with positional writes as its chunks arrive.
+ */
+class FileDownload {
+    private static final Cmd CMD = Cmd.DOWNLOAD;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final double MIB = 1024 * 1024;
+
+    private final ChannelHandlerContext context;
+    private final String cloudPath;
+    private final Path saveFilePath;
+    private final int channels;
+    private final List<Channel> extraChannels = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final AtomicInteger segmentsLeft = new AtomicInteger(1);
+    private volatile FileChannel fileChannel;
+    private volatile long size;
+    private long startNanos;
+    private ChunkCodec firstSegmentCodec;
+
+    /**
+     * @param context      context of the command.
+     * @param cloudPath    path of the file on the server.
+     * @param saveFilePath path to save the file to, must not exist.
+     * @param channels     maximum number of channels to download the file over.
+     */
+    FileDownload(ChannelHandlerContext context, String cloudPath, Path saveFilePath, int channels) {
+        this.context = context;
+        this.cloudPath = cloudPath;
+        this.saveFilePath = saveFilePath;
+        this.channels = channels;
+    }
+
+    void start(ChannelPromise promise) {
+        startNanos = System.nanoTime();
+        if (channels == 1) {
+            firstSegmentCodec = new ChunkCodec(Compression.get(context.channel()));
+            requestSegment(context, new Segment(0, DownloadRequest.TILL_END, firstSegmentCodec), promise);
+        } else {
+            int requestId = ResponseDispatcher.get(context).register(this::handleSize);
+            context.writeAndFlush(getPacket(requestId, new DownloadRequest(cloudPath, 0, 0)), promise);
+        }
+    }
+
+    private static Packet getPacket(int requestId, DownloadRequest downloadRequest) {
+        return new Packet(new Payload(requestId, CMD, downloadRequest));
+    }
+
+    private void requestSegment(ChannelHandlerContext segmentContext, Segment segment, ChannelPromise promise) {
+        segment.requestId = ResponseDispatcher.get(segmentContext).register(segment);
+        segmentContext.writeAndFlush(getPacket(segment.requestId,
+                new DownloadRequest(cloudPath, segment.start, segment.length)), promise);
+    }
+
+    private ChannelPromise newPromise(ChannelHandlerContext segmentContext) {
+        ChannelPromise promise = segmentContext.newPromise();
+        promise.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                fail("Failed to request a part of the file: " + future.cause().getMessage());
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Splits the file into segments when its size is known and requests them.
+     */
+    private void handleSize(ChannelHandlerContext responseContext, Payload payload) {
+        ResponseDispatcher.get(responseContext).unregister(payload.requestId);
+        try {
+            if (payload.cmd != CMD) {
+                fail(getMessage(payload));
+                return;
+            }
+            open(payload.getBody().readLong());
+        } catch (IOException e) {
+            fail("Failed to save file from cloud: " + e.getMessage());
+            return;
+        } finally {
+            ReferenceCountUtil.release(payload);
+        }
+        int segments = (int) Math.max(1, Math.min(channels, (size + MIN_SEGMENT_SIZE - 1) / MIN_SEGMENT_SIZE));
+        long segmentLength = (size + segments - 1) / segments;
+        segmentsLeft.set(segments);
+        firstSegmentCodec = new ChunkCodec(Compression.get(context.channel()));
+        requestSegment(context, new Segment(0, Math.min(segmentLength, size), firstSegmentCodec), newPromise(context));
+        if (segments == 1) {
+            return;
+        }
+        int requestId = ResponseDispatcher.get(context).register((tokenContext, tokenPayload) -> {
+            ResponseDispatcher.get(tokenContext).unregister(tokenPayload.requestId);
+            try {
+                if (tokenPayload.cmd != Cmd.ATTACH_TOKEN) {
+                    fail(getMessage(tokenPayload));
+                    return;
+                }
+                String token = tokenPayload.getBody().toString(StandardCharsets.UTF_8);
+                for (int i = 1; i < segments; i++) {
+                    long start = i * segmentLength;
+                    connect(token, new Segment(start, Math.min(segmentLength, size - start),
+                            new ChunkCodec(Compression.NONE)));
+                }
+            } finally {
+                ReferenceCountUtil.release(tokenPayload);
+            }
+        });
+        context.writeAndFlush(new Packet(new Payload(requestId, Cmd.ATTACH_TOKEN)), newPromise(context));
+    }
+
+    /**
+     * Opens a new channel to the server, attaches it to the session with the token and requests the segment.
+     * The attach and download requests are pipelined, the server handles them in order.
+     */
+    private void connect(String token, Segment segment) {
+        if (finished.get()) {
+            return;
+        }
+        Bootstrap bootstrap = new Bootstrap()
+                .group(context.channel().eventLoop().parent())
+                .channel(context.channel().getClass())
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        Client.initPipeline(channel.pipeline());
+                    }
+                });
+        bootstrap.connect(context.channel().remoteAddress()).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                fail("Failed to open a download channel: " + future.cause().getMessage());
+                return;
+            }
+            Channel channel = future.channel();
+            extraChannels.add(channel);
+            channel.closeFuture().addListener(closeFuture -> fail("Download channel was closed by the server."));
+            if (finished.get()) {
+                channel.close();
+                return;
+            }
+            ChannelHandlerContext segmentContext = channel.pipeline().context(ResponseDispatcher.class);
+            int requestId = ResponseDispatcher.get(segmentContext).register((attachContext, attachPayload) -> {
+                ResponseDispatcher.get(attachContext).unregister(attachPayload.requestId);
+                try {
+                    if (attachPayload.cmd != Cmd.ATTACH) {
+                        fail(getMessage(attachPayload));
+                    }
+                } finally {
+                    ReferenceCountUtil.release(attachPayload);
+                }
+            });
+            segmentContext.write(new Packet(new Payload(requestId, Cmd.ATTACH,
+                    token.getBytes(StandardCharsets.UTF_8))), newPromise(segmentContext));
+            requestSegment(segmentContext, segment, newPromise(segmentContext));
+        });
+    }
+
+    private synchronized void open(long size) throws IOException {
+        if (fileChannel != null) {
+            if (size != this.size) {
+                throw new IOException("File was changed while downloading");
+            }
+            return;
+        }
+        Path parentPath = saveFilePath.getParent();
+        if (parentPath != null) {
+            new File(parentPath.toUri()).mkdirs();
+        }
+        this.size = size;
+        fileChannel = FileChannel.open(saveFilePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private void segmentDone() {
+        if (segmentsLeft.decrementAndGet() > 0) {
+            return;
+        }
+        double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+        String report = String.format("%d bytes over %d channel(s) in %.2f s (%.2f MiB/s)",
+                size, extraChannels.size() + 1, seconds, size / MIB / seconds);
+        if (extraChannels.isEmpty()) {
+            report += System.lineSeparator() + firstSegmentCodec.getReport();
+        }
+        finish("File saved to " + saveFilePath + System.lineSeparator() + report, true);
+    }
+
+    private void fail(String message) {
+        finish(message, false);
+    }
+
+    /**
+     * Closes the file and the extra channels and reports the result.
+     * An unfinished file is removed.
+     */
+    private void finish(String message, boolean success) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        extraChannels.forEach(Channel::close);
+        synchronized (this) {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                    if (!success) {
+                        Files.deleteIfExists(saveFilePath);
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        // messages are passed from the dispatcher, as responses are, so they reach the handler of the command
+        context.pipeline().context(ResponseDispatcher.class).fireChannelRead(message);
+    }
+
+    private static String getMessage(Payload payload) {
+        if (payload.cmd == Cmd.MESSAGE) {
+            return payload.getBody().toString(StandardCharsets.UTF_8);
+        }
+        return "Got unexpected response: " + payload.cmd;
+    }
+
+    /**
+     * Receives a single byte range of the file.
+     */
+    private class Segment implements PayloadHandler {
+        private final long start;
+        private final long length;
+        private final ChunkCodec codec;
+        private int requestId;
+        private long end;
+        private long segmentReceived;
+
+        private Segment(long start, long length, ChunkCodec codec) {
+            this.start = start;
+            this.length = length;
+            this.codec = codec;
+            this.end = length == DownloadRequest.TILL_END ? Long.MAX_VALUE : start + length;
+        }
+
+        @Override
+        public void handle(ChannelHandlerContext segmentContext, Payload payload) {
+            try {
+                if (finished.get()) {
+                    ResponseDispatcher.get(segmentContext).unregister(requestId);
+                    return;
+                }
+                switch (payload.cmd) {
+                    case DOWNLOAD -> {
+                        open(payload.getBody().readLong());
+                        end = Math.min(end, size);
+                    }
+                    case DOWNLOAD_CHUNK -> write(segmentContext, payload.getBody());
+                    default -> {
+                        ResponseDispatcher.get(segmentContext).unregister(requestId);
+                        fail(getMessage(payload));
+                        return;
+                    }
+                }
+                if (fileChannel != null && segmentReceived == end - start) {
+                    ResponseDispatcher.get(segmentContext).unregister(requestId);
+                    segmentDone();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                ResponseDispatcher.get(segmentContext).unregister(requestId);
+                fail("Failed to save file from cloud: " + e.getMessage());
+            } finally {
+                ReferenceCountUtil.release(payload);
+            }
+        }
+
+        private void write(ChannelHandlerContext segmentContext, ByteBuf body) throws IOException {
+            if (fileChannel == null) {
+                throw new IOException("Got file content before its size");
+            }
+            long position = body.readLong();
+            ByteBuf data = codec.decode(segmentContext.alloc(), body);
+            try {
+                if (position < start || position + data.readableBytes() > end) {
+                    throw new IOException("Got file content outside of the requested range");
+                }
+                while (data.isReadable()) {
+                    int written = data.readBytes(fileChannel, position, data.readableBytes());
+                    position += written;
+                    segmentReceived += written;
+                }
+            } finally {
+                data.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package cloud.storage.client;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.CommandHandler;
+import cloud.storage.nio.ListPage;
+import cloud.storage.nio.ListRequest;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.nio.ResponseDispatcher;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Client side handler of List commands.
+ * Prints the entries of a folder on the server page by page as they arrive:
+ * the next page is requested with the cursor of the previous one only when it is printed,
+ * so the server does not read the folder ahead of the client.
+ */
+public class ListHandler implements CommandHandler {
+    private static final Cmd CMD = Cmd.LIST;
+    private static final String RECURSIVE_FLAG = "-r";
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    @Override
+    public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
+        boolean recursive = arguments.contains(RECURSIVE_FLAG);
+        List<String> paths = arguments.stream().filter(argument -> !argument.equals(RECURSIVE_FLAG)).toList();
+        if (paths.size() > 1) {
+            promise.setFailure(new RuntimeException("Wrong number of arguments.\n" +
+                    "You may pass only path of folder in cloud and " + RECURSIVE_FLAG + " flag as arguments."));
+            return;
+        }
+        String path = paths.isEmpty() ? "" : paths.get(0);
+        PageHandler pageHandler = new PageHandler(path, recursive);
+        int requestId = ResponseDispatcher.get(context).register(pageHandler);
+        context.writeAndFlush(new Packet(new Payload(requestId, CMD, new ListRequest(path, recursive, ListRequest.NO_CURSOR))),
+                promise);
+    }
+
+    /**
+     * @return line of the entry with its type, size, modification time and path,
+     * the time is left blank if it is unknown, as for folders in {@link StatHandler} replies.
+     */
+    static String format(ListPage.Entry entry) {
+        return String.format("%s %14s %19s %s", entry.folder() ? "d" : "-", entry.folder() ? "" : entry.size(),
+                entry.modified() == 0 ? "" : TIME_FORMATTER.format(Instant.ofEpochMilli(entry.modified())),
+                entry.folder() ? entry.path() + "/" : entry.path());
+    }
+
+    /**
+     * Prints the pages and requests the following ones with the same request id.
+     */
+    private static class PageHandler implements PayloadHandler {
+        private final String path;
+        private final boolean recursive;
+        private long entries;
+
+        private PageHandler(String path, boolean recursive) {
+            this.path = path;
+            this.recursive = recursive;
+        }
+
+        @Override
+        public void handle(ChannelHandlerContext context, Payload payload) {
+            try {
+                if (payload.cmd != Cmd.LIST_PAGE) {
+                    ResponseDispatcher.get(context).unregister(payload.requestId);
+                    context.fireChannelRead(payload.getBody().toString(StandardCharsets.UTF_8));
+                    return;
+                }
+                ListPage page;
+                try {
+                    page = ListPage.fromBytes(payload.getBody().nioBuffer());
+                } catch (RuntimeException e) {
+                    ResponseDispatcher.get(context).unregister(payload.requestId);
+                    context.fireChannelRead("Got malformed list page: " + e.getMessage());
+                    return;
+                }
+                entries += page.getEntries().size();
+                StringJoiner lines = new StringJoiner(System.lineSeparator());
+                page.getEntries().forEach(entry -> lines.add(format(entry)));
+                if (page.getCursor() == ListRequest.NO_CURSOR) {
+                    ResponseDispatcher.get(context).unregister(payload.requestId);
+                    lines.add(entries + " entries");
+                } else {
+                    context.writeAndFlush(new Packet(new Payload(payload.requestId, CMD,
+                            new ListRequest(path, recursive, page.getCursor()))));
+                }
+                context.fireChannelRead(lines.toString());
+            } finally {
+                ReferenceCountUtil.release(payload);
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
 import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 
@@ -36,7 +37,7 @@ public class MoveHandler extends AbstractDuplexCommandPayloadHandler {
                     .put(cloudPathSourceString.getBytes())
                     .putInt(cloudPathDestString.length())
                     .put(cloudPathDestString.getBytes());
-            context.writeAndFlush(new Packet(new Payload(Cmd.MOVE, cmdBody)), promise);
+            context.writeAndFlush(new Packet(new Payload(newRequestId(context), Cmd.MOVE, cmdBody)), promise);
         } catch (IllegalArgumentException | SecurityException e) {
             promise.setFailure(new RuntimeException("Failed to get a file by path.", e));
         }
@@ -45,6 +46,6 @@ public class MoveHandler extends AbstractDuplexCommandPayloadHandler {
     }
 
     @Override
-    protected void handle0(ChannelHandlerContext context, byte[] cmdBody) {
+    protected void handle0(ChannelHandlerContext context, ByteBuf body) {
     }
 }
@@ -4,11 +4,12 @@ import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
 import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.Optional;
 
 /**
  * Client side handler of Ping commands
@@ -16,8 +17,8 @@ import java.util.Optional;
 class PingHandler extends AbstractDuplexCommandPayloadHandler {
     private static final Cmd CMD = Cmd.PING;
 
-    private static Packet getPacket(byte[] cmdBody) {
-        return new Packet(new Payload(CMD, cmdBody));
+    private static Packet getPacket(int requestId, byte[] cmdBody) {
+        return new Packet(new Payload(requestId, CMD, cmdBody));
     }
 
     @Override
@@ -34,18 +35,18 @@ class PingHandler extends AbstractDuplexCommandPayloadHandler {
      */
     @Override
     public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
-        context.writeAndFlush(getPacket(String.join(" ", arguments).getBytes()), promise);
+        context.writeAndFlush(getPacket(newRequestId(context), String.join(" ", arguments).getBytes(StandardCharsets.UTF_8)), promise);
     }
 
     /**
      * Gets the message of ping response.
      *
      * @param context context which got the payload.
-     * @param cmdBody data of the payload to handle.
+     * @param body    data of the payload to handle.
      */
     @Override
-    public void handle0(ChannelHandlerContext context, byte[] cmdBody) {
-        String message = Optional.ofNullable(cmdBody).map(String::new).orElse("");
+    public void handle0(ChannelHandlerContext context, ByteBuf body) {
+        String message = body.toString(StandardCharsets.UTF_8);
         context.fireChannelRead("ping " + message);
     }
 }
@@ -6,10 +6,10 @@ import cloud.storage.data.Payload;
 import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
 import cloud.storage.nio.SignInResponse;
 import cloud.storage.nio.UserData;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 
-import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -24,8 +24,8 @@ class SignInHandler extends AbstractDuplexCommandPayloadHandler {
         this.clientHandler = clientHandler;
     }
 
-    private static Packet getPacket(byte[] cmdBody) {
-        return new Packet(new Payload(CMD, cmdBody));
+    private static Packet getPacket(int requestId, UserData userData) {
+        return new Packet(new Payload(requestId, CMD, userData));
     }
 
     @Override
@@ -47,18 +47,18 @@ class SignInHandler extends AbstractDuplexCommandPayloadHandler {
             return;
         }
         UserData userData = new UserData(arguments.get(0), arguments.get(1));
-        context.writeAndFlush(getPacket(userData.getBytes()), promise);
+        context.writeAndFlush(getPacket(newRequestId(context), userData), promise);
     }
 
     /**
      * Handles {@link SignInResponse} from server and informs the {@link ClientHandler} about successful signing in.
      *
      * @param context context which got the payload.
-     * @param cmdBody data of the payload to handle.
+     * @param body    data of the payload to handle.
      */
     @Override
-    public void handle0(ChannelHandlerContext context, byte[] cmdBody) {
-        SignInResponse signInResponse = SignInResponse.fromBytes(ByteBuffer.wrap(cmdBody));
+    public void handle0(ChannelHandlerContext context, ByteBuf body) {
+        SignInResponse signInResponse = SignInResponse.fromBytes(body.nioBuffer());
         if (signInResponse.isSuccess()) {
             clientHandler.setWorkingDirectory(signInResponse.getMessage());
             context.fireChannelRead("Signed in successfully");
@@ -4,6 +4,7 @@ import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
 import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 
@@ -21,8 +22,8 @@ class SignOutHandler extends AbstractDuplexCommandPayloadHandler {
         this.clientHandler = clientHandler;
     }
 
-    private static Packet getPacket() {
-        return new Packet(new Payload(CMD, null));
+    private static Packet getPacket(int requestId) {
+        return new Packet(new Payload(requestId, CMD));
     }
 
     @Override
@@ -39,17 +40,17 @@ class SignOutHandler extends AbstractDuplexCommandPayloadHandler {
      */
     @Override
     public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
-        context.writeAndFlush(getPacket(), promise);
+        context.writeAndFlush(getPacket(newRequestId(context)), promise);
     }
 
     /**
      * Informs the {@link ClientHandler} about signing out.
      *
      * @param context context which got the payload.
-     * @param cmdBody data of the payload to handle.
+     * @param body    data of the payload to handle.
      */
     @Override
-    public void handle0(ChannelHandlerContext context, byte[] cmdBody) {
+    public void handle0(ChannelHandlerContext context, ByteBuf body) {
         clientHandler.resetWorkingDirectory();
         context.fireChannelRead("Signed out");
     }
@@ -0,0 +1,50 @@
+package cloud.storage.client;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
+import cloud.storage.nio.ListPage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Client side handler of Stat commands.
+ * Prints the size and the modification time of a file or a folder on the server in the format of {@link ListHandler}.
+ */
+public class StatHandler extends AbstractDuplexCommandPayloadHandler {
+    private final static Cmd CMD = Cmd.STAT;
+
+    @Override
+    protected Cmd getCmd() {
+        return CMD;
+    }
+
+    @Override
+    public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
+        if (arguments.size() > 1) {
+            promise.setFailure(new RuntimeException("Wrong number of arguments.\n" +
+                    "You may pass only path of file or folder in cloud as argument."));
+            return;
+        }
+        String path = arguments.isEmpty() ? "" : arguments.get(0);
+        context.writeAndFlush(new Packet(new Payload(newRequestId(context), CMD, path.getBytes(StandardCharsets.UTF_8))),
+                promise);
+    }
+
+    @Override
+    protected void handle0(ChannelHandlerContext context, ByteBuf body) {
+        ListPage page;
+        try {
+            page = ListPage.fromBytes(body.nioBuffer());
+        } catch (RuntimeException e) {
+            context.fireChannelRead("Got malformed file info: " + e.getMessage());
+            return;
+        }
+        page.getEntries().forEach(entry -> context.fireChannelRead(ListHandler.format(entry)));
+    }
+}
@@ -0,0 +1,181 @@
+package cloud.storage.client;
+
+import cloud.storage.data.ByteBufPayload;
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.BlockSignatures;
+import cloud.storage.nio.CommandHandler;
+import cloud.storage.nio.Delta;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.nio.ResponseDispatcher;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Client side handler of Sync commands.
+ * Updates a file the server has already with the local version of it, sending only the parts which changed:
+ * the server replies to {@link Cmd#SYNC} with {@link BlockSignatures} of its version,
+ * the {@link DeltaEncoder} finds its blocks in the local version, and the rest goes in {@link Cmd#SYNC_DELTA} payloads.
+ * The local file is mapped into memory, so it has to be smaller than 2 GiB.
+ */
+public class SyncHandler implements CommandHandler {
+    private static final Cmd CMD = Cmd.SYNC;
+
+    @Override
+    public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
+        if (arguments.size() != 2) {
+            promise.setFailure(new RuntimeException("Wrong number of arguments.\n" +
+                    "You have to pass only path to file and path of the file to update on server as arguments."));
+            return;
+        }
+        Path clientFilePath;
+        try {
+            clientFilePath = Path.of(arguments.get(0));
+        } catch (InvalidPathException e) {
+            promise.setFailure(new RuntimeException("Invalid path passed. Please check the path and try again.", e));
+            return;
+        }
+        ByteBuffer data;
+        byte[] hash;
+        try (FileChannel fileChannel = FileChannel.open(clientFilePath, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            if (size > Integer.MAX_VALUE) {
+                promise.setFailure(new RuntimeException("File is too big to synchronize, please upload it instead."));
+                return;
+            }
+            data = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            MessageDigest digest = Delta.newDigest();
+            digest.update(data.duplicate());
+            hash = digest.digest();
+        } catch (NoSuchFileException e) {
+            promise.setFailure(new RuntimeException("File not found. Please check the path and try again.", e));
+            return;
+        } catch (IOException e) {
+            promise.setFailure(new RuntimeException("Error occurred while reading a file.", e));
+            return;
+        } catch (IllegalArgumentException | UnsupportedOperationException | SecurityException e) {
+            promise.setFailure(new RuntimeException("Failed to get a file by path.", e));
+            return;
+        }
+        DeltaSender sender = new DeltaSender(context, data, hash, promise);
+        sender.requestId = ResponseDispatcher.get(context).register(sender);
+        context.writeAndFlush(new Packet(new Payload(sender.requestId, CMD,
+                        arguments.get(1).getBytes(StandardCharsets.UTF_8))))
+                .addListener(future -> {
+                    if (!future.isSuccess()) {
+                        sender.fail(future.cause());
+                    }
+                });
+    }
+
+    /**
+     * Sends the delta when the signatures arrive, a batch of instructions at a time:
+     * the next batch is encoded only when the previous one has been written to the channel.
+     * After the last batch sends {@link Cmd#SYNC_COMMIT} with the command promise.
+     * <p>
+     * Gets the result of the synchronization, which the server sends only if it failed or finished.
+     */
+    private static class DeltaSender implements ChannelFutureListener, PayloadHandler {
+        private final ChannelHandlerContext context;
+        private final ByteBuffer data;
+        private final byte[] hash;
+        private final ChannelPromise promise;
+        private int requestId;
+        private DeltaEncoder encoder;
+        private long wireBytes;
+        private volatile boolean cancelled;
+
+        private DeltaSender(ChannelHandlerContext context, ByteBuffer data, byte[] hash, ChannelPromise promise) {
+            this.context = context;
+            this.data = data;
+            this.hash = hash;
+            this.promise = promise;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (cancelled) {
+                return;
+            }
+            if (!future.isSuccess()) {
+                fail(future.cause());
+                return;
+            }
+            sendNextBatch();
+        }
+
+        private void fail(Throwable cause) {
+            promise.tryFailure(cause);
+        }
+
+        private void sendNextBatch() {
+            ByteBuf batch = context.alloc().ioBuffer();
+            try {
+                encoder.fill(batch);
+            } catch (RuntimeException e) {
+                batch.release();
+                fail(e);
+                return;
+            }
+            if (batch.isReadable()) {
+                wireBytes += batch.readableBytes();
+                context.writeAndFlush(new Packet(new ByteBufPayload(requestId, Cmd.SYNC_DELTA, batch))).addListener(this);
+                return;
+            }
+            batch.release();
+            ByteBuf commit = context.alloc().ioBuffer(Long.BYTES + Delta.HASH_LENGTH)
+                    .writeLong(data.limit())
+                    .writeBytes(hash);
+            context.writeAndFlush(new Packet(new ByteBufPayload(requestId, Cmd.SYNC_COMMIT, commit)), promise);
+        }
+
+        @Override
+        public void handle(ChannelHandlerContext responseContext, Payload payload) {
+            if (payload.cmd == Cmd.SYNC_SIGNATURES) {
+                try {
+                    if (!cancelled) {
+                        encoder = new DeltaEncoder(data, BlockSignatures.fromBytes(payload.getBody().nioBuffer()));
+                        sendNextBatch();
+                    }
+                } catch (IllegalArgumentException e) {
+                    ResponseDispatcher.get(responseContext).unregister(requestId);
+                    cancelled = true;
+                    fail(e);
+                } finally {
+                    ReferenceCountUtil.release(payload);
+                }
+                return;
+            }
+            ResponseDispatcher.get(responseContext).unregister(payload.requestId);
+            cancelled = true;
+            promise.trySuccess();
+            try {
+                String message = payload.getBody().toString(StandardCharsets.UTF_8);
+                if (payload.cmd == CMD && encoder != null && encoder.isFinished()) {
+                    message += System.lineSeparator() + String.format(
+                            "%d blocks of the server version reused, %d of %d bytes sent as they are, %d bytes of delta",
+                            encoder.getCopiedBlocks(), encoder.getLiteralBytes(), data.limit(), wireBytes);
+                }
+                responseContext.fireChannelRead(message);
+            } finally {
+                ReferenceCountUtil.release(payload);
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
 import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
 import cloud.storage.nio.TimeData;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 
@@ -16,8 +17,8 @@ import java.util.List;
 class TimeHandler extends AbstractDuplexCommandPayloadHandler {
     private static final Cmd CMD = Cmd.TIME;
 
-    private static Packet getPacket() {
-        return new Packet(new Payload(CMD, null));
+    private static Packet getPacket(int requestId) {
+        return new Packet(new Payload(requestId, CMD));
     }
 
     @Override
@@ -34,17 +35,17 @@ class TimeHandler extends AbstractDuplexCommandPayloadHandler {
      */
     @Override
     public void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise) {
-        context.writeAndFlush(getPacket(), promise);
+        context.writeAndFlush(getPacket(newRequestId(context)), promise);
     }
 
     /**
      * Passes received time up the pipeline
      *
      * @param context context which got the payload.
-     * @param cmdBody data of the payload to handle.
+     * @param body    data of the payload to handle.
      */
     @Override
-    public void handle0(ChannelHandlerContext context, byte[] cmdBody) {
-        context.fireChannelRead(TimeData.fromBytes(cmdBody).toString());
+    public void handle0(ChannelHandlerContext context, ByteBuf body) {
+        context.fireChannelRead(TimeData.fromBytes(body.nioBuffer()).toString());
     }
 }
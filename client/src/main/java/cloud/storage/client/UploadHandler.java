@@ -1,32 +1,59 @@
 package cloud.storage.client;
 
+import cloud.storage.data.ByteBufPayload;
 import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
-import cloud.storage.nio.AbstractDuplexCommandPayloadHandler;
+import cloud.storage.nio.ChunkCodec;
+import cloud.storage.nio.CommandHandler;
+import cloud.storage.nio.Compression;
+import cloud.storage.nio.ContentChunks;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.nio.ResponseDispatcher;
+import cloud.storage.nio.UploadRequest;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class UploadHandler extends AbstractDuplexCommandPayloadHandler {
+/**
+ * Client side handler of Upload commands.
+ * Streams the file to the server in {@link Cmd#UPLOAD_CHUNK} payloads of fixed size,
+ * so memory usage does not depend on the file size.
+ * Chunks are compressed with the compression negotiated for the channel unless the file does not compress well.
+ * The upload request carries {@link ContentChunks} hashes of the file, and chunks the server has already are skipped.
+ * Files too large for their hashes to fit in the request are neither hashed nor deduplicated.
+ */
+public class UploadHandler implements CommandHandler {
     private static final Cmd CMD = Cmd.UPLOAD;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * Reads and encodes the chunks off the event loop, so a slow disk does not hold up the other channels of the loop.
+     * Every upload has at most one chunk being read, so there are no more threads than uploads in progress.
+     */
+    private static final ExecutorService CHUNK_READER = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "chunk-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private static Packet getPacket(byte[] cmdBody) {
-        return new Packet(new Payload(CMD, cmdBody));
-    }
-
-    @Override
-    protected Cmd getCmd() {
-        return CMD;
+    private static Packet getPacket(int requestId, UploadRequest uploadRequest) {
+        return new Packet(new Payload(requestId, CMD, uploadRequest));
     }
 
     @Override
@@ -46,26 +73,189 @@ public class UploadHandler extends AbstractDuplexCommandPayloadHandler {
             promise.setFailure(new RuntimeException("Invalid path passed. Please check the path and try again.", e));
             return;
         }
+        FileChannel fileChannel;
+        long size;
+        List<byte[]> chunkHashes;
         try {
-            File file = new File(clientFilePath.toUri());
-            try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                ByteBuf byteBuf = Unpooled.buffer(fileInputStream.available());
-                byteBuf.writeInt(cloudPathString.length())
-                        .writeBytes(cloudPathString.getBytes())
-                        .writeBytes(fileInputStream, fileInputStream.available());
-                context.writeAndFlush(getPacket(byteBuf.array()), promise);
-            } catch (FileNotFoundException e) {
-                promise.setFailure(new RuntimeException("File not found. Please check the path and try again.", e));
-            } catch (IOException e) {
-                promise.setFailure(new RuntimeException("Error occurred while reading a file.", e));
-            }
-        } catch (IllegalArgumentException | SecurityException e) {
+            fileChannel = FileChannel.open(clientFilePath, StandardOpenOption.READ);
+            size = fileChannel.size();
+            chunkHashes = ContentChunks.isHashed(size) ? ContentChunks.hash(fileChannel, size) : List.of();
+        } catch (NoSuchFileException e) {
+            promise.setFailure(new RuntimeException("File not found. Please check the path and try again.", e));
+            return;
+        } catch (IOException e) {
+            promise.setFailure(new RuntimeException("Error occurred while reading a file.", e));
+            return;
+        } catch (IllegalArgumentException | UnsupportedOperationException | SecurityException e) {
             promise.setFailure(new RuntimeException("Failed to get a file by path.", e));
+            return;
         }
+        ChunkSender sender = new ChunkSender(context, fileChannel, size, promise);
+        sender.requestId = ResponseDispatcher.get(context).register(sender);
+        context.writeAndFlush(getPacket(sender.requestId, new UploadRequest(cloudPathString, size, chunkHashes)))
+                .addListener(future -> {
+                    if (!future.isSuccess()) {
+                        sender.fail(future.cause());
+                    }
+                });
     }
 
-    @Override
-    public void handle0(ChannelHandlerContext context, byte[] cmdBody) {
-        context.fireChannelRead(new String(cmdBody));
+    /**
+     * Sends the file chunk by chunk starting from the offset the server replied with to {@link Cmd#UPLOAD}:
+     * the server keeps the bytes of interrupted uploads, so the upload of the same file continues where it stopped.
+     * The chunks the server marked as stored are skipped, the server fills them in itself.
+     * The next chunk is read only when the previous one has been written to the channel,
+     * so at most one chunk is held in memory, and it is read by {@link #CHUNK_READER}, not by the event loop.
+     * After the last chunk sends {@link Cmd#UPLOAD_COMMIT} with the command promise.
+     * <p>
+     * Gets the result of the upload. The server replies after the offset only if the upload failed or finished,
+     * so the rest of the file is not sent.
+     */
+    private static class ChunkSender implements ChannelFutureListener, PayloadHandler {
+        private final ChannelHandlerContext context;
+        private final FileChannel fileChannel;
+        private final long size;
+        private final ChannelPromise promise;
+        private final ChunkCodec codec;
+        private int requestId;
+        private volatile long position;
+        private BitSet storedChunks = new BitSet();
+        private long skipped;
+        private volatile boolean cancelled;
+
+        private ChunkSender(ChannelHandlerContext context, FileChannel fileChannel, long size, ChannelPromise promise) {
+            this.context = context;
+            this.fileChannel = fileChannel;
+            this.size = size;
+            this.promise = promise;
+            this.codec = new ChunkCodec(Compression.get(context.channel()));
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (cancelled) {
+                return;
+            }
+            if (!future.isSuccess()) {
+                fail(future.cause());
+                return;
+            }
+            sendNextChunk();
+        }
+
+        private void fail(Throwable cause) {
+            close();
+            promise.tryFailure(cause);
+        }
+
+        private void sendNextChunk() {
+            while (position < size && position % ContentChunks.CHUNK_SIZE == 0
+                    && storedChunks.get((int) (position / ContentChunks.CHUNK_SIZE))) {
+                int length = ContentChunks.getChunkLength(size, (int) (position / ContentChunks.CHUNK_SIZE));
+                position += length;
+                skipped += length;
+            }
+            if (position == size) {
+                close();
+                context.writeAndFlush(new Packet(new Payload(requestId, Cmd.UPLOAD_COMMIT)), promise);
+                return;
+            }
+            CHUNK_READER.execute(() -> {
+                ByteBuf chunk;
+                try {
+                    chunk = readChunk();
+                } catch (IOException e) {
+                    close();
+                    promise.tryFailure(new RuntimeException("Error occurred while reading a file.", e));
+                    return;
+                }
+                if (cancelled) {
+                    chunk.release();
+                    return;
+                }
+                context.writeAndFlush(new Packet(new ByteBufPayload(requestId, Cmd.UPLOAD_CHUNK, chunk))).addListener(this);
+            });
+        }
+
+        /**
+         * Reads the next chunk straight into a pooled buffer and makes the chunk body of it,
+         * which is released by the encoder.
+         */
+        private ByteBuf readChunk() throws IOException {
+            int length = (int) Math.min(CHUNK_SIZE, size - position);
+            ByteBuf chunk = context.alloc().ioBuffer(length);
+            try {
+                while (chunk.readableBytes() < length) {
+                    long chunkPosition = position + chunk.readableBytes();
+                    if (chunk.writeBytes(fileChannel, chunkPosition, length - chunk.readableBytes()) < 0) {
+                        throw new EOFException("File was truncated while uploading");
+                    }
+                }
+            } catch (IOException e) {
+                chunk.release();
+                throw e;
+            }
+            long chunkPosition = position;
+            position += length;
+            return codec.encode(context.alloc(), chunkPosition, chunk);
+        }
+
+        @Override
+        public void handle(ChannelHandlerContext responseContext, Payload payload) {
+            if (payload.cmd == Cmd.UPLOAD_OFFSET) {
+                try {
+                    ByteBuf body = payload.getBody();
+                    long offset = body.readLong();
+                    storedChunks = BitSet.valueOf(body.nioBuffer());
+                    startFrom(responseContext, offset);
+                } finally {
+                    ReferenceCountUtil.release(payload);
+                }
+                return;
+            }
+            ResponseDispatcher.get(responseContext).unregister(payload.requestId);
+            cancel();
+            try {
+                String message = payload.getBody().toString(StandardCharsets.UTF_8);
+                if (payload.cmd == CMD && position == size) {
+                    message += System.lineSeparator() + codec.getReport();
+                    if (skipped > 0) {
+                        message += System.lineSeparator() + skipped + " of " + size + " bytes were on the server already";
+                    }
+                }
+                responseContext.fireChannelRead(message);
+            } finally {
+                ReferenceCountUtil.release(payload);
+            }
+        }
+
+        private void startFrom(ChannelHandlerContext responseContext, long offset) {
+            if (cancelled) {
+                return;
+            }
+            if (offset < 0 || offset > size) {
+                ResponseDispatcher.get(responseContext).unregister(requestId);
+                fail(new RuntimeException("Server replied with invalid upload offset " + offset));
+                return;
+            }
+            if (offset > 0) {
+                responseContext.fireChannelRead("Resuming upload from byte " + offset + " of " + size);
+            }
+            position = offset;
+            sendNextChunk();
+        }
+
+        private void cancel() {
+            cancelled = true;
+            close();
+            promise.trySuccess();
+        }
+
+        private void close() {
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
@@ -0,0 +1,94 @@
+package cloud.storage.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.ReferenceCounted;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Payload} which command body is held in a {@link ByteBuf}, e.g. a slice of the inbound network buffer.
+ * The body is not copied, so the payload has to be released when it is not needed anymore.
+ */
+public class ByteBufPayload extends Payload implements ReferenceCounted {
+    public final ByteBuf body;
+
+    public ByteBufPayload(int requestId, Cmd cmd, ByteBuf body) {
+        super(requestId, cmd);
+        this.body = body;
+    }
+
+    @Override
+    public ByteBuf getBody() {
+        return body;
+    }
+
+    @Override
+    public int getByteLength() {
+        return getHeaderByteLength() + body.readableBytes();
+    }
+
+    @Override
+    public byte[] getBytes() {
+        byte[] bytes = new byte[getByteLength()];
+        ByteBuffer.wrap(bytes)
+                .putInt(requestId)
+                .put(cmd.getBytes());
+        body.getBytes(body.readerIndex(), bytes, getHeaderByteLength(), body.readableBytes());
+        return bytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        writeHeaderTo(out);
+        out.writeBytes(body, body.readerIndex(), body.readableBytes());
+    }
+
+    @Override
+    public int refCnt() {
+        return body.refCnt();
+    }
+
+    @Override
+    public ByteBufPayload retain() {
+        body.retain();
+        return this;
+    }
+
+    @Override
+    public ByteBufPayload retain(int increment) {
+        body.retain(increment);
+        return this;
+    }
+
+    @Override
+    public ByteBufPayload touch() {
+        body.touch();
+        return this;
+    }
+
+    @Override
+    public ByteBufPayload touch(Object hint) {
+        body.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return body.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return body.release(decrement);
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufPayload{" +
+                "requestId=" + requestId +
+                ", cmd=" + cmd.name() +
+                ", body=" + ByteBufUtil.hexDump(body, body.readerIndex(), Math.min(body.readableBytes(), 16)) +
+                '}';
+    }
+}
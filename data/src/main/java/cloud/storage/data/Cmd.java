@@ -2,8 +2,6 @@ package cloud.storage.data;
 
 import io.netty.buffer.ByteBuf;
 
-import java.util.Arrays;
-
 /**
  * Enum of all the existing commands.
  *
@@ -25,9 +23,46 @@ public enum Cmd implements Field {
     UPLOAD((byte) 6),
 
     DOWNLOAD((byte) 7),
-    MOVE((byte) 8);
+    MOVE((byte) 8),
+
+    UPLOAD_CHUNK((byte) 9),
+
+    UPLOAD_COMMIT((byte) 10),
+
+    DOWNLOAD_CHUNK((byte) 11),
+
+    COMPRESSION((byte) 12),
+
+    UPLOAD_OFFSET((byte) 13),
+
+    ATTACH_TOKEN((byte) 14),
+
+    ATTACH((byte) 15),
+
+    SYNC((byte) 16),
+
+    SYNC_SIGNATURES((byte) 17),
+
+    SYNC_DELTA((byte) 18),
+
+    SYNC_COMMIT((byte) 19),
+
+    LIST((byte) 20),
+
+    LIST_PAGE((byte) 21),
+
+    BUNDLE_UPLOAD((byte) 22),
+
+    BUNDLE_DOWNLOAD((byte) 23),
+
+    BUNDLE_DATA((byte) 24),
+
+    BUNDLE_RESULT((byte) 25),
+
+    STAT((byte) 26);
 
     static private final int BYTE_LENGTH = 1;
+    static private final Cmd[] VALUES = values();
     private final byte val;
 
     Cmd(byte val) {
@@ -44,11 +79,15 @@ public enum Cmd implements Field {
         return new byte[]{val};
     }
 
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeByte(val);
+    }
+
     public static Cmd readCmd(ByteBuf in) {
-        byte[] val = new byte[BYTE_LENGTH];
-        in.readBytes(val);
-        for (Cmd c : Cmd.values()) {
-            if (Arrays.equals(c.getBytes(), val)) {
+        byte val = in.readByte();
+        for (Cmd c : VALUES) {
+            if (c.val == val) {
                 return c;
             }
         }
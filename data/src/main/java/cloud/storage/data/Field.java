@@ -1,6 +1,16 @@
 package cloud.storage.data;
 
+import io.netty.buffer.ByteBuf;
+
 public interface Field {
     int getByteLength();
+
     byte[] getBytes();
+
+    /**
+     * Writes the same bytes as {@link #getBytes()} returns straight into the buffer without intermediate arrays.
+     *
+     * @param out buffer to write to.
+     */
+    void writeTo(ByteBuf out);
 }
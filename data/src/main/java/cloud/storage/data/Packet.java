@@ -1,5 +1,7 @@
 package cloud.storage.data;
 
+import io.netty.buffer.ByteBuf;
+
 import java.nio.ByteBuffer;
 
 /**
@@ -34,6 +36,12 @@ public class Packet implements Field {
         return bytes;
     }
 
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeInt(payloadByteLength);
+        payload.writeTo(out);
+    }
+
     @Override
     public String toString() {
         return "Packet{" +
@@ -1,41 +1,119 @@
 package cloud.storage.data;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.nio.ByteBuffer;
 
 /**
  * Data class containing information about command and inner data.
+ * Inner data is either raw bytes or a {@link Field} which is encoded only when the payload is written.
+ * <p>
+ * Every payload carries the id of the request it belongs to: responses have the id of the request,
+ * so many requests may be in flight on one connection and their responses may come in any order.
  */
 public class Payload implements Field {
+    /**
+     * Request id of payloads which do not belong to any request.
+     */
+    public static final int NO_REQUEST_ID = 0;
+
+    public final int requestId;
     public final Cmd cmd;
     public final byte[] cmdBody;
+    private final Field field;
+
 
+    public Payload(int requestId, Cmd cmd) {
+        this(requestId, cmd, null, null);
+    }
+
+    public Payload(int requestId, Cmd cmd, byte[] cmdBody) {
+        this(requestId, cmd, cmdBody, null);
+    }
 
-    public Payload(Cmd cmd, byte[] cmdBody) {
+    public Payload(int requestId, Cmd cmd, Field field) {
+        this(requestId, cmd, null, field);
+    }
+
+    private Payload(int requestId, Cmd cmd, byte[] cmdBody, Field field) {
+        this.requestId = requestId;
         this.cmd = cmd;
         this.cmdBody = cmdBody;
+        this.field = field;
+    }
+
+    /**
+     * @return command body as a buffer, empty buffer if there is no body.
+     */
+    public ByteBuf getBody() {
+        if (field != null) {
+            ByteBuf body = Unpooled.buffer(field.getByteLength());
+            field.writeTo(body);
+            return body;
+        }
+        return cmdBody != null ? Unpooled.wrappedBuffer(cmdBody) : Unpooled.EMPTY_BUFFER;
+    }
+
+    /**
+     * @return length of the request id and the command preceding the body.
+     */
+    public int getHeaderByteLength() {
+        return Integer.BYTES + cmd.getByteLength();
+    }
+
+    /**
+     * Writes the request id and the command preceding the body.
+     *
+     * @param out buffer to write to.
+     */
+    public void writeHeaderTo(ByteBuf out) {
+        out.writeInt(requestId);
+        cmd.writeTo(out);
     }
 
     @Override
     public int getByteLength() {
-        return cmd.getByteLength() + (cmdBody != null ? cmdBody.length : 0);
+        return getHeaderByteLength() + getBodyByteLength();
+    }
+
+    private int getBodyByteLength() {
+        if (field != null) {
+            return field.getByteLength();
+        }
+        return cmdBody != null ? cmdBody.length : 0;
     }
 
     @Override
     public byte[] getBytes() {
         byte[] bytes = new byte[getByteLength()];
         ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        byteBuffer.putInt(requestId);
         byteBuffer.put(cmd.getBytes());
-        if (cmdBody != null) {
+        if (field != null) {
+            byteBuffer.put(field.getBytes());
+        } else if (cmdBody != null) {
             byteBuffer.put(cmdBody);
         }
 
         return bytes;
     }
 
+    @Override
+    public void writeTo(ByteBuf out) {
+        writeHeaderTo(out);
+        if (field != null) {
+            field.writeTo(out);
+        } else if (cmdBody != null) {
+            out.writeBytes(cmdBody);
+        }
+    }
+
     @Override
     public String toString() {
         return "Payload{" +
-                "cmd=" + cmd.name() +
+                "requestId=" + requestId +
+                ", cmd=" + cmd.name() +
                 '}';
     }
 }
@@ -2,41 +2,64 @@ package cloud.storage.nio;
 
 import cloud.storage.data.Cmd;
 import cloud.storage.data.Payload;
-import io.netty.channel.ChannelDuplexHandler;
-import io.netty.channel.ChannelHandler;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
-@ChannelHandler.Sharable
-public abstract class AbstractDuplexCommandPayloadHandler extends ChannelDuplexHandler implements CommandHandler, PayloadHandler {
+/**
+ * Base class of commands which get a single response payload.
+ * The handler registers itself in the {@link ResponseDispatcher} for every request it sends,
+ * so it has to keep no state between the request and the response.
+ */
+public abstract class AbstractDuplexCommandPayloadHandler implements CommandHandler, PayloadHandler {
 
     protected abstract Cmd getCmd();
 
     @Override
     public abstract void execute(ChannelHandlerContext context, List<String> arguments, ChannelPromise promise);
 
+    /**
+     * Registers this handler to get the response of a new request.
+     *
+     * @param context context in which the command is executed.
+     * @return id of the request to send.
+     */
+    protected final int newRequestId(ChannelHandlerContext context) {
+        return ResponseDispatcher.get(context).register(this);
+    }
+
+    /**
+     * Handles the response of the request: payload with the command of this handler is passed to
+     * {@link #handle0(ChannelHandlerContext, ByteBuf)}, {@link Cmd#MESSAGE} is passed up the pipeline as a string.
+     */
     @Override
     public final void handle(ChannelHandlerContext context, Payload payload) {
-        if (payload.cmd == getCmd()) {
-            handle0(context, payload.cmdBody);
-        } else {
+        ResponseDispatcher.get(context).unregister(payload.requestId);
+        if (payload.cmd != getCmd() && payload.cmd != Cmd.MESSAGE) {
             context.fireChannelRead(payload);
+            return;
         }
-        removeFromPipeline(context);
-    }
-
-    private final void removeFromPipeline(ChannelHandlerContext context) {
-        context.pipeline().remove(this);
-    }
-
-    protected abstract void handle0(ChannelHandlerContext context, byte[] cmdBody);
-
-    @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        if (msg instanceof Payload payload) {
-            handle(ctx, payload);
+        try {
+            if (payload.cmd == Cmd.MESSAGE) {
+                context.fireChannelRead(payload.getBody().toString(StandardCharsets.UTF_8));
+            } else {
+                handle0(context, payload.getBody());
+            }
+        } finally {
+            ReferenceCountUtil.release(payload);
         }
     }
+
+    /**
+     * Handles the body of the inbound payload with the command of this handler.
+     * The body is released after this method returns.
+     *
+     * @param context context which got the payload.
+     * @param body    data of the payload to handle.
+     */
+    protected abstract void handle0(ChannelHandlerContext context, ByteBuf body);
 }
@@ -0,0 +1,188 @@
+package cloud.storage.nio;
+
+import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Signatures of the blocks of a file the server has, which the client needs to send only the changed parts of it.
+ * The file is split into blocks of the same size, the last one may be shorter,
+ * and every block is described with its {@link RollingChecksum} and its MD5 hash.
+ * The block size grows as the square root of the file size, as in rsync,
+ * but not beyond the point where the signatures stop fitting into a single packet.
+ * <p>
+ * Body is {@code long size | int blockSize | int count | count x (int checksum | 16 bytes hash)}.
+ *
+ * @see cloud.storage.data.Cmd#SYNC_SIGNATURES
+ */
+public class BlockSignatures implements Field {
+    /**
+     * Length of a block hash in bytes.
+     */
+    public static final int HASH_LENGTH = 16;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_COUNT = 256 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final String ALGORITHM = "MD5";
+
+    private final long size;
+    private final int blockSize;
+    private final int[] checksums;
+    private final byte[] hashes;
+
+    private BlockSignatures(long size, int blockSize, int[] checksums, byte[] hashes) {
+        this.size = size;
+        this.blockSize = blockSize;
+        this.checksums = checksums;
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return size of the blocks of a file of the size.
+     */
+    public static int getBlockSize(long size) {
+        long blockSize = Math.max((long) Math.ceil(Math.sqrt(size)), (size + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT);
+        return (int) Math.max(MIN_BLOCK_SIZE, blockSize);
+    }
+
+    /**
+     * Reads the file and computes the signatures of its blocks.
+     *
+     * @param size number of bytes of the file to sign.
+     */
+    public static BlockSignatures compute(FileChannel fileChannel, long size) throws IOException {
+        int blockSize = getBlockSize(size);
+        int count = (int) ((size + blockSize - 1) / blockSize);
+        int[] checksums = new int[count];
+        byte[] hashes = new byte[count * HASH_LENGTH];
+        RollingChecksum checksum = new RollingChecksum();
+        MessageDigest digest = newDigest();
+        int blocksPerRead = Math.max(1, READ_BUFFER_SIZE / blockSize);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(blocksPerRead * blockSize);
+        for (int first = 0; first < count; first += blocksPerRead) {
+            long position = (long) first * blockSize;
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("File was truncated while signing");
+                }
+            }
+            buffer.flip();
+            for (int i = first; i < count && i < first + blocksPerRead; i++) {
+                int offset = (i - first) * blockSize;
+                int length = Math.min(blockSize, buffer.limit() - offset);
+                checksum.reset(buffer, offset, length);
+                checksums[i] = checksum.getValue();
+                digest.update(buffer.slice(offset, length));
+                System.arraycopy(digest.digest(), 0, hashes, i * HASH_LENGTH, HASH_LENGTH);
+            }
+        }
+        return new BlockSignatures(size, blockSize, checksums, hashes);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body is malformed.
+     */
+    public static BlockSignatures fromBytes(ByteBuffer byteBuffer) {
+        long size = byteBuffer.getLong();
+        int blockSize = byteBuffer.getInt();
+        int count = byteBuffer.getInt();
+        if (size < 0 || blockSize <= 0 || count < 0 || count != (size + blockSize - 1) / blockSize
+                || count > byteBuffer.remaining() / (Integer.BYTES + HASH_LENGTH)) {
+            throw new IllegalArgumentException("Malformed block signatures");
+        }
+        int[] checksums = new int[count];
+        byte[] hashes = new byte[count * HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = byteBuffer.getInt();
+            byteBuffer.get(hashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        return new BlockSignatures(size, blockSize, checksums, hashes);
+    }
+
+    /**
+     * @return size of the signed file.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return checksums.length;
+    }
+
+    /**
+     * @return length of the block with the index, only the last one may be shorter than the block size.
+     */
+    public int getBlockLength(int index) {
+        return (int) Math.min(blockSize, size - (long) index * blockSize);
+    }
+
+    public int getChecksum(int index) {
+        return checksums[index];
+    }
+
+    /**
+     * @return true if the block with the index has the hash.
+     */
+    public boolean hashEquals(int index, byte[] hash) {
+        return Arrays.equals(hashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH, hash, 0, HASH_LENGTH);
+    }
+
+    /**
+     * @return hash of the bytes in the same form as the hashes of the blocks.
+     */
+    public static byte[] hash(ByteBuffer data) {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    @Override
+    public int getByteLength() {
+        return Long.BYTES + Integer.BYTES + Integer.BYTES + checksums.length * (Integer.BYTES + HASH_LENGTH);
+    }
+
+    @Override
+    public byte[] getBytes() {
+        byte[] bytes = new byte[getByteLength()];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes)
+                .putLong(size)
+                .putInt(blockSize)
+                .putInt(checksums.length);
+        for (int i = 0; i < checksums.length; i++) {
+            buffer.putInt(checksums[i]).put(hashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeLong(size);
+        out.writeInt(blockSize);
+        out.writeInt(checksums.length);
+        for (int i = 0; i < checksums.length; i++) {
+            out.writeInt(checksums[i]);
+            out.writeBytes(hashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+    }
+}
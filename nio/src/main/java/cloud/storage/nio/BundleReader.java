@@ -0,0 +1,129 @@
+package cloud.storage.nio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental reader of a bundle: a tar-like stream of files sent in {@link cloud.storage.data.Cmd#BUNDLE_DATA}
+ * payloads, so many files take a single request instead of a round trip each.
+ * <p>
+ * Every file is a record {@code int path length | path | long size | content}, where the path is UTF-8
+ * and relative to the folder of the bundle, and a record with an empty path ends the bundle.
+ * Records are not aligned with payloads: a payload may hold many small files or a part of a large one,
+ * so the content is passed to the {@link Listener} as it arrives and is never held in memory as a whole.
+ */
+public class BundleReader {
+    /**
+     * Maximum length of the path of a file in bytes.
+     */
+    public static final int MAX_PATH_LENGTH = 4096;
+    private static final int NO_ENTRY = -1;
+
+    private final Listener listener;
+    private final ByteBuf header = Unpooled.buffer(Integer.BYTES + Long.BYTES);
+    private long remaining = NO_ENTRY;
+    private boolean ended;
+
+    /**
+     * Gets the files of the bundle.
+     */
+    public interface Listener {
+        void startEntry(String path, long size);
+
+        /**
+         * @param data next bytes of the content of the current file, valid only during the call.
+         */
+        void entryData(ByteBuf data);
+
+        void endEntry();
+
+        void endBundle();
+    }
+
+    public BundleReader(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the record ending the bundle was read.
+     */
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Reads all the readable bytes, passing the files to the listener.
+     *
+     * @throws IllegalArgumentException if the bundle is malformed.
+     */
+    public void read(ByteBuf in) {
+        while (in.isReadable()) {
+            if (ended) {
+                throw new IllegalArgumentException("Data after the end of the bundle");
+            }
+            if (remaining == NO_ENTRY) {
+                if (!readHeader(in)) {
+                    return;
+                }
+                continue;
+            }
+            int length = (int) Math.min(remaining, in.readableBytes());
+            listener.entryData(in.readSlice(length));
+            remaining -= length;
+            if (remaining == 0) {
+                remaining = NO_ENTRY;
+                listener.endEntry();
+            }
+        }
+    }
+
+    /**
+     * Collects the header of the next record, which may be split between payloads.
+     *
+     * @return true if the whole header was read.
+     */
+    private boolean readHeader(ByteBuf in) {
+        if (!collect(in, Integer.BYTES)) {
+            return false;
+        }
+        int pathLength = header.getInt(0);
+        if (pathLength < 0 || pathLength > MAX_PATH_LENGTH) {
+            throw new IllegalArgumentException("Invalid path length: " + pathLength);
+        }
+        if (pathLength == 0) {
+            header.clear();
+            ended = true;
+            listener.endBundle();
+            return true;
+        }
+        if (!collect(in, Integer.BYTES + pathLength + Long.BYTES)) {
+            return false;
+        }
+        String path = header.toString(Integer.BYTES, pathLength, StandardCharsets.UTF_8);
+        long size = header.getLong(Integer.BYTES + pathLength);
+        header.clear();
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size of " + path + ": " + size);
+        }
+        listener.startEntry(path, size);
+        if (size == 0) {
+            listener.endEntry();
+        } else {
+            remaining = size;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the header has the length.
+     */
+    private boolean collect(ByteBuf in, int length) {
+        int missing = length - header.readableBytes();
+        if (missing > 0) {
+            header.writeBytes(in, Math.min(missing, in.readableBytes()));
+        }
+        return header.readableBytes() >= length;
+    }
+}
@@ -0,0 +1,88 @@
+package cloud.storage.nio;
+
+import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Data type of the result of a file of an uploaded bundle, see {@link BundleReader}.
+ * <p>
+ * Body is {@code int path length | path | byte saved | int message length | message}, the message is empty
+ * if the file is saved.
+ */
+public class BundleResult implements Field {
+    private final String path;
+    private final boolean saved;
+    private final String message;
+
+    public BundleResult(String path, boolean saved, String message) {
+        this.path = path;
+        this.saved = saved;
+        this.message = message == null ? "" : message;
+    }
+
+    /**
+     * @return path of the file in the bundle.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if the file is saved and durable.
+     */
+    public boolean isSaved() {
+        return saved;
+    }
+
+    /**
+     * @return why the file was not saved or empty string.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public int getByteLength() {
+        return Integer.BYTES + ByteBufUtil.utf8Bytes(path) + Byte.BYTES + Integer.BYTES + ByteBufUtil.utf8Bytes(message);
+    }
+
+    @Override
+    public byte[] getBytes() {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[getByteLength()];
+        ByteBuffer.wrap(bytes)
+                .putInt(pathBytes.length).put(pathBytes)
+                .put((byte) (saved ? 1 : 0))
+                .putInt(messageBytes.length).put(messageBytes);
+        return bytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeInt(ByteBufUtil.utf8Bytes(path));
+        ByteBufUtil.writeUtf8(out, path);
+        out.writeBoolean(saved);
+        out.writeInt(ByteBufUtil.utf8Bytes(message));
+        ByteBufUtil.writeUtf8(out, message);
+    }
+
+    public static BundleResult fromBytes(ByteBuffer byteBuffer) {
+        byte[] pathBytes = new byte[byteBuffer.getInt()];
+        byteBuffer.get(pathBytes);
+        boolean saved = byteBuffer.get() != 0;
+        byte[] messageBytes = new byte[byteBuffer.getInt()];
+        byteBuffer.get(messageBytes);
+        return new BundleResult(new String(pathBytes, StandardCharsets.UTF_8), saved,
+                new String(messageBytes, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return path + (saved ? " saved" : " not saved. " + message);
+    }
+}
@@ -0,0 +1,169 @@
+package cloud.storage.nio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a bundle in the format described in {@link BundleReader}, a buffer at a time.
+ * The next file is taken from the source and read only when its record is written,
+ * so a bundle of any number of files of any size takes a single buffer of memory.
+ */
+public class BundleWriter implements Closeable {
+    private final EntrySource source;
+    private Entry entry;
+    private long position;
+    private boolean ended;
+    private long files;
+    private long bytes;
+
+    /**
+     * File to write to the bundle.
+     */
+    public interface Entry extends Closeable {
+        /**
+         * @return path of the file relative to the folder of the bundle, with {@code /} separators.
+         */
+        String getPath();
+
+        long getSize();
+
+        /**
+         * Appends the bytes of the file to the buffer.
+         */
+        void read(ByteBuf out, long position, int length) throws IOException;
+    }
+
+    /**
+     * Files of the bundle.
+     */
+    public interface EntrySource {
+        /**
+         * @return next file or null if there are no more.
+         */
+        Entry next() throws IOException;
+    }
+
+    public BundleWriter(EntrySource source) {
+        this.source = source;
+    }
+
+    /**
+     * Writes the next records to the buffer, the last record may be cut and continued by the next call.
+     *
+     * @param maxBytes number of bytes to write, the header of a record may exceed it.
+     * @return false if the bundle is written to the end.
+     */
+    public boolean fill(ByteBuf out, int maxBytes) throws IOException {
+        int limit = out.writerIndex() + maxBytes;
+        while (!ended && out.writerIndex() < limit) {
+            if (entry == null) {
+                entry = source.next();
+                if (entry == null) {
+                    out.writeInt(0);
+                    ended = true;
+                    break;
+                }
+                writeHeader(out, entry.getPath(), entry.getSize());
+                position = 0;
+            }
+            int length = (int) Math.min(entry.getSize() - position, Math.max(0, limit - out.writerIndex()));
+            if (length > 0) {
+                entry.read(out, position, length);
+                position += length;
+                bytes += length;
+            }
+            if (position == entry.getSize()) {
+                entry.close();
+                entry = null;
+                files++;
+            }
+        }
+        return !ended;
+    }
+
+    private static void writeHeader(ByteBuf out, String path, long size) {
+        int pathLength = ByteBufUtil.utf8Bytes(path);
+        if (pathLength == 0 || pathLength > BundleReader.MAX_PATH_LENGTH) {
+            throw new IllegalArgumentException("Invalid path length of " + path + ": " + pathLength);
+        }
+        out.writeInt(pathLength);
+        ByteBufUtil.writeUtf8(out, path);
+        out.writeLong(size);
+    }
+
+    /**
+     * @return number of files written completely.
+     */
+    public long getFiles() {
+        return files;
+    }
+
+    /**
+     * @return number of content bytes written.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Closes the file being written, e.g. if the bundle is stopped.
+     */
+    @Override
+    public void close() {
+        if (entry != null) {
+            try {
+                entry.close();
+            } catch (IOException ignored) {
+            }
+            entry = null;
+        }
+    }
+
+    /**
+     * @param path    path of the file in the bundle.
+     * @param channel open file, closed when its record is written.
+     * @return entry with the current content of the file.
+     */
+    public static Entry fileEntry(String path, FileChannel channel) throws IOException {
+        long size;
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Entry() {
+            @Override
+            public String getPath() {
+                return path;
+            }
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public void read(ByteBuf out, long position, int length) throws IOException {
+                int read = 0;
+                while (read < length) {
+                    int bytes = out.writeBytes(channel, position + read, length - read);
+                    if (bytes < 0) {
+                        throw new EOFException("File " + path + " was truncated while reading");
+                    }
+                    read += bytes;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,178 @@
+package cloud.storage.nio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Encodes and decodes bodies of {@link cloud.storage.data.Cmd#UPLOAD_CHUNK}
+ * and {@link cloud.storage.data.Cmd#DOWNLOAD_CHUNK} payloads of a single transfer
+ * and counts how much the compression saved and cost.
+ * <p>
+ * Chunk body is {@code long offset | byte compression | data} for uncompressed chunks
+ * and {@code long offset | byte compression | int length | compressed data} for compressed ones.
+ * The first chunk is sampled, and if it does not compress well (e.g. JPEG or zip content)
+ * the rest of the transfer is sent as it is.
+ * Every chunk which does not get smaller is sent uncompressed too.
+ */
+public class ChunkCodec {
+    /**
+     * Length of the header of an uncompressed chunk body.
+     */
+    public static final int HEADER_LENGTH = Long.BYTES + Byte.BYTES;
+    private static final int COMPRESSED_HEADER_LENGTH = HEADER_LENGTH + Integer.BYTES;
+    private static final int MAX_CHUNK_LENGTH = 1024 * 1024;
+    private static final int SAMPLE_LENGTH = 16 * 1024;
+    private static final double MIN_SAMPLE_SAVING = 0.1;
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final Compression negotiated;
+    private Compression compression;
+    private boolean sampled;
+    private long rawBytes;
+    private long wireBytes;
+    private long cpuNanos;
+
+    /**
+     * @param compression compression negotiated for the channel.
+     */
+    public ChunkCodec(Compression compression) {
+        this.negotiated = compression;
+        this.compression = compression;
+        this.sampled = compression == Compression.NONE;
+    }
+
+    /**
+     * @return true if the following chunks are going to be compressed,
+     * false if they may be sent as they are, without passing through {@link #encode}.
+     */
+    public boolean isCompressing() {
+        return !sampled || compression != Compression.NONE;
+    }
+
+    /**
+     * Writes the header of an uncompressed chunk, which data is sent separately.
+     */
+    public void writeHeader(ByteBuf out, long offset, int length) {
+        out.writeLong(offset);
+        out.writeByte(Compression.NONE.getVal());
+        count(length, HEADER_LENGTH + length);
+    }
+
+    /**
+     * Makes the chunk body, compressed if it is worth it.
+     *
+     * @param data chunk data, released by this method.
+     * @return chunk body, the caller has to release it.
+     */
+    public ByteBuf encode(ByteBufAllocator alloc, long offset, ByteBuf data) {
+        try {
+            if (!sampled) {
+                sample(alloc, data);
+            }
+            if (compression != Compression.NONE) {
+                long start = cpuTime();
+                ByteBuf compressed = compression.compress(alloc, data);
+                cpuNanos += cpuTime() - start;
+                if (compressed.readableBytes() < data.readableBytes()) {
+                    ByteBuf header = alloc.buffer(COMPRESSED_HEADER_LENGTH)
+                            .writeLong(offset)
+                            .writeByte(compression.getVal())
+                            .writeInt(data.readableBytes());
+                    count(data.readableBytes(), COMPRESSED_HEADER_LENGTH + compressed.readableBytes());
+                    return alloc.compositeBuffer(2).addComponents(true, header, compressed);
+                }
+                compressed.release();
+            }
+            ByteBuf header = alloc.buffer(HEADER_LENGTH);
+            writeHeader(header, offset, data.readableBytes());
+            return alloc.compositeBuffer(2).addComponents(true, header, data.retain());
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Turns the compression off for the whole transfer if the beginning of the data does not compress well.
+     */
+    private void sample(ByteBufAllocator alloc, ByteBuf data) {
+        sampled = true;
+        ByteBuf sample = data.slice(data.readerIndex(), Math.min(SAMPLE_LENGTH, data.readableBytes()));
+        long start = cpuTime();
+        ByteBuf compressed = compression.compress(alloc, sample);
+        cpuNanos += cpuTime() - start;
+        if (compressed.readableBytes() > sample.readableBytes() * (1 - MIN_SAMPLE_SAVING)) {
+            compression = Compression.NONE;
+        }
+        compressed.release();
+    }
+
+    /**
+     * Same as {@link #decodeChunk} but counts the transfer statistics.
+     */
+    public ByteBuf decode(ByteBufAllocator alloc, ByteBuf body) {
+        int wireLength = Long.BYTES + body.readableBytes();
+        long start = cpuTime();
+        ByteBuf data = decodeChunk(alloc, body);
+        cpuNanos += cpuTime() - start;
+        count(data.readableBytes(), wireLength);
+        return data;
+    }
+
+    /**
+     * Reads the data of the chunk.
+     *
+     * @param body chunk body which offset is already read.
+     * @return chunk data, the caller has to release it.
+     * @throws IllegalArgumentException if the body is malformed.
+     */
+    public static ByteBuf decodeChunk(ByteBufAllocator alloc, ByteBuf body) {
+        Compression compression = Compression.fromVal(body.readByte());
+        if (compression == null) {
+            throw new IllegalArgumentException("Unknown compression of the chunk");
+        }
+        if (compression == Compression.NONE) {
+            return body.readRetainedSlice(body.readableBytes());
+        }
+        int length = body.readInt();
+        if (length < 0 || length > MAX_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("Invalid chunk length: " + length);
+        }
+        // direct, so that it can be written to a file without a copy
+        ByteBuf data = alloc.ioBuffer(length, length);
+        try {
+            compression.decompress(body, data);
+        } catch (RuntimeException e) {
+            data.release();
+            throw new IllegalArgumentException("Malformed compressed chunk: " + e.getMessage(), e);
+        }
+        if (data.readableBytes() != length) {
+            data.release();
+            throw new IllegalArgumentException("Compressed chunk is shorter than declared");
+        }
+        return data;
+    }
+
+    private void count(int rawLength, int wireLength) {
+        rawBytes += rawLength;
+        wireBytes += wireLength;
+    }
+
+    private static long cpuTime() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * @return compression ratio and CPU time spent on compression of the transfer.
+     */
+    public String getReport() {
+        String compressionName = negotiated == compression || negotiated == Compression.NONE
+                ? compression.name()
+                : negotiated.name() + " skipped, data is not compressible";
+        return String.format("Compression %s: %d bytes of data, %d bytes on the wire (ratio %.2f), CPU time %d ms",
+                compressionName, rawBytes, wireBytes,
+                wireBytes == 0 ? 1.0 : (double) rawBytes / wireBytes, cpuNanos / 1_000_000);
+    }
+}
@@ -0,0 +1,178 @@
+package cloud.storage.nio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.compression.Snappy;
+import io.netty.util.AttributeKey;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Enum of compression algorithms which may be applied to file chunks on the wire.
+ * The algorithm is negotiated once per connection with {@link cloud.storage.data.Cmd#COMPRESSION}:
+ * the client offers the algorithms it wants in the order of preference and the server picks the first one it knows.
+ *
+ * @see ChunkCodec
+ */
+public enum Compression {
+    NONE((byte) 0) {
+        @Override
+        ByteBuf compress(ByteBufAllocator alloc, ByteBuf data) {
+            return data.retainedDuplicate();
+        }
+
+        @Override
+        void decompress(ByteBuf compressed, ByteBuf out) {
+            out.writeBytes(compressed);
+        }
+    },
+
+    /**
+     * Snappy can't compress more than {@link #SNAPPY_BLOCK_LENGTH} bytes at once,
+     * so the data is split into blocks and every block is prefixed with its compressed length.
+     */
+    SNAPPY((byte) 1) {
+        @Override
+        ByteBuf compress(ByteBufAllocator alloc, ByteBuf data) {
+            ByteBuf out = alloc.buffer(data.readableBytes());
+            try {
+                Snappy snappy = new Snappy();
+                ByteBuf in = data.duplicate();
+                while (in.isReadable()) {
+                    int lengthIndex = out.writerIndex();
+                    out.writeInt(0);
+                    int blockLength = Math.min(SNAPPY_BLOCK_LENGTH, in.readableBytes());
+                    snappy.encode(in.readSlice(blockLength), out, blockLength);
+                    snappy.reset();
+                    out.setInt(lengthIndex, out.writerIndex() - lengthIndex - Integer.BYTES);
+                }
+            } catch (RuntimeException e) {
+                out.release();
+                throw e;
+            }
+            return out;
+        }
+
+        @Override
+        void decompress(ByteBuf compressed, ByteBuf out) {
+            Snappy snappy = new Snappy();
+            while (compressed.isReadable()) {
+                snappy.decode(compressed.readSlice(compressed.readInt()), out);
+                snappy.reset();
+            }
+        }
+    },
+
+    DEFLATE((byte) 2) {
+        @Override
+        ByteBuf compress(ByteBufAllocator alloc, ByteBuf data) {
+            ByteBuf out = alloc.buffer(data.readableBytes());
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data.nioBuffer());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.ensureWritable(DEFLATE_STEP);
+                    ByteBuffer outBuffer = out.nioBuffer(out.writerIndex(), out.writableBytes());
+                    out.writerIndex(out.writerIndex() + deflater.deflate(outBuffer));
+                }
+            } catch (RuntimeException e) {
+                out.release();
+                throw e;
+            } finally {
+                deflater.end();
+            }
+            return out;
+        }
+
+        @Override
+        void decompress(ByteBuf compressed, ByteBuf out) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed.nioBuffer());
+                while (!inflater.finished() && !inflater.needsInput() && out.isWritable()) {
+                    ByteBuffer outBuffer = out.nioBuffer(out.writerIndex(), out.writableBytes());
+                    out.writerIndex(out.writerIndex() + inflater.inflate(outBuffer));
+                }
+                if (!inflater.finished()) {
+                    throw new IllegalArgumentException("Compressed chunk is longer than declared");
+                }
+                compressed.skipBytes(compressed.readableBytes());
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Malformed compressed chunk", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    private static final int SNAPPY_BLOCK_LENGTH = Short.MAX_VALUE;
+    private static final int DEFLATE_STEP = 4096;
+    private static final Compression[] VALUES = values();
+    private static final AttributeKey<Compression> CHANNEL_COMPRESSION = AttributeKey.valueOf("compression");
+
+    private final byte val;
+
+    Compression(byte val) {
+        this.val = val;
+    }
+
+    public byte getVal() {
+        return val;
+    }
+
+    /**
+     * Compresses readable bytes of the data without moving its reader index.
+     *
+     * @return new buffer with compressed bytes, the caller has to release it.
+     */
+    abstract ByteBuf compress(ByteBufAllocator alloc, ByteBuf data);
+
+    /**
+     * Decompresses all readable bytes of the compressed buffer into the out buffer,
+     * which has to be able to take the whole result without growing.
+     */
+    abstract void decompress(ByteBuf compressed, ByteBuf out);
+
+    /**
+     * @param val byte representation of the compression.
+     * @return compression or null if it is unknown.
+     */
+    public static Compression fromVal(byte val) {
+        for (Compression compression : VALUES) {
+            if (compression.val == val) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name case-insensitive name of the compression.
+     * @return compression with such name.
+     * @throws IllegalArgumentException if there is no such compression.
+     */
+    public static Compression getCompression(String name) {
+        return valueOf(name.toUpperCase());
+    }
+
+    /**
+     * @param channel channel to send chunks to.
+     * @return compression negotiated for the channel or {@link #NONE} if there was no negotiation.
+     */
+    public static Compression get(Channel channel) {
+        Compression compression = channel.attr(CHANNEL_COMPRESSION).get();
+        return compression == null ? NONE : compression;
+    }
+
+    /**
+     * Remembers the compression negotiated for the channel.
+     */
+    public static void set(Channel channel, Compression compression) {
+        channel.attr(CHANNEL_COMPRESSION).set(compression);
+    }
+}
@@ -0,0 +1,94 @@
+package cloud.storage.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splitting of files into fixed-size chunks identified by their SHA-256 hashes,
+ * which the client and the server use to find out which parts of a file the server has already.
+ */
+public final class ContentChunks {
+    /**
+     * Size of every chunk but the last one, which may be shorter.
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    /**
+     * Length of a chunk hash in bytes.
+     */
+    public static final int HASH_LENGTH = 32;
+    /**
+     * Maximum number of chunk hashes sent with an upload request: 2 MiB of hashes of a file of up to 64 GiB,
+     * so the request fits in a packet. Larger files are uploaded without deduplication and are not hashed by the client.
+     */
+    public static final int MAX_HASHED_CHUNKS = 64 * 1024;
+    private static final String ALGORITHM = "SHA-256";
+
+    private ContentChunks() {
+    }
+
+    public static int getChunkCount(long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * @return true if the chunk hashes of a file of the size are sent with its upload request.
+     */
+    public static boolean isHashed(long size) {
+        return size <= (long) MAX_HASHED_CHUNKS * CHUNK_SIZE;
+    }
+
+    /**
+     * @return length of the chunk with the index in a file of the size.
+     */
+    public static int getChunkLength(long size, int index) {
+        return (int) Math.min(CHUNK_SIZE, size - (long) index * CHUNK_SIZE);
+    }
+
+    /**
+     * Reads the file and hashes every chunk of it.
+     *
+     * @param size number of bytes of the file to hash.
+     * @return hashes of the chunks in order.
+     */
+    public static List<byte[]> hash(FileChannel fileChannel, long size) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        int count = getChunkCount(size);
+        List<byte[]> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long position = (long) i * CHUNK_SIZE;
+            buffer.clear().limit(getChunkLength(size, i));
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("File was truncated while hashing");
+                }
+            }
+            digest.update(buffer.flip());
+            hashes.add(digest.digest());
+        }
+        return hashes;
+    }
+
+    /**
+     * @return hash identifying the whole content by the hashes of its chunks.
+     */
+    public static byte[] hashOfHashes(List<byte[]> hashes) {
+        MessageDigest digest = newDigest();
+        hashes.forEach(digest::update);
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package cloud.storage.nio;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Instructions rebuilding a new version of a file from the {@link BlockSignatures blocks} of the old one.
+ * Body of {@link cloud.storage.data.Cmd#SYNC_DELTA} is a sequence of instructions, applied in order:
+ * <ul>
+ *     <li>{@code byte COPY | int firstBlock | int count} appends consecutive blocks of the old version;</li>
+ *     <li>{@code byte DATA | int length | data} appends literal bytes.</li>
+ * </ul>
+ * Body of {@link cloud.storage.data.Cmd#SYNC_COMMIT} is {@code long size | SHA-256 of the new version},
+ * so the server can tell if the result is not what the client has, e.g. if the old version changed meanwhile.
+ */
+public final class Delta {
+    public static final byte COPY = 0;
+    public static final byte DATA = 1;
+    /**
+     * Maximum length of literal bytes in a single instruction.
+     */
+    public static final int MAX_DATA_LENGTH = 256 * 1024;
+    /**
+     * Length of the hash of the new version in bytes.
+     */
+    public static final int HASH_LENGTH = 32;
+    private static final String ALGORITHM = "SHA-256";
+
+    private Delta() {
+    }
+
+    public static void writeCopy(ByteBuf out, int firstBlock, int count) {
+        out.writeByte(COPY);
+        out.writeInt(firstBlock);
+        out.writeInt(count);
+    }
+
+    /**
+     * Writes remaining bytes of the data, which must not be longer than {@link #MAX_DATA_LENGTH}.
+     */
+    public static void writeData(ByteBuf out, ByteBuffer data) {
+        out.writeByte(DATA);
+        out.writeInt(data.remaining());
+        out.writeBytes(data);
+    }
+
+    /**
+     * @return digest for the hash of the new version.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package cloud.storage.nio;
+
+import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Data type requesting a byte range of a file on the server.
+ * The server replies with the whole file size and then sends the range in
+ * {@link cloud.storage.data.Cmd#DOWNLOAD_CHUNK} payloads.
+ */
+public class DownloadRequest implements Field {
+    /**
+     * Length of the range which lasts till the end of the file.
+     */
+    public static final long TILL_END = -1;
+
+    private final String path;
+    private final long offset;
+    private final long length;
+
+    public DownloadRequest(String path, long offset, long length) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @param path path of the file to download entirely.
+     */
+    public DownloadRequest(String path) {
+        this(path, 0, TILL_END);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int getByteLength() {
+        return Integer.BYTES + ByteBufUtil.utf8Bytes(path) + Long.BYTES + Long.BYTES;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[getByteLength()];
+        ByteBuffer.wrap(bytes)
+                .putInt(pathBytes.length).put(pathBytes)
+                .putLong(offset)
+                .putLong(length);
+        return bytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeInt(ByteBufUtil.utf8Bytes(path));
+        ByteBufUtil.writeUtf8(out, path);
+        out.writeLong(offset);
+        out.writeLong(length);
+    }
+
+    public static DownloadRequest fromBytes(ByteBuffer byteBuffer) {
+        byte[] pathBytes = new byte[byteBuffer.getInt()];
+        byteBuffer.get(pathBytes);
+        long offset = byteBuffer.getLong();
+        long length = byteBuffer.getLong();
+        return new DownloadRequest(new String(pathBytes, StandardCharsets.UTF_8), offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return "Download " + path + " from " + offset + (length == TILL_END ? "" : " (" + length + " bytes)");
+    }
+}
@@ -0,0 +1,105 @@
+package cloud.storage.nio;
+
+import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data type of a page of folder entries, the reply to {@link ListRequest}.
+ * The cursor continues the listing with the next request, it is {@link ListRequest#NO_CURSOR} on the last page.
+ * <p>
+ * Body is {@code long cursor | int count | count x (int path length | path | byte folder | long size | long modified)}.
+ */
+public class ListPage implements Field {
+    private final long cursor;
+    private final List<Entry> entries;
+
+    /**
+     * Entry of a folder.
+     *
+     * @param path     path of the entry relative to the listed folder, with '/' separators.
+     * @param folder   true for folders.
+     * @param size     size of the file in bytes, 0 for folders.
+     * @param modified last modification time in milliseconds since the epoch.
+     */
+    public record Entry(String path, boolean folder, long size, long modified) {
+        private int getByteLength() {
+            return Integer.BYTES + ByteBufUtil.utf8Bytes(path) + Byte.BYTES + Long.BYTES + Long.BYTES;
+        }
+    }
+
+    public ListPage(long cursor, List<Entry> entries) {
+        this.cursor = cursor;
+        this.entries = entries;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public int getByteLength() {
+        return Long.BYTES + Integer.BYTES + entries.stream().mapToInt(Entry::getByteLength).sum();
+    }
+
+    @Override
+    public byte[] getBytes() {
+        byte[] bytes = new byte[getByteLength()];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes)
+                .putLong(cursor)
+                .putInt(entries.size());
+        for (Entry entry : entries) {
+            byte[] pathBytes = entry.path().getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(pathBytes.length).put(pathBytes)
+                    .put((byte) (entry.folder() ? 1 : 0))
+                    .putLong(entry.size())
+                    .putLong(entry.modified());
+        }
+        return bytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeLong(cursor);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeInt(ByteBufUtil.utf8Bytes(entry.path()));
+            ByteBufUtil.writeUtf8(out, entry.path());
+            out.writeBoolean(entry.folder());
+            out.writeLong(entry.size());
+            out.writeLong(entry.modified());
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body is malformed.
+     */
+    public static ListPage fromBytes(ByteBuffer byteBuffer) {
+        long cursor = byteBuffer.getLong();
+        int count = byteBuffer.getInt();
+        if (count < 0 || count > byteBuffer.remaining() / (Integer.BYTES + Byte.BYTES + 2 * Long.BYTES)) {
+            throw new IllegalArgumentException("Invalid number of entries: " + count);
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int pathLength = byteBuffer.getInt();
+            if (pathLength < 0 || pathLength > byteBuffer.remaining()) {
+                throw new IllegalArgumentException("Invalid path length: " + pathLength);
+            }
+            byte[] pathBytes = new byte[pathLength];
+            byteBuffer.get(pathBytes);
+            entries.add(new Entry(new String(pathBytes, StandardCharsets.UTF_8), byteBuffer.get() != 0,
+                    byteBuffer.getLong(), byteBuffer.getLong()));
+        }
+        return new ListPage(cursor, entries);
+    }
+}
@@ -0,0 +1,82 @@
+package cloud.storage.nio;
+
+import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Data type requesting a page of the entries of a folder on the server.
+ * The first request has no cursor and opens the listing, the following ones pass the cursor
+ * of the previous {@link ListPage} to continue it.
+ */
+public class ListRequest implements Field {
+    /**
+     * Cursor of a request opening a new listing.
+     */
+    public static final long NO_CURSOR = 0;
+
+    private final String path;
+    private final boolean recursive;
+    private final long cursor;
+
+    public ListRequest(String path, boolean recursive, long cursor) {
+        this.path = path;
+        this.recursive = recursive;
+        this.cursor = cursor;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if the entries of the subfolders are listed too.
+     */
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public int getByteLength() {
+        return Integer.BYTES + ByteBufUtil.utf8Bytes(path) + Byte.BYTES + Long.BYTES;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[getByteLength()];
+        ByteBuffer.wrap(bytes)
+                .putInt(pathBytes.length).put(pathBytes)
+                .put((byte) (recursive ? 1 : 0))
+                .putLong(cursor);
+        return bytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeInt(ByteBufUtil.utf8Bytes(path));
+        ByteBufUtil.writeUtf8(out, path);
+        out.writeBoolean(recursive);
+        out.writeLong(cursor);
+    }
+
+    public static ListRequest fromBytes(ByteBuffer byteBuffer) {
+        byte[] pathBytes = new byte[byteBuffer.getInt()];
+        byteBuffer.get(pathBytes);
+        boolean recursive = byteBuffer.get() != 0;
+        long cursor = byteBuffer.getLong();
+        return new ListRequest(new String(pathBytes, StandardCharsets.UTF_8), recursive, cursor);
+    }
+
+    @Override
+    public String toString() {
+        return "List " + path + (recursive ? " recursively" : "") + (cursor == NO_CURSOR ? "" : " from " + cursor);
+    }
+}
@@ -1,18 +1,43 @@
 package cloud.storage.nio;
 
+import cloud.storage.data.ByteBufPayload;
 import cloud.storage.data.Packet;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.List;
 
 /**
- * Default {@link MessageToByteEncoder} to encode outbound packets in bytes
+ * Default {@link MessageToMessageEncoder} to encode outbound packets in bytes.
+ * <p>
+ * Packets are written straight into a pooled buffer of the exact size with {@link Packet#writeTo(ByteBuf)}.
+ * Large {@link ByteBufPayload} bodies are not copied: the encoder writes only the header
+ * and joins it with the body in a composite buffer.
+ * The encoder takes ownership of {@link ByteBufPayload} and releases it.
  */
-public class PacketEncoder extends MessageToByteEncoder<Packet> {
+public class PacketEncoder extends MessageToMessageEncoder<Packet> {
+    /**
+     * Bodies of at least this length are appended to the header instead of being copied.
+     */
+    private static final int COMPOSITE_THRESHOLD = 1024;
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, Packet msg, ByteBuf out) {
-        out.writeBytes(msg.getBytes());
+    protected void encode(ChannelHandlerContext ctx, Packet msg, List<Object> out) {
+        if (msg.payload instanceof ByteBufPayload payload && payload.body.readableBytes() >= COMPOSITE_THRESHOLD) {
+            ByteBuf header = ctx.alloc().ioBuffer(Integer.BYTES + payload.getHeaderByteLength());
+            header.writeInt(msg.payloadByteLength);
+            payload.writeHeaderTo(header);
+            out.add(ctx.alloc().compositeBuffer(2).addComponents(true, header, payload.body));
+            return;
+        }
+        try {
+            ByteBuf buf = ctx.alloc().ioBuffer(msg.getByteLength());
+            msg.writeTo(buf);
+            out.add(buf);
+        } finally {
+            ReferenceCountUtil.release(msg.payload);
+        }
     }
-
 }
@@ -0,0 +1,65 @@
+package cloud.storage.nio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.util.List;
+
+/**
+ * Default {@link ByteToMessageDecoder} responsible for collecting whole inbound {@link cloud.storage.data.Packet} bytes
+ * to pass {@link cloud.storage.data.Payload} data up the pipeline.
+ * <p>
+ * Waits until the whole frame is accumulated without re-reading it on every partial read
+ * and passes it on as a retained slice of the cumulation buffer, so frame bytes are not copied.
+ * Frames longer than the maximum frame length are rejected before anything is allocated for them,
+ * and so are frames too short to hold the request id and the command of a payload.
+ */
+public class PacketFrameDecoder extends ByteToMessageDecoder {
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+    private static final int LENGTH_FIELD_LENGTH = Integer.BYTES;
+    /**
+     * Length of the request id and the command every payload starts with.
+     */
+    private static final int MIN_FRAME_LENGTH = Integer.BYTES + Byte.BYTES;
+
+    private final int maxFrameLength;
+
+    public PacketFrameDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param maxFrameLength maximum length of the packet payload, longer frames are treated as corrupted.
+     */
+    public PacketFrameDecoder(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive: " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (in.readableBytes() < LENGTH_FIELD_LENGTH) {
+            return;
+        }
+        int length = in.getInt(in.readerIndex());
+        if (length < MIN_FRAME_LENGTH) {
+            in.skipBytes(in.readableBytes());
+            throw new CorruptedFrameException("Invalid frame length: " + length
+                    + ", a frame has at least " + MIN_FRAME_LENGTH + " bytes of request id and command");
+        }
+        if (length > maxFrameLength) {
+            in.skipBytes(in.readableBytes());
+            throw new TooLongFrameException("Frame length " + length + " exceeds the limit of " + maxFrameLength);
+        }
+        if (in.readableBytes() < LENGTH_FIELD_LENGTH + length) {
+            return;
+        }
+        in.skipBytes(LENGTH_FIELD_LENGTH);
+        out.add(in.readRetainedSlice(length));
+    }
+}
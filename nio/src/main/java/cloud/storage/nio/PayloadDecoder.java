@@ -1,7 +1,7 @@
 package cloud.storage.nio;
 
+import cloud.storage.data.ByteBufPayload;
 import cloud.storage.data.Cmd;
-import cloud.storage.data.Payload;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
@@ -9,18 +9,15 @@ import io.netty.handler.codec.MessageToMessageDecoder;
 import java.util.List;
 
 /**
- * Default {@link MessageToMessageDecoder} to decode Packet from inbound {@link ByteBuf}
+ * Default {@link MessageToMessageDecoder} to decode Packet from inbound {@link ByteBuf}.
+ * Produces {@link ByteBufPayload} sharing the frame buffer, so the command body is not copied.
  */
 public class PayloadDecoder extends MessageToMessageDecoder<ByteBuf> {
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+        int requestId = msg.readInt();
         Cmd cmd = Cmd.readCmd(msg);
-        byte[] cmdBody = null;
-        if (msg.readableBytes() > 0) {
-            cmdBody = new byte[msg.readableBytes()];
-            msg.readBytes(cmdBody);
-        }
-        out.add(new Payload(cmd, cmdBody));
-        msg.release();
+        // the frame is released after decoding, the payload keeps its own reference to the body
+        out.add(new ByteBufPayload(requestId, cmd, msg.retain()));
     }
 }
@@ -0,0 +1,73 @@
+package cloud.storage.nio;
+
+import cloud.storage.data.Payload;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inbound handler passing response payloads to the handlers of their requests by request id,
+ * so many requests may be in flight on one channel and their responses may come in any order.
+ * Payloads of unknown requests are passed up the pipeline.
+ */
+public class ResponseDispatcher extends ChannelInboundHandlerAdapter {
+    private final Map<Integer, PayloadHandler> handlers = new ConcurrentHashMap<>();
+    private final AtomicInteger lastRequestId = new AtomicInteger();
+
+    /**
+     * @param context context of any handler in the pipeline with dispatcher.
+     * @return dispatcher of the pipeline.
+     */
+    public static ResponseDispatcher get(ChannelHandlerContext context) {
+        ResponseDispatcher dispatcher = context.pipeline().get(ResponseDispatcher.class);
+        if (dispatcher == null) {
+            throw new IllegalStateException("There is no ResponseDispatcher in the pipeline");
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Registers the handler of a new request.
+     * The handler gets all the payloads with the id of the request until it is unregistered.
+     *
+     * @param handler handler of the response payloads.
+     * @return id of the new request.
+     */
+    public int register(PayloadHandler handler) {
+        int requestId;
+        do {
+            requestId = lastRequestId.incrementAndGet();
+        } while (requestId == Payload.NO_REQUEST_ID || handlers.putIfAbsent(requestId, handler) != null);
+        return requestId;
+    }
+
+    /**
+     * Stops passing payloads of the request to its handler.
+     *
+     * @param requestId id of the finished request.
+     */
+    public void unregister(int requestId) {
+        handlers.remove(requestId);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof Payload payload) {
+            PayloadHandler handler = handlers.get(payload.requestId);
+            if (handler != null) {
+                handler.handle(ctx, payload);
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        handlers.clear();
+        ctx.fireChannelInactive();
+    }
+}
@@ -0,0 +1,53 @@
+package cloud.storage.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Weak checksum of a fixed-length window of bytes, the one rsync uses:
+ * {@code a} is the sum of the bytes and {@code b} is the sum of the bytes weighted by their distance
+ * from the end of the window, both modulo 2^16.
+ * When the window slides by one byte the checksum is updated in constant time,
+ * so it may be computed at every offset of a file.
+ */
+public class RollingChecksum {
+    private static final int MASK = 0xFFFF;
+
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * Computes the checksum of a new window.
+     *
+     * @param data   buffer holding the window, its position is not changed.
+     * @param offset absolute index of the first byte of the window.
+     * @param length length of the window.
+     */
+    public void reset(ByteBuffer data, int offset, int length) {
+        this.length = length;
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data.get(offset + i) & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        a &= MASK;
+        b &= MASK;
+    }
+
+    /**
+     * Slides the window by one byte.
+     *
+     * @param out first byte of the window which leaves it.
+     * @param in  byte after the window which enters it.
+     */
+    public void roll(byte out, byte in) {
+        a = (a - (out & 0xFF) + (in & 0xFF)) & MASK;
+        b = (b - length * (out & 0xFF) + a) & MASK;
+    }
+
+    public int getValue() {
+        return a | b << 16;
+    }
+}
@@ -1,8 +1,11 @@
 package cloud.storage.nio;
 
 import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Data type containing server response of SignIn command.
@@ -65,7 +68,7 @@ public class SignInResponse implements Field {
         int length = byteBuffer.getInt();
         byte[] bytes = new byte[length];
         byteBuffer.get(bytes);
-        String stringResponse = new String(bytes);
+        String stringResponse = new String(bytes, StandardCharsets.UTF_8);
         if (status == Status.SUCCESS) {
             return success(stringResponse);
         }
@@ -74,15 +77,23 @@ public class SignInResponse implements Field {
 
     @Override
     public int getByteLength() {
-        return Status.BYTE_LENGTH + (message != null ? Integer.BYTES + message.length() : 0);
+        return Status.BYTE_LENGTH + Integer.BYTES + ByteBufUtil.utf8Bytes(message);
     }
 
     @Override
     public byte[] getBytes() {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
         byte[] bytes = new byte[getByteLength()];
         ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
         byteBuffer.put(status.val);
-        byteBuffer.putInt(message.length()).put(message.getBytes());
+        byteBuffer.putInt(messageBytes.length).put(messageBytes);
         return bytes;
     }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeByte(status.val);
+        out.writeInt(ByteBufUtil.utf8Bytes(message));
+        ByteBufUtil.writeUtf8(out, message);
+    }
 }
@@ -1,6 +1,7 @@
 package cloud.storage.nio;
 
 import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
 
 import java.nio.ByteBuffer;
 import java.util.Date;
@@ -40,7 +41,12 @@ public class TimeData implements Field {
         return ByteBuffer.allocate(getByteLength()).putLong(timestamp).array();
     }
 
-    public static TimeData fromBytes(byte[] bytes) {
-        return new TimeData(ByteBuffer.wrap(bytes).getLong());
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeLong(timestamp);
+    }
+
+    public static TimeData fromBytes(ByteBuffer byteBuffer) {
+        return new TimeData(byteBuffer.getLong());
     }
 }
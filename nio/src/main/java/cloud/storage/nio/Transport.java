@@ -0,0 +1,106 @@
+package cloud.storage.nio;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Enum of Netty transports the application may run on.
+ * Native epoll transport is used on Linux when it is available, NIO otherwise.
+ */
+public enum Transport {
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return true;
+        }
+    },
+
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return false;
+        }
+    };
+
+    /**
+     * @param threads number of threads, 0 means Netty default (twice the number of cores).
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    public abstract Class<? extends ServerChannel> getServerChannelClass();
+
+    public abstract Class<? extends SocketChannel> getChannelClass();
+
+    public abstract boolean isAvailable();
+
+    /**
+     * @return true if several server channels may be bound to the same port with {@code SO_REUSEPORT},
+     * so the kernel spreads incoming connections between them.
+     */
+    public abstract boolean supportsReusePort();
+
+    /**
+     * @return the fastest transport available on this platform.
+     */
+    public static Transport getDefault() {
+        return EPOLL.isAvailable() ? EPOLL : NIO;
+    }
+
+    /**
+     * @param name case-insensitive name of the transport.
+     * @return transport with such name if it is available or the default one.
+     * @throws IllegalArgumentException if there is no such transport.
+     */
+    public static Transport getTransport(String name) {
+        Transport transport = valueOf(name.toUpperCase());
+        return transport.isAvailable() ? transport : getDefault();
+    }
+}
@@ -0,0 +1,100 @@
+package cloud.storage.nio;
+
+import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data type opening a chunked upload: path to save file on the server, the declared size of the file
+ * and optional {@link ContentChunks} hashes of the file, so the server may tell which chunks it has already.
+ * At most {@link ContentChunks#MAX_HASHED_CHUNKS} hashes are sent, larger files are sent without them.
+ * File content follows in {@link cloud.storage.data.Cmd#UPLOAD_CHUNK} payloads
+ * and is finished by {@link cloud.storage.data.Cmd#UPLOAD_COMMIT}.
+ */
+public class UploadRequest implements Field {
+    private final String path;
+    private final long size;
+    private final List<byte[]> chunkHashes;
+
+    public UploadRequest(String path, long size) {
+        this(path, size, List.of());
+    }
+
+    public UploadRequest(String path, long size, List<byte[]> chunkHashes) {
+        this.path = path;
+        this.size = size;
+        this.chunkHashes = chunkHashes;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return hashes of the file chunks or empty list if the client did not send them.
+     */
+    public List<byte[]> getChunkHashes() {
+        return chunkHashes;
+    }
+
+    @Override
+    public int getByteLength() {
+        return Integer.BYTES + ByteBufUtil.utf8Bytes(path) + Long.BYTES
+                + Integer.BYTES + chunkHashes.size() * ContentChunks.HASH_LENGTH;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[getByteLength()];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes)
+                .putInt(pathBytes.length).put(pathBytes)
+                .putLong(size)
+                .putInt(chunkHashes.size());
+        chunkHashes.forEach(buffer::put);
+        return bytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeInt(ByteBufUtil.utf8Bytes(path));
+        ByteBufUtil.writeUtf8(out, path);
+        out.writeLong(size);
+        out.writeInt(chunkHashes.size());
+        chunkHashes.forEach(out::writeBytes);
+    }
+
+    public static UploadRequest fromBytes(ByteBuffer byteBuffer) {
+        byte[] pathBytes = new byte[byteBuffer.getInt()];
+        byteBuffer.get(pathBytes);
+        long size = byteBuffer.getLong();
+        List<byte[]> chunkHashes = new ArrayList<>();
+        if (byteBuffer.remaining() >= Integer.BYTES) {
+            int count = byteBuffer.getInt();
+            if (count < 0 || count > ContentChunks.MAX_HASHED_CHUNKS
+                    || count > byteBuffer.remaining() / ContentChunks.HASH_LENGTH) {
+                throw new IllegalArgumentException("Invalid number of chunk hashes: " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[ContentChunks.HASH_LENGTH];
+                byteBuffer.get(hash);
+                chunkHashes.add(hash);
+            }
+        }
+        return new UploadRequest(new String(pathBytes, StandardCharsets.UTF_8), size, chunkHashes);
+    }
+
+    @Override
+    public String toString() {
+        return "Upload " + path + " (" + size + " bytes)";
+    }
+}
@@ -1,8 +1,11 @@
 package cloud.storage.nio;
 
 import cloud.storage.data.Field;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Data type containing information about user authorization.
@@ -27,18 +30,28 @@ public class UserData implements Field {
 
     @Override
     public int getByteLength() {
-        return Integer.BYTES + login.getBytes().length + Integer.BYTES + password.getBytes().length;
+        return Integer.BYTES + ByteBufUtil.utf8Bytes(login) + Integer.BYTES + ByteBufUtil.utf8Bytes(password);
     }
 
     @Override
     public byte[] getBytes() {
+        byte[] loginBytes = login.getBytes(StandardCharsets.UTF_8);
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
         byte[] buf = new byte[getByteLength()];
         ByteBuffer.wrap(buf)
-                .putInt(login.length()).put(login.getBytes())
-                .putInt(password.length()).put(password.getBytes());
+                .putInt(loginBytes.length).put(loginBytes)
+                .putInt(passwordBytes.length).put(passwordBytes);
         return buf;
     }
 
+    @Override
+    public void writeTo(ByteBuf out) {
+        out.writeInt(ByteBufUtil.utf8Bytes(login));
+        ByteBufUtil.writeUtf8(out, login);
+        out.writeInt(ByteBufUtil.utf8Bytes(password));
+        ByteBufUtil.writeUtf8(out, password);
+    }
+
     public static UserData fromBytes(ByteBuffer byteBuffer) {
         String login = stringFromBytes(byteBuffer);
         String password = stringFromBytes(byteBuffer);
@@ -49,7 +62,7 @@ public class UserData implements Field {
         int length = byteBuffer.getInt();
         byte[] stringBytes = new byte[length];
         byteBuffer.get(stringBytes);
-        return new String(stringBytes);
+        return new String(stringBytes, StandardCharsets.UTF_8);
     }
 
     @Override
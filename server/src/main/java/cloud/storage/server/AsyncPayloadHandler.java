@@ -0,0 +1,28 @@
+package cloud.storage.server;
+
+import cloud.storage.data.Payload;
+import cloud.storage.nio.PayloadHandler;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Handler of requests which complete later, on another executor.
+ * {@link RequestHandler} holds back the following requests of the channel until the request is complete,
+ * so they are still handled in order of arrival, e.g. an upload sent right after sign in.
+ */
+interface AsyncPayloadHandler extends PayloadHandler {
+    /**
+     * Starts handling the inbound payload, everything needed has to be read from it before the method returns.
+     *
+     * @param context context which got the payload.
+     * @param payload payload to handle.
+     * @return stage which completes when the response is sent.
+     */
+    CompletionStage<Void> handleAsync(ChannelHandlerContext context, Payload payload);
+
+    @Override
+    default void handle(ChannelHandlerContext context, Payload payload) {
+        handleAsync(context, payload);
+    }
+}
@@ -0,0 +1,52 @@
+package cloud.storage.server;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.server.file.manager.FileManager;
+import cloud.storage.util.Pair;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class for server side inbound payloads attaching channels to sessions.
+ * Handles {@link Cmd#ATTACH_TOKEN} payloads of signed in channels by creating a token
+ * and {@link Cmd#ATTACH} payloads with the token sent by other channels of the same client,
+ * which then work on behalf of the same user.
+ */
+public class AttachHandler implements PayloadHandler {
+    private final FileManager fileManager;
+
+    public AttachHandler(FileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
+    private static Packet getPacket(int requestId, Cmd cmd, byte[] cmdBody) {
+        return new Packet(new Payload(requestId, cmd, cmdBody));
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext context, Payload payload) {
+        SocketAddress address = context.channel().remoteAddress();
+        if (payload.cmd == Cmd.ATTACH_TOKEN) {
+            Pair<String, String> result = fileManager.createAttachToken(address);
+            if (result.getFirst() == null) {
+                context.writeAndFlush(getPacket(payload.requestId, Cmd.MESSAGE, result.getSecond().getBytes()));
+            } else {
+                context.writeAndFlush(getPacket(payload.requestId, Cmd.ATTACH_TOKEN,
+                        result.getFirst().getBytes(StandardCharsets.UTF_8)));
+            }
+            return;
+        }
+        String token = payload.getBody().toString(StandardCharsets.UTF_8);
+        Pair<Boolean, String> result = fileManager.attachSession(address, token);
+        if (result.getFirst()) {
+            context.writeAndFlush(getPacket(payload.requestId, Cmd.ATTACH, new byte[0]));
+        } else {
+            context.writeAndFlush(getPacket(payload.requestId, Cmd.MESSAGE, result.getSecond().getBytes()));
+        }
+    }
+}
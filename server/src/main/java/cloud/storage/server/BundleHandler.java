@@ -0,0 +1,377 @@
+package cloud.storage.server;
+
+import cloud.storage.data.ByteBufPayload;
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.BundleReader;
+import cloud.storage.nio.BundleResult;
+import cloud.storage.nio.BundleWriter;
+import cloud.storage.nio.DownloadRequest;
+import cloud.storage.nio.ListPage;
+import cloud.storage.nio.ListRequest;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.server.file.manager.FileManager;
+import cloud.storage.server.file.manager.MappedFile;
+import cloud.storage.util.Pair;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class for server side inbound bundle payloads handling: many files in a single request,
+ * in the format described in {@link BundleReader}, instead of a round trip per file.
+ * <p>
+ * {@link Cmd#BUNDLE_UPLOAD} with the path of a folder opens an upload of a bundle,
+ * its files follow in {@link Cmd#BUNDLE_DATA} payloads with the same request id.
+ * Every file is uploaded as soon as its bytes arrive, the same way {@link UploadHandler} uploads it:
+ * written to a partial file right from the inbound buffer and committed in an fsync batch,
+ * while the next files are being written already. Every file is answered with {@link Cmd#BUNDLE_RESULT},
+ * and the bundle with {@link Cmd#BUNDLE_UPLOAD} summary when all of its files are committed.
+ * <p>
+ * {@link Cmd#BUNDLE_DOWNLOAD} with the path of a folder is answered with the bundle of the files of the folder
+ * and its subfolders in {@link Cmd#BUNDLE_DATA} payloads followed by {@link Cmd#BUNDLE_DOWNLOAD} summary.
+ * The folder is listed page by page and the next payload is filled only when the previous one has been sent,
+ * so neither the list of the files nor their content is held in memory.
+ */
+@Slf4j
+public class BundleHandler implements PayloadHandler {
+    private static final int DATA_SIZE = 256 * 1024;
+    private final FileManager fileManager;
+    private final Map<Integer, BundleUpload> uploads = new HashMap<>();
+
+    public BundleHandler(FileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
+    private static Packet getPacket(int requestId, Cmd cmd, String message) {
+        return new Packet(new Payload(requestId, cmd, message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext context, Payload payload) {
+        switch (payload.cmd) {
+            case BUNDLE_UPLOAD -> startUpload(context, payload.requestId, payload.getBody());
+            case BUNDLE_DATA -> {
+                BundleUpload upload = uploads.get(payload.requestId);
+                if (upload != null) {
+                    upload.read(payload.getBody());
+                }
+            }
+            case BUNDLE_DOWNLOAD -> startDownload(context, payload.requestId, payload.getBody());
+            default -> throw new IllegalArgumentException("Unexpected cmd: " + payload.cmd);
+        }
+    }
+
+    private static Path getFolder(ByteBuf body) {
+        try {
+            return Path.of(body.toString(StandardCharsets.UTF_8)).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private void startUpload(ChannelHandlerContext context, int requestId, ByteBuf body) {
+        Path folder = getFolder(body);
+        if (folder == null) {
+            context.writeAndFlush(getPacket(requestId, Cmd.BUNDLE_UPLOAD, "Invalid path passed."));
+            return;
+        }
+        uploads.put(requestId, new BundleUpload(context, requestId, folder));
+    }
+
+    private void startDownload(ChannelHandlerContext context, int requestId, ByteBuf body) {
+        Path folder = getFolder(body);
+        if (folder == null) {
+            context.writeAndFlush(getPacket(requestId, Cmd.BUNDLE_DOWNLOAD, "Invalid path passed."));
+            return;
+        }
+        SocketAddress address = context.channel().remoteAddress();
+        Pair<ListPage, String> page = fileManager.listFolder(address, folder, true, ListRequest.NO_CURSOR);
+        if (page.getFirst() == null) {
+            context.writeAndFlush(getPacket(requestId, Cmd.BUNDLE_DOWNLOAD,
+                    "Failed to download folder. " + page.getSecond()));
+            return;
+        }
+        new BundleSender(context, requestId, folder, page.getFirst()).operationComplete(context.newSucceededFuture());
+    }
+
+    /**
+     * Upload of a bundle: uploads its files one after another with the id of the bundle request.
+     * All the methods run on the event loop of the channel, including the completions of the commits.
+     */
+    private class BundleUpload implements BundleReader.Listener {
+        private final ChannelHandlerContext context;
+        private final SocketAddress address;
+        private final int requestId;
+        private final Path folder;
+        private final BundleReader reader = new BundleReader(this);
+        private String entryPath;
+        private boolean entryFailed;
+        private long position;
+        private long resumeOffset;
+        private int pendingCommits;
+        private long savedFiles;
+        private long failedFiles;
+        private long receivedBytes;
+
+        private BundleUpload(ChannelHandlerContext context, int requestId, Path folder) {
+            this.context = context;
+            this.address = context.channel().remoteAddress();
+            this.requestId = requestId;
+            this.folder = folder;
+        }
+
+        private void read(ByteBuf data) {
+            try {
+                reader.read(data);
+            } catch (IllegalArgumentException e) {
+                uploads.remove(requestId);
+                if (entryPath != null && !entryFailed) {
+                    fileManager.suspendUpload(address, requestId);
+                }
+                context.writeAndFlush(getPacket(requestId, Cmd.BUNDLE_UPLOAD,
+                        "Failed to upload bundle. " + e.getMessage()));
+            }
+        }
+
+        @Override
+        public void startEntry(String path, long size) {
+            entryPath = path;
+            entryFailed = false;
+            position = 0;
+            resumeOffset = 0;
+            Path entry;
+            try {
+                entry = Path.of(path).normalize();
+            } catch (InvalidPathException e) {
+                entry = null;
+            }
+            if (entry == null || entry.isAbsolute() || entry.toString().isEmpty() || entry.startsWith("..")) {
+                fail("Invalid path passed.");
+                return;
+            }
+            Pair<FileManager.UploadStart, String> result = fileManager.startUpload(address, requestId,
+                    folder.resolve(entry), size, List.of());
+            if (result.getFirst() == null) {
+                fail(result.getSecond());
+                return;
+            }
+            // the bundle carries the whole file, the bytes the server has from a suspended upload are skipped
+            resumeOffset = result.getFirst().offset();
+        }
+
+        @Override
+        public void entryData(ByteBuf data) {
+            receivedBytes += data.readableBytes();
+            if (entryFailed) {
+                return;
+            }
+            if (position < resumeOffset) {
+                int skipped = (int) Math.min(data.readableBytes(), resumeOffset - position);
+                data.skipBytes(skipped);
+                position += skipped;
+                if (!data.isReadable()) {
+                    return;
+                }
+            }
+            int length = data.readableBytes();
+            Pair<Boolean, String> result = fileManager.uploadFile(address, requestId, position, data);
+            position += length;
+            if (!result.getFirst()) {
+                fail(result.getSecond() == null ? "Upload was interrupted." : result.getSecond());
+            }
+        }
+
+        @Override
+        public void endEntry() {
+            if (entryFailed) {
+                return;
+            }
+            String path = entryPath;
+            pendingCommits++;
+            fileManager.commitUpload(address, requestId).thenAcceptAsync(result -> {
+                pendingCommits--;
+                if (result.getFirst()) {
+                    savedFiles++;
+                } else {
+                    failedFiles++;
+                }
+                context.writeAndFlush(new Packet(new Payload(requestId, Cmd.BUNDLE_RESULT,
+                        new BundleResult(path, result.getFirst(), result.getSecond()))));
+                finishIfDone();
+            }, context.executor());
+        }
+
+        @Override
+        public void endBundle() {
+            uploads.remove(requestId);
+            finishIfDone();
+        }
+
+        private void fail(String message) {
+            entryFailed = true;
+            failedFiles++;
+            context.writeAndFlush(new Packet(new Payload(requestId, Cmd.BUNDLE_RESULT,
+                    new BundleResult(entryPath, false, message))));
+        }
+
+        private void finishIfDone() {
+            if (!reader.isEnded() || pendingCommits > 0) {
+                return;
+            }
+            log.info("Bundle of {} files ({} bytes) uploaded to {}, {} failed.",
+                    savedFiles, receivedBytes, folder, failedFiles);
+            context.writeAndFlush(getPacket(requestId, Cmd.BUNDLE_UPLOAD, String.format(
+                    "Bundle uploaded: %d files saved, %d failed.", savedFiles, failedFiles)));
+        }
+    }
+
+    /**
+     * Sends the files of the folder in payloads of about the same size, the next payload is filled
+     * when the previous one has been sent. The next page of the folder is listed when the previous one is sent,
+     * and every file is opened when its record is written and closed right after that.
+     */
+    private class BundleSender implements ChannelFutureListener, BundleWriter.EntrySource {
+        private final ChannelHandlerContext context;
+        private final SocketAddress address;
+        private final int requestId;
+        private final Path folder;
+        private final BundleWriter writer = new BundleWriter(this);
+        private Iterator<ListPage.Entry> entries;
+        private long cursor;
+        private long skippedFiles;
+        private boolean done;
+
+        private BundleSender(ChannelHandlerContext context, int requestId, Path folder, ListPage firstPage) {
+            this.context = context;
+            this.address = context.channel().remoteAddress();
+            this.requestId = requestId;
+            this.folder = folder;
+            this.entries = firstPage.getEntries().iterator();
+            this.cursor = firstPage.getCursor();
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess()) {
+                close();
+                return;
+            }
+            if (done) {
+                log.info("Bundle of {} files ({} bytes) sent from {}.", writer.getFiles(), writer.getBytes(), folder);
+                context.writeAndFlush(getPacket(requestId, Cmd.BUNDLE_DOWNLOAD, String.format(
+                        "Bundle downloaded: %d files (%d bytes) sent, %d skipped.",
+                        writer.getFiles(), writer.getBytes(), skippedFiles)));
+                return;
+            }
+            ByteBuf data = context.alloc().ioBuffer(DATA_SIZE);
+            try {
+                done = !writer.fill(data, DATA_SIZE);
+            } catch (IOException | RuntimeException e) {
+                log.error("Error occurred while trying to send a bundle: ", e);
+                data.release();
+                close();
+                context.writeAndFlush(getPacket(requestId, Cmd.BUNDLE_DOWNLOAD, "Failed to read folder from cloud."));
+                return;
+            }
+            context.writeAndFlush(new Packet(new ByteBufPayload(requestId, Cmd.BUNDLE_DATA, data))).addListener(this);
+        }
+
+        @Override
+        public BundleWriter.Entry next() throws IOException {
+            while (true) {
+                while (!entries.hasNext()) {
+                    if (cursor == ListRequest.NO_CURSOR) {
+                        return null;
+                    }
+                    Pair<ListPage, String> page = fileManager.listFolder(address, folder, true, cursor);
+                    if (page.getFirst() == null) {
+                        throw new IOException(page.getSecond());
+                    }
+                    entries = page.getFirst().getEntries().iterator();
+                    cursor = page.getFirst().getCursor();
+                }
+                ListPage.Entry entry = entries.next();
+                if (entry.folder()) {
+                    continue;
+                }
+                Pair<FileManager.FileSource, String> source = fileManager.downloadFile(address,
+                        folder.resolve(entry.path()), DownloadRequest.TILL_END);
+                if (source.getFirst() == null) {
+                    // the file was removed or replaced by a folder after it was listed
+                    log.warn("File {} of a bundle skipped: {}", entry.path(), source.getSecond());
+                    skippedFiles++;
+                    continue;
+                }
+                return toEntry(entry.path(), source.getFirst());
+            }
+        }
+
+        /**
+         * Closes the file being sent and the listing of the folder, which counts against the listings of the session.
+         */
+        private void close() {
+            writer.close();
+            if (cursor != ListRequest.NO_CURSOR) {
+                fileManager.closeListing(address, cursor);
+                cursor = ListRequest.NO_CURSOR;
+            }
+        }
+    }
+
+    private static BundleWriter.Entry toEntry(String path, FileManager.FileSource source) throws IOException {
+        if (source.channel() != null) {
+            return BundleWriter.fileEntry(path, source.channel());
+        }
+        ByteBuf content = source.content();
+        MappedFile mapping = source.mapping();
+        long size = content != null ? content.readableBytes() : mapping.size();
+        return new BundleWriter.Entry() {
+            @Override
+            public String getPath() {
+                return path;
+            }
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public void read(ByteBuf out, long position, int length) {
+                if (content != null) {
+                    out.writeBytes(content, content.readerIndex() + (int) position, length);
+                    return;
+                }
+                ByteBuf slice = mapping.slice(position, length);
+                try {
+                    out.writeBytes(slice);
+                } finally {
+                    slice.release();
+                }
+            }
+
+            @Override
+            public void close() {
+                if (content != null) {
+                    content.release();
+                } else {
+                    mapping.release();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package cloud.storage.server;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.Compression;
+import cloud.storage.nio.PayloadHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Class for server side inbound compression negotiation payloads handling.
+ */
+public class CompressionHandler implements PayloadHandler {
+    private static final Cmd CMD = Cmd.COMPRESSION;
+
+    private static Packet getPacket(int requestId, Compression compression) {
+        return new Packet(new Payload(requestId, CMD, new byte[]{compression.getVal()}));
+    }
+
+    /**
+     * Picks the first known of the compression algorithms offered by the client
+     * and uses it for the downloads of the channel.
+     *
+     * @param context context which got the payload.
+     * @param payload payload with the offered algorithms in the order of preference.
+     */
+    @Override
+    public void handle(ChannelHandlerContext context, Payload payload) {
+        ByteBuf body = payload.getBody();
+        Compression compression = Compression.NONE;
+        while (body.isReadable()) {
+            Compression offered = Compression.fromVal(body.readByte());
+            if (offered != null) {
+                compression = offered;
+                break;
+            }
+        }
+        Compression.set(context.channel(), compression);
+        context.writeAndFlush(getPacket(payload.requestId, compression));
+    }
+}
@@ -1,19 +1,48 @@
 package cloud.storage.server;
 
+import cloud.storage.data.ByteBufPayload;
 import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
+import cloud.storage.nio.ChunkCodec;
+import cloud.storage.nio.Compression;
+import cloud.storage.nio.DownloadRequest;
 import cloud.storage.nio.PayloadHandler;
 import cloud.storage.server.file.manager.FileManager;
 import cloud.storage.util.Pair;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.ssl.SslHandler;
+import lombok.extern.slf4j.Slf4j;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 
+/**
+ * Class for server side inbound download payloads handling.
+ * <p>
+ * Gets {@link DownloadRequest} and replies with {@link Cmd#DOWNLOAD} payload containing the file size
+ * followed by {@link Cmd#DOWNLOAD_CHUNK} payloads with the requested range of the file,
+ * so a client may fetch parts of a file over several channels at once.
+ * The next chunk is written only when the previous one has been sent,
+ * so responses to other requests of the channel are not stuck behind a large file.
+ * Chunk bodies are not read into memory: the header is written first
+ * and the body is sent with {@link DefaultFileRegion}, so the kernel moves bytes from page cache to socket.
+ * If the client negotiated compression and the file compresses well, chunks are read and compressed instead.
+ * Small files which are downloaded often come from the file cache of the {@link FileManager},
+ * and small ranges of large files from their memory mappings: their chunks are slices of the cached or mapped buffer.
+ */
+@Slf4j
 public class DownloadHandler implements PayloadHandler {
+    private static final Cmd CMD = Cmd.DOWNLOAD;
+    private static final int CHUNK_SIZE = 256 * 1024;
     private final FileManager fileManager;
 
     public DownloadHandler(FileManager fileManager) {
@@ -22,21 +51,162 @@ public class DownloadHandler implements PayloadHandler {
 
     @Override
     public void handle(ChannelHandlerContext context, Payload payload) {
-        String pathString = new String(payload.cmdBody);
-        Path path = Path.of(pathString).normalize();
+        DownloadRequest request = DownloadRequest.fromBytes(payload.getBody().nioBuffer());
+        Path path;
+        try {
+            path = Path.of(request.getPath()).normalize();
+        } catch (InvalidPathException e) {
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE,
+                    "Invalid path passed.".getBytes())));
+            return;
+        }
         SocketAddress address = context.channel().remoteAddress();
-        Pair<InputStream, String> response = fileManager.downloadFile(address, path);
+        Pair<FileManager.FileSource, String> response = fileManager.downloadFile(address, path, request.getLength());
         if (response.getFirst() == null) {
-            context.writeAndFlush(new Packet(new Payload(Cmd.MESSAGE, response.getSecond().getBytes())));
-        } else {
-            try (InputStream inputStream = response.getFirst()) {
-                context.writeAndFlush(new Packet(new Payload(Cmd.DOWNLOAD, inputStream.readAllBytes())));
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE,
+                    response.getSecond().getBytes())));
+            return;
+        }
+        FileManager.FileSource source = response.getFirst();
+        long size;
+        try {
+            if (source.content() != null) {
+                size = source.content().readableBytes();
+            } else if (source.mapping() != null) {
+                size = source.mapping().size();
+            } else {
+                size = source.channel().size();
+            }
+        } catch (IOException e) {
+            log.error("Error occurred while trying to read a file to send it to the client: ", e);
+            close(source);
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE,
+                    "Failed to download file from cloud.".getBytes())));
+            return;
+        }
+        long offset = request.getOffset();
+        long length = request.getLength();
+        if (offset < 0 || offset > size || length < 0 && length != DownloadRequest.TILL_END) {
+            close(source);
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE,
+                    "Invalid range requested.".getBytes())));
+            return;
+        }
+        long end = length == DownloadRequest.TILL_END || length > size - offset ? size : offset + length;
+        ByteBuf sizeBody = context.alloc().ioBuffer(Long.BYTES).writeLong(size);
+        context.writeAndFlush(new Packet(new ByteBufPayload(payload.requestId, CMD, sizeBody)))
+                .addListener(new ChunkSender(context, payload.requestId, path, source, offset, end));
+    }
+
+    private static void close(FileManager.FileSource source) {
+        if (source.content() != null) {
+            source.content().release();
+            return;
+        }
+        if (source.mapping() != null) {
+            source.mapping().release();
+            return;
+        }
+        try {
+            source.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Sends the requested range of the file chunk by chunk, the next chunk is written when the previous one has been sent.
+     * Closes the file when everything is sent or the channel fails.
+     */
+    private static class ChunkSender implements ChannelFutureListener {
+        private final ChannelHandlerContext context;
+        private final int requestId;
+        private final Path path;
+        private final FileManager.FileSource source;
+        private final long end;
+        private final ChunkCodec codec;
+        private long position;
+
+        private ChunkSender(ChannelHandlerContext context, int requestId, Path path, FileManager.FileSource source,
+                            long start, long end) {
+            this.context = context;
+            this.requestId = requestId;
+            this.path = path;
+            this.source = source;
+            this.position = start;
+            this.end = end;
+            this.codec = new ChunkCodec(Compression.get(context.channel()));
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess() || position == end) {
+                close(source);
+                if (future.isSuccess()) {
+                    log.info("File {} sent. {}", path, codec.getReport());
+                }
+                return;
+            }
+            long chunkPosition = position;
+            int length = (int) Math.min(CHUNK_SIZE, end - chunkPosition);
+            // the listener may be notified right away, so the position is moved before writing
+            position += length;
+            try {
+                if (source.channel() != null && !codec.isCompressing()
+                        && context.pipeline().get(SslHandler.class) == null) {
+                    context.write(getHeader(chunkPosition, length));
+                    context.writeAndFlush(new FileChunkRegion(source.channel(), chunkPosition, length))
+                            .addListener(this);
+                } else {
+                    ByteBuf chunk = codec.encode(context.alloc(), chunkPosition, readChunk(chunkPosition, length));
+                    context.writeAndFlush(new Packet(new ByteBufPayload(requestId, Cmd.DOWNLOAD_CHUNK, chunk)))
+                            .addListener(this);
+                }
+            } catch (IOException e) {
+                log.error("Error occurred while trying to read a file to send it to the client: ", e);
+                close(source);
+                context.close();
+            }
+        }
+
+        /**
+         * Writes the same header as {@link Packet} with {@link Cmd#DOWNLOAD_CHUNK} payload has before the file bytes.
+         */
+        private ByteBuf getHeader(long chunkPosition, int length) {
+            Payload chunkPayload = new Payload(requestId, Cmd.DOWNLOAD_CHUNK);
+            int payloadByteLength = chunkPayload.getHeaderByteLength() + ChunkCodec.HEADER_LENGTH + length;
+            ByteBuf header = context.alloc().ioBuffer(Integer.BYTES + chunkPayload.getHeaderByteLength() + ChunkCodec.HEADER_LENGTH);
+            header.writeInt(payloadByteLength);
+            chunkPayload.writeHeaderTo(header);
+            codec.writeHeader(header, chunkPosition, length);
+            return header;
+        }
+
+        /**
+         * Reads the chunk into a buffer when file bytes have to pass through the pipeline,
+         * e.g. to be compressed or encrypted, cached and mapped files are sliced instead.
+         */
+        private ByteBuf readChunk(long chunkPosition, int length) throws IOException {
+            if (source.content() != null) {
+                return source.content().retainedSlice((int) chunkPosition, length);
+            }
+            if (source.mapping() != null) {
+                // the mapping is released only after the last chunk is sent
+                return source.mapping().slice(chunkPosition, length);
+            }
+            FileChannel fileChannel = source.channel();
+            ByteBuf chunk = context.alloc().ioBuffer(length);
+            try {
+                while (chunk.readableBytes() < length) {
+                    long readPosition = chunkPosition + chunk.readableBytes();
+                    if (chunk.writeBytes(fileChannel, readPosition, length - chunk.readableBytes()) < 0) {
+                        throw new EOFException("File was truncated while downloading");
+                    }
+                }
             } catch (IOException e) {
-                System.err.println("Error occurred while trying do read file to send it to the client: " + e.getMessage());
-                e.printStackTrace();
-                // TODO :: add message handle
-                context.writeAndFlush(new Packet(new Payload(Cmd.MESSAGE, "Failed to download file from cloud.".getBytes())));
+                chunk.release();
+                throw e;
             }
+            return chunk;
         }
     }
 }
@@ -0,0 +1,21 @@
+package cloud.storage.server;
+
+import io.netty.channel.DefaultFileRegion;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link DefaultFileRegion} of a file shared by several regions.
+ * Unlike {@link DefaultFileRegion} it does not close the file when released, the owner of the file closes it.
+ * Transports still recognize it as {@link DefaultFileRegion}, so it is sent with zero-copy transfer.
+ */
+class FileChunkRegion extends DefaultFileRegion {
+
+    FileChunkRegion(FileChannel file, long position, long count) {
+        super(file, position, count);
+    }
+
+    @Override
+    protected void deallocate() {
+    }
+}
@@ -0,0 +1,47 @@
+package cloud.storage.server;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.ListPage;
+import cloud.storage.nio.ListRequest;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.server.file.manager.FileManager;
+import cloud.storage.util.Pair;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+
+/**
+ * Class for server side inbound {@link Cmd#LIST} payloads handling.
+ * Replies with a {@link ListPage} of the folder entries or with {@link Cmd#LIST} error message.
+ */
+public class ListHandler implements PayloadHandler {
+    private final static Cmd CMD = Cmd.LIST;
+    private final FileManager fileManager;
+
+    public ListHandler(FileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext context, Payload payload) {
+        ListRequest listRequest = ListRequest.fromBytes(payload.getBody().nioBuffer());
+        Path path;
+        try {
+            path = Path.of(listRequest.getPath()).normalize();
+        } catch (InvalidPathException e) {
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, CMD, "Invalid path passed.".getBytes())));
+            return;
+        }
+        Pair<ListPage, String> result = fileManager.listFolder(context.channel().remoteAddress(), path,
+                listRequest.isRecursive(), listRequest.getCursor());
+        if (result.getFirst() == null) {
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, CMD,
+                    ("Failed to list folder. " + result.getSecond()).getBytes())));
+        } else {
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.LIST_PAGE, result.getFirst())));
+        }
+    }
+}
@@ -20,7 +20,7 @@ public class MoveHandler implements PayloadHandler {
 
     @Override
     public void handle(ChannelHandlerContext context, Payload payload) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(payload.cmdBody);
+        ByteBuffer byteBuffer = payload.getBody().nioBuffer();
         byte[] sourceBytes = new byte[byteBuffer.getInt()];
         byteBuffer.get(sourceBytes);
         String sourceString = new String(sourceBytes);
@@ -34,9 +34,9 @@ public class MoveHandler implements PayloadHandler {
 
         Pair<Boolean, String> result = fileManager.moveFile(context.channel().remoteAddress(), source, dest);
         if (result.getFirst()) {
-            context.writeAndFlush(new Packet(new Payload(Cmd.MESSAGE, "File moved successfully.".getBytes())));
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE, "File moved successfully.".getBytes())));
         } else {
-            context.writeAndFlush(new Packet(new Payload(Cmd.MESSAGE,
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE,
                     (result.getSecond() != null ? result.getSecond() : "Failed to move a file").getBytes())));
         }
     }
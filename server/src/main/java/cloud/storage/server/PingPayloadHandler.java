@@ -1,9 +1,11 @@
 package cloud.storage.server;
 
+import cloud.storage.data.ByteBufPayload;
 import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
 import cloud.storage.nio.PayloadHandler;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 
 /**
@@ -12,8 +14,8 @@ import io.netty.channel.ChannelHandlerContext;
 public class PingPayloadHandler implements PayloadHandler {
     private static final Cmd CMD = Cmd.PING;
 
-    private static Packet getPacket(byte[] cmdBody) {
-        return new Packet(new Payload(CMD, cmdBody));
+    private static Packet getPacket(int requestId, ByteBuf body) {
+        return new Packet(new ByteBufPayload(requestId, CMD, body));
     }
 
     /**
@@ -24,6 +26,6 @@ public class PingPayloadHandler implements PayloadHandler {
      */
     @Override
     public void handle(ChannelHandlerContext context, Payload payload) {
-        context.writeAndFlush(getPacket(payload.cmdBody));
+        context.writeAndFlush(getPacket(payload.requestId, payload.getBody().retain()));
     }
 }
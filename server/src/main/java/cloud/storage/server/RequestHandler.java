@@ -7,30 +7,53 @@ import cloud.storage.nio.PayloadHandler;
 import cloud.storage.server.file.manager.FileManager;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.ReferenceCountUtil;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Main logic of server side application.
  * Receives the client's requests, handles it and sends a response.
  */
 class RequestHandler extends SimpleChannelInboundHandler<Payload> {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
     private final Map<Cmd, ? extends PayloadHandler> REQUEST_HANDLER_INSTANCES;
 
     private final FileManager fileManager;
+    private final RequestLimiter requestLimiter;
+    private CompletableFuture<Void> previousRequest = DONE;
 
-    RequestHandler(FileManager fileManager) {
+    RequestHandler(FileManager fileManager, RequestLimiter requestLimiter) {
         this.fileManager = fileManager;
+        this.requestLimiter = requestLimiter;
 
-        REQUEST_HANDLER_INSTANCES = Map.of(
-                Cmd.PING, new PingPayloadHandler(),
-                Cmd.TIME, new TimePayloadHandler(),
-                Cmd.SIGN_UP, new SignUpHandler(fileManager),
-                Cmd.SIGN_IN, new SignInHandler(fileManager),
-                Cmd.SIGN_OUT, new SignOutHandler(fileManager),
-                Cmd.UPLOAD, new UploadHandler(fileManager),
-                Cmd.DOWNLOAD, new DownloadHandler(fileManager),
-                Cmd.MOVE, new MoveHandler(fileManager)
+        UploadHandler uploadHandler = new UploadHandler(fileManager);
+        AttachHandler attachHandler = new AttachHandler(fileManager);
+        SyncHandler syncHandler = new SyncHandler(fileManager);
+        BundleHandler bundleHandler = new BundleHandler(fileManager);
+        REQUEST_HANDLER_INSTANCES = Map.ofEntries(
+                Map.entry(Cmd.PING, new PingPayloadHandler()),
+                Map.entry(Cmd.TIME, new TimePayloadHandler()),
+                Map.entry(Cmd.SIGN_UP, new SignUpHandler(fileManager)),
+                Map.entry(Cmd.SIGN_IN, new SignInHandler(fileManager)),
+                Map.entry(Cmd.SIGN_OUT, new SignOutHandler(fileManager)),
+                Map.entry(Cmd.UPLOAD, uploadHandler),
+                Map.entry(Cmd.UPLOAD_CHUNK, uploadHandler),
+                Map.entry(Cmd.UPLOAD_COMMIT, uploadHandler),
+                Map.entry(Cmd.DOWNLOAD, new DownloadHandler(fileManager)),
+                Map.entry(Cmd.MOVE, new MoveHandler(fileManager)),
+                Map.entry(Cmd.COMPRESSION, new CompressionHandler()),
+                Map.entry(Cmd.ATTACH_TOKEN, attachHandler),
+                Map.entry(Cmd.ATTACH, attachHandler),
+                Map.entry(Cmd.SYNC, syncHandler),
+                Map.entry(Cmd.SYNC_DELTA, syncHandler),
+                Map.entry(Cmd.SYNC_COMMIT, syncHandler),
+                Map.entry(Cmd.LIST, new ListHandler(fileManager)),
+                Map.entry(Cmd.STAT, new StatHandler(fileManager)),
+                Map.entry(Cmd.BUNDLE_UPLOAD, bundleHandler),
+                Map.entry(Cmd.BUNDLE_DATA, bundleHandler),
+                Map.entry(Cmd.BUNDLE_DOWNLOAD, bundleHandler)
         );
     }
 
@@ -41,13 +64,45 @@ class RequestHandler extends SimpleChannelInboundHandler<Payload> {
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Payload msg) {
-        PayloadHandler requestHandler = REQUEST_HANDLER_INSTANCES.get(msg.cmd);
-        if (requestHandler == null) {
-            System.err.println("Got unknown cmd: " + msg.cmd);
-            ctx.write(new Packet(new Payload(Cmd.PING, "The server can't handle this command.".getBytes())));
+        if (previousRequest.isDone()) {
+            previousRequest = handleRequest(ctx, msg);
             return;
         }
-        requestHandler.handle(ctx, msg);
+        // an asynchronous request of the channel is still in progress, the payload waits for it
+        ReferenceCountUtil.retain(msg);
+        previousRequest = previousRequest.handle((result, cause) -> null)
+                .thenComposeAsync(ignored -> {
+                    try {
+                        return handleRequest(ctx, msg);
+                    } catch (RuntimeException e) {
+                        exceptionCaught(ctx, e);
+                        return DONE;
+                    } finally {
+                        ReferenceCountUtil.release(msg);
+                    }
+                }, ctx.executor());
+    }
+
+    /**
+     * @return stage which completes when the request is handled, e.g. when a slow password check is over.
+     */
+    private CompletableFuture<Void> handleRequest(ChannelHandlerContext ctx, Payload msg) {
+        try {
+            PayloadHandler requestHandler = REQUEST_HANDLER_INSTANCES.get(msg.cmd);
+            if (requestHandler == null) {
+                System.err.println("Got unknown cmd: " + msg.cmd);
+                ctx.writeAndFlush(new Packet(new Payload(msg.requestId, Cmd.MESSAGE,
+                        "The server can't handle this command.".getBytes())));
+                return DONE;
+            }
+            if (requestHandler instanceof AsyncPayloadHandler asyncHandler) {
+                return asyncHandler.handleAsync(ctx, msg).toCompletableFuture();
+            }
+            requestHandler.handle(ctx, msg);
+            return DONE;
+        } finally {
+            requestLimiter.requestHandled(ctx.channel());
+        }
     }
 
     @Override
@@ -0,0 +1,41 @@
+package cloud.storage.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of requests of a channel waiting for {@link RequestHandler}.
+ * Requests are handled in order on a separate executor, so when a client sends them faster than they are handled,
+ * e.g. upload chunks to a slow disk, reading from the channel is paused until half of the queue is handled.
+ */
+class RequestLimiter extends ChannelInboundHandlerAdapter {
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param maxPending number of requests of the channel which may wait to be handled before reading is paused.
+     */
+    RequestLimiter(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (pending.incrementAndGet() == maxPending) {
+            ctx.channel().config().setAutoRead(false);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Called by {@link RequestHandler} when a request of the channel is handled.
+     */
+    void requestHandled(Channel channel) {
+        if (pending.decrementAndGet() == maxPending / 2) {
+            channel.config().setAutoRead(true);
+        }
+    }
+}
@@ -2,24 +2,33 @@ package cloud.storage.server;
 
 import cloud.storage.nio.PacketEncoder;
 import cloud.storage.nio.PayloadDecoder;
-import cloud.storage.nio.ReplayingPacketDecoder;
+import cloud.storage.nio.PacketFrameDecoder;
+import cloud.storage.nio.Transport;
 import cloud.storage.server.file.manager.FileManager;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
-import io.netty.util.concurrent.UnorderedThreadPoolEventExecutor;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Server side of application.
@@ -27,8 +36,16 @@ import java.nio.file.Path;
  */
 @Slf4j
 public class Server {
+    private static final Duration UPLOAD_CLEANUP_PERIOD = Duration.ofHours(1);
+    private static final Duration USAGE_RECONCILIATION_PERIOD = Duration.ofHours(1);
+    private static final Duration CATALOG_COMPACTION_PERIOD = Duration.ofMinutes(1);
+    private static final Duration METRICS_PERIOD = Duration.ofMinutes(1);
+    private static final int MAX_PENDING_REQUESTS = 16;
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = Thread.ofVirtual().name("request-", 0).factory();
     private final Path root;
     private final int port;
+    private final int maxFrameLength;
+    private final ServerOptions options;
 
     /**
      * Initiates a server.
@@ -36,8 +53,31 @@ public class Server {
      * @param port port to connect server to.
      */
     public Server(Path root, int port) {
+        this(root, port, PacketFrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Initiates a server.
+     *
+     * @param port           port to connect server to.
+     * @param maxFrameLength maximum length of inbound packets, connections sending longer packets are closed.
+     */
+    public Server(Path root, int port, int maxFrameLength) {
+        this(root, port, maxFrameLength, new ServerOptions());
+    }
+
+    /**
+     * Initiates a server.
+     *
+     * @param port           port to connect server to.
+     * @param maxFrameLength maximum length of inbound packets, connections sending longer packets are closed.
+     * @param options        transport, thread pools and storage settings.
+     */
+    public Server(Path root, int port, int maxFrameLength, ServerOptions options) {
         this.root = root;
         this.port = port;
+        this.maxFrameLength = maxFrameLength;
+        this.options = options;
     }
 
     /**
@@ -45,69 +85,152 @@ public class Server {
      * This method does not return immediately but when the server shut down.
      */
     public void run() {
-        FileManager fileManager = new FileManager(root);
+        FileManager fileManager;
+        try {
+            fileManager = new FileManager(root, options.getUserQuota(), options.getFsyncWindow(),
+                    options.getCacheSize(), options.getMmapMinSize());
+        } catch (IOException e) {
+            log.error("Failed to load the server state: ", e);
+            return;
+        }
 
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        EventExecutorGroup businessGroup = new UnorderedThreadPoolEventExecutor(4);
+        Transport transport = options.getTransport();
+        int acceptors = options.getAcceptors();
+        if (acceptors > 1 && !transport.supportsReusePort()) {
+            log.warn("{} transport does not support SO_REUSEPORT, only one acceptor is used", transport);
+            acceptors = 1;
+        }
+        EventLoopGroup bossGroup = transport.newEventLoopGroup(acceptors);
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(options.getWorkerThreads());
+        // every channel is bound to a single executor of the group, so chunks of an upload are handled in order
+        EventExecutorGroup businessGroup = new DefaultEventExecutorGroup(options.getBusinessThreads());
+        businessGroup.scheduleAtFixedRate(fileManager::removeAbandonedUploads,
+                UPLOAD_CLEANUP_PERIOD.toMinutes(), UPLOAD_CLEANUP_PERIOD.toMinutes(), TimeUnit.MINUTES);
+        businessGroup.scheduleAtFixedRate(fileManager::removeUnreferencedChunks,
+                UPLOAD_CLEANUP_PERIOD.toMinutes(), UPLOAD_CLEANUP_PERIOD.toMinutes(), TimeUnit.MINUTES);
+        businessGroup.scheduleAtFixedRate(fileManager::reconcileUsage,
+                USAGE_RECONCILIATION_PERIOD.toMinutes(), USAGE_RECONCILIATION_PERIOD.toMinutes(), TimeUnit.MINUTES);
+        businessGroup.scheduleAtFixedRate(fileManager::compactCatalog,
+                CATALOG_COMPACTION_PERIOD.toSeconds(), CATALOG_COMPACTION_PERIOD.toSeconds(), TimeUnit.SECONDS);
+        businessGroup.scheduleAtFixedRate(() -> {
+            String report = fileManager.getPasswordHashingReport();
+            if (report != null) {
+                log.info(report);
+            }
+            report = fileManager.getFsyncReport();
+            if (report != null) {
+                log.info(report);
+            }
+            report = fileManager.getFileCacheReport();
+            if (report != null) {
+                log.info(report);
+            }
+        }, METRICS_PERIOD.toSeconds(), METRICS_PERIOD.toSeconds(), TimeUnit.SECONDS);
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap();
             // TODO:: make PacketEncoder MessageToByteEncoder<Payload> and change it in every handler
             // TODO:: make all messages (e.g. errors) be Cmd.MESSAGE payloads
             serverBootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.getServerChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(@NotNull SocketChannel channel) {
                             ChannelPipeline pipeline = channel.pipeline();
-                            pipeline.addLast("ReplayingPacketDecoder", new ReplayingPacketDecoder());
+                            pipeline.addLast("PacketFrameDecoder", new PacketFrameDecoder(maxFrameLength));
                             pipeline.addLast("PayloadDecoder", new PayloadDecoder());
 
                             pipeline.addLast("PacketEncoder", new PacketEncoder());
 
-                            pipeline.addLast(businessGroup, "requestHandler", new RequestHandler(fileManager));
+                            RequestLimiter requestLimiter = new RequestLimiter(MAX_PENDING_REQUESTS);
+                            pipeline.addLast("requestLimiter", requestLimiter);
+                            pipeline.addLast(getRequestExecutor(channel, businessGroup), "requestHandler",
+                                    new RequestHandler(fileManager, requestLimiter));
                         }
                     })
                     .option(ChannelOption.SO_BACKLOG, 128)
                     .childOption(ChannelOption.SO_KEEPALIVE, true);
+            if (acceptors > 1) {
+                // every server channel is registered on its own boss thread and the kernel balances accepts
+                serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
 
-            ChannelFuture serverBootstrapBindFuture = serverBootstrap.bind(port);
-            log.info("Server was bound to the port {}", port);
-            serverBootstrapBindFuture = serverBootstrapBindFuture.sync();
+            List<Channel> serverChannels = new ArrayList<>();
+            for (int i = 0; i < acceptors; i++) {
+                serverChannels.add(serverBootstrap.bind(port).sync().channel());
+            }
+            log.info("Server was bound to the port {} with {} transport, {} acceptor(s) and {} request execution",
+                    port, transport, acceptors, options.getExecution());
 
-            serverBootstrapBindFuture.channel().closeFuture().sync();
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().sync();
+            }
         } catch (InterruptedException e) {
             log.error("Server's thread was interrupted: ", e);
         } finally {
+            businessGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
         }
     }
 
+    /**
+     * Chooses the executor to handle requests of the channel on, it runs them one by one in order of arrival.
+     * <p>
+     * In {@link ServerOptions.Execution#POOL} mode it is one of the shared business threads,
+     * so a channel blocked on slow disk I/O holds up every other channel bound to the same thread.
+     * In {@link ServerOptions.Execution#VIRTUAL} mode every channel gets an executor of its own
+     * running on a virtual thread, which is shut down when the channel is closed.
+     */
+    private EventExecutorGroup getRequestExecutor(Channel channel, EventExecutorGroup businessGroup) {
+        if (options.getExecution() == ServerOptions.Execution.POOL) {
+            return businessGroup;
+        }
+        EventExecutor executor = new DefaultEventExecutor(VIRTUAL_THREAD_FACTORY);
+        // the quiet period lets the executor handle the unregistration which follows the close
+        channel.closeFuture().addListener(future -> executor.shutdownGracefully());
+        return executor;
+    }
+
     /**
      * Another way to run the server.
      *
-     * @param args args[0] -- root folder path, args[1] -- port to connect server to.
+     * @param args args[0] -- root folder path, args[1] -- port to connect server to,
+     *             optional args[2] -- maximum length of inbound packets in bytes,
+     *             followed by optional {@link ServerOptions} in --name=value form.
      */
     public static void main(String[] args) {
         Path root;
         int port;
+        int maxFrameLength = PacketFrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+        List<String> positional = Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toList();
+        ServerOptions options;
         try {
-            if (args.length == 2) {
-                root = Path.of(args[0]);
-                port = Integer.parseInt(args[1]);
+            if (positional.size() == 2 || positional.size() == 3) {
+                root = Path.of(positional.get(0));
+                port = Integer.parseInt(positional.get(1));
+                if (positional.size() == 3) {
+                    maxFrameLength = Integer.parseInt(positional.get(2));
+                }
             } else {
                 log.error("You have to pass the root folder path and the port number as arguments");
                 return;
             }
+            options = ServerOptions.parse(Arrays.stream(args).filter(arg -> arg.startsWith("--")).toList());
         } catch (InvalidPathException e) {
             log.error("Invalid root folder path passed: ", e);
             return;
         } catch (NumberFormatException ignored) {
-            log.error("Port number must be an integer");
+            log.error("Port number and maximum packet length must be integers");
+            return;
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return;
+        }
+        if (maxFrameLength <= 0) {
+            log.error("Maximum packet length must be positive");
             return;
         }
 
-        new Server(root, port).run();
+        new Server(root, port, maxFrameLength, options).run();
     }
 }
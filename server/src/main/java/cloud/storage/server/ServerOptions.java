@@ -0,0 +1,189 @@
+package cloud.storage.server;
+
+import cloud.storage.nio.Transport;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Tuning options of the server, passed as {@code --name=value} command line arguments:
+ * <ul>
+ *     <li>{@code --transport=epoll|nio} -- Netty transport, epoll is used by default when it is available;</li>
+ *     <li>{@code --acceptors=N} -- number of channels accepting connections on the same port with
+ *     {@code SO_REUSEPORT}, only epoll transport supports more than one (1 by default);</li>
+ *     <li>{@code --workers=N} -- number of I/O threads (twice the number of cores by default);</li>
+ *     <li>{@code --business-threads=N} -- number of threads handling requests in pool execution (4 by default);</li>
+ *     <li>{@code --execution=pool|virtual} -- whether requests are handled on the shared business threads
+ *     or every channel gets a virtual thread of its own (pool by default);</li>
+ *     <li>{@code --user-quota=SIZE} -- number of bytes every user may store, with optional K, M, G or T suffix
+ *     (0, no limit, by default);</li>
+ *     <li>{@code --fsync-window=MS} -- milliseconds an uploaded file waits to be forced to disk in a batch with others,
+ *     0 forces every file right away (2 by default);</li>
+ *     <li>{@code --cache-size=SIZE} -- number of bytes of small, often downloaded files kept in memory,
+ *     with optional K, M, G or T suffix, 0 turns the cache off (64M by default);</li>
+ *     <li>{@code --mmap-min-size=SIZE} -- size of the smallest file which ranges up to 1 MiB are served
+ *     from its memory mapping, with optional K, M, G or T suffix, 0 turns mapping off (64M by default).</li>
+ * </ul>
+ */
+public class ServerOptions {
+    private static final String PREFIX = "--";
+
+    /**
+     * Where requests are handled, in both modes requests of a single channel are handled one by one in order.
+     */
+    public enum Execution {
+        /**
+         * Channels share a fixed pool of business threads.
+         */
+        POOL,
+        /**
+         * Every channel has a virtual thread of its own, so blocking file operations of one client
+         * don't hold up others.
+         */
+        VIRTUAL
+    }
+
+    private Transport transport = Transport.getDefault();
+    private int acceptors = 1;
+    private int workerThreads = 0;
+    private int businessThreads = 4;
+    private Execution execution = Execution.POOL;
+    private long userQuota = 0;
+    private Duration fsyncWindow = Duration.ofMillis(2);
+    private long cacheSize = 64 * 1024 * 1024;
+    private long mmapMinSize = 64 * 1024 * 1024;
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @return number of I/O threads, 0 means Netty default.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getBusinessThreads() {
+        return businessThreads;
+    }
+
+    public Execution getExecution() {
+        return execution;
+    }
+
+    /**
+     * @return number of bytes every user may store, 0 means no limit.
+     */
+    public long getUserQuota() {
+        return userQuota;
+    }
+
+    /**
+     * @return time uploaded files wait to be forced to disk together, zero means no batching.
+     */
+    public Duration getFsyncWindow() {
+        return fsyncWindow;
+    }
+
+    /**
+     * @return number of bytes of file content cached in memory, 0 means no caching.
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return size of the smallest file which small ranges are served from its mapping, 0 means no mapping.
+     */
+    public long getMmapMinSize() {
+        return mmapMinSize;
+    }
+
+    /**
+     * @param args options in {@code --name=value} form.
+     * @throws IllegalArgumentException if an option is unknown or has invalid value.
+     */
+    public static ServerOptions parse(List<String> args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith(PREFIX) || separator < 0) {
+                throw new IllegalArgumentException("Options must be passed as --name=value: " + arg);
+            }
+            String name = arg.substring(PREFIX.length(), separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "transport" -> options.transport = Transport.getTransport(value);
+                case "acceptors" -> options.acceptors = parsePositive(name, value);
+                case "workers" -> options.workerThreads = parsePositive(name, value);
+                case "business-threads" -> options.businessThreads = parsePositive(name, value);
+                case "execution" -> options.execution = parseExecution(value);
+                case "user-quota" -> options.userQuota = parseSize(name, value);
+                case "fsync-window" -> options.fsyncWindow = Duration.ofMillis(parseNonNegative(name, value));
+                case "cache-size" -> options.cacheSize = parseSize(name, value);
+                case "mmap-min-size" -> options.mmapMinSize = parseSize(name, value);
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        return options;
+    }
+
+    private static Execution parseExecution(String value) {
+        try {
+            return Execution.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Option execution must be pool or virtual", e);
+        }
+    }
+
+    private static long parseSize(String name, String value) {
+        int shift = switch (value.isEmpty() ? ' ' : Character.toUpperCase(value.charAt(value.length() - 1))) {
+            case 'K' -> 10;
+            case 'M' -> 20;
+            case 'G' -> 30;
+            case 'T' -> 40;
+            default -> 0;
+        };
+        long number;
+        try {
+            number = Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " must be a number of bytes, e.g. 500M", e);
+        }
+        if (number < 0 || number > Long.MAX_VALUE >> shift) {
+            throw new IllegalArgumentException("Option " + name + " is out of range");
+        }
+        return number << shift;
+    }
+
+    private static int parseNonNegative(String name, String value) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " must be an integer", e);
+        }
+        if (number < 0) {
+            throw new IllegalArgumentException("Option " + name + " can't be negative");
+        }
+        return number;
+    }
+
+    private static int parsePositive(String name, String value) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " must be an integer", e);
+        }
+        if (number <= 0) {
+            throw new IllegalArgumentException("Option " + name + " must be positive");
+        }
+        return number;
+    }
+}
@@ -4,18 +4,16 @@ import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
 import cloud.storage.server.file.manager.FileManager;
-import cloud.storage.nio.PayloadHandler;
 import cloud.storage.nio.SignInResponse;
 import cloud.storage.nio.UserData;
-import cloud.storage.util.Pair;
 import io.netty.channel.ChannelHandlerContext;
 
-import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Class for server side inbound signIn payloads handling.
  */
-public class SignInHandler implements PayloadHandler {
+public class SignInHandler implements AsyncPayloadHandler {
     private static final Cmd CMD = Cmd.SIGN_IN;
     private final FileManager fileManager;
 
@@ -24,26 +22,28 @@ public class SignInHandler implements PayloadHandler {
     }
 
 
-    private static Packet getPacket(byte[] cmdBody) {
-        return new Packet(new Payload(CMD, cmdBody));
+    private static Packet getPacket(int requestId, SignInResponse signInResponse) {
+        return new Packet(new Payload(requestId, CMD, signInResponse));
     }
 
     /**
      * Expects {@link UserData} in received payload.
      * Trying to sign in user in {@link FileManager} with passed {@link UserData}.
-     * Sends {@link SignInResponse} with results of operation.
+     * Sends {@link SignInResponse} with results of operation when the password is checked.
      *
      * @param context context which got the payload.
      * @param cmdBody data of the payload to handle.
      */
     @Override
-    public void handle(ChannelHandlerContext context, Payload payload) {
-        UserData userData = UserData.fromBytes(ByteBuffer.wrap(payload.cmdBody));
-        Pair<Boolean, String> result = fileManager.signIn(context.channel().remoteAddress(), userData);
-        if (result.getFirst()) {
-            context.writeAndFlush(getPacket(SignInResponse.success(result.getSecond()).getBytes()));
-        } else {
-            context.writeAndFlush(getPacket(SignInResponse.failure(result.getSecond()).getBytes()));
-        }
+    public CompletionStage<Void> handleAsync(ChannelHandlerContext context, Payload payload) {
+        UserData userData = UserData.fromBytes(payload.getBody().nioBuffer());
+        int requestId = payload.requestId;
+        return fileManager.signIn(context.channel().remoteAddress(), userData).thenAccept(result -> {
+            if (result.getFirst()) {
+                context.writeAndFlush(getPacket(requestId, SignInResponse.success(result.getSecond())));
+            } else {
+                context.writeAndFlush(getPacket(requestId, SignInResponse.failure(result.getSecond())));
+            }
+        });
     }
 }
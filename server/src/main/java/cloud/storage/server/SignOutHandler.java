@@ -26,6 +26,6 @@ public class SignOutHandler implements PayloadHandler {
     @Override
     public void handle(ChannelHandlerContext context, Payload payload) {
         fileManager.signOut(context.channel().remoteAddress());
-        context.writeAndFlush(new Packet(new Payload(Cmd.SIGN_OUT, null)));
+        context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.SIGN_OUT)));
     }
 }
@@ -3,19 +3,17 @@ package cloud.storage.server;
 import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
-import cloud.storage.nio.PayloadHandler;
 import cloud.storage.nio.SignInResponse;
 import cloud.storage.nio.UserData;
 import cloud.storage.server.file.manager.FileManager;
-import cloud.storage.util.Pair;
 import io.netty.channel.ChannelHandlerContext;
 
-import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Class for server side inbound signUp payloads handling.
  */
-public class SignUpHandler implements PayloadHandler {
+public class SignUpHandler implements AsyncPayloadHandler {
     private final FileManager fileManager;
 
     SignUpHandler(FileManager fileManager) {
@@ -25,22 +23,23 @@ public class SignUpHandler implements PayloadHandler {
     /**
      * Expects {@link UserData} in received payload.
      * Trying to sign up user in {@link FileManager} with passed {@link UserData}.
-     * Sends {@link SignInResponse} with results of operation.
+     * Sends {@link SignInResponse} with results of operation when the password is hashed.
      *
      * @param context context which got the payload.
      * @param cmdBody data of the payload to handle.
      */
     @Override
-    public void handle(ChannelHandlerContext context, Payload payload) {
-        UserData userData = UserData.fromBytes(ByteBuffer.wrap(payload.cmdBody));
-        Pair<Boolean, String> result = fileManager.signUp(context.channel().remoteAddress(), userData);
-        if (result.getFirst()) {
-            context.writeAndFlush(new Packet(new Payload(Cmd.SIGN_UP,
-                    SignInResponse.success(result.getSecond()).getBytes())));
-        } else {
-            // TODO:: MESSAGE
-            context.writeAndFlush(new Packet(new Payload(Cmd.PING,
-                    result.getSecond().getBytes())));
-        }
+    public CompletionStage<Void> handleAsync(ChannelHandlerContext context, Payload payload) {
+        UserData userData = UserData.fromBytes(payload.getBody().nioBuffer());
+        int requestId = payload.requestId;
+        return fileManager.signUp(context.channel().remoteAddress(), userData).thenAccept(result -> {
+            if (result.getFirst()) {
+                context.writeAndFlush(new Packet(new Payload(requestId, Cmd.SIGN_UP,
+                        SignInResponse.success(result.getSecond()))));
+            } else {
+                context.writeAndFlush(new Packet(new Payload(requestId, Cmd.MESSAGE,
+                        result.getSecond().getBytes())));
+            }
+        });
     }
 }
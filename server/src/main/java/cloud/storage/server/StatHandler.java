@@ -0,0 +1,54 @@
+package cloud.storage.server;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.ListPage;
+import cloud.storage.nio.ListRequest;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.server.file.manager.FileManager;
+import cloud.storage.server.file.manager.FileMetadata;
+import cloud.storage.util.Pair;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Class for server side inbound {@link Cmd#STAT} payloads handling.
+ * Answers from the file catalog without touching the disk: replies with {@link Cmd#STAT} and a {@link ListPage}
+ * of the single entry or with {@link Cmd#MESSAGE} error message.
+ */
+public class StatHandler implements PayloadHandler {
+    private final static Cmd CMD = Cmd.STAT;
+    private final FileManager fileManager;
+
+    public StatHandler(FileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext context, Payload payload) {
+        String pathString = payload.getBody().toString(StandardCharsets.UTF_8);
+        Path path;
+        try {
+            path = Path.of(pathString).normalize();
+        } catch (InvalidPathException e) {
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE, "Invalid path passed.".getBytes())));
+            return;
+        }
+        Pair<FileMetadata, String> result = fileManager.getFileMetadata(context.channel().remoteAddress(), path);
+        if (result.getFirst() == null) {
+            context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.MESSAGE,
+                    ("Failed to get file info. " + result.getSecond()).getBytes())));
+            return;
+        }
+        FileMetadata metadata = result.getFirst();
+        ListPage.Entry entry = new ListPage.Entry(pathString, metadata.folder(),
+                metadata.folder() ? 0 : metadata.size(), metadata.folder() ? 0 : metadata.modified());
+        context.writeAndFlush(new Packet(new Payload(payload.requestId, CMD,
+                new ListPage(ListRequest.NO_CURSOR, List.of(entry)))));
+    }
+}
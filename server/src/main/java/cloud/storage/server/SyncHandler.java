@@ -0,0 +1,83 @@
+package cloud.storage.server;
+
+import cloud.storage.data.Cmd;
+import cloud.storage.data.Packet;
+import cloud.storage.data.Payload;
+import cloud.storage.nio.BlockSignatures;
+import cloud.storage.nio.Delta;
+import cloud.storage.nio.PayloadHandler;
+import cloud.storage.server.file.manager.FileManager;
+import cloud.storage.util.Pair;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+
+/**
+ * Class for server side inbound delta synchronization payloads handling.
+ * Handles {@link Cmd#SYNC}, {@link Cmd#SYNC_DELTA} and {@link Cmd#SYNC_COMMIT} payloads.
+ * {@link Cmd#SYNC} carries the path of an existing file and is answered with {@link Cmd#SYNC_SIGNATURES}
+ * of its blocks, then the client sends {@link Delta} instructions rebuilding its version of the file of them.
+ * Synchronizations are identified by the id of their {@link Cmd#SYNC} request, as uploads are.
+ */
+public class SyncHandler implements PayloadHandler {
+    private final static Cmd CMD = Cmd.SYNC;
+    private final FileManager fileManager;
+
+    public SyncHandler(FileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
+    private static Packet getPacket(int requestId, byte[] cmdBody) {
+        return new Packet(new Payload(requestId, CMD, cmdBody));
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext context, Payload payload) {
+        SocketAddress address = context.channel().remoteAddress();
+        if (payload.cmd == Cmd.SYNC) {
+            Pair<BlockSignatures, String> result = startSync(address, payload.requestId, payload.getBody());
+            if (result.getFirst() == null) {
+                context.writeAndFlush(getPacket(payload.requestId, ("Failed to synchronize file. " + result.getSecond()).getBytes()));
+            } else {
+                context.writeAndFlush(new Packet(new Payload(payload.requestId, Cmd.SYNC_SIGNATURES, result.getFirst())));
+            }
+            return;
+        }
+        Pair<Boolean, String> result = switch (payload.cmd) {
+            case SYNC_DELTA -> fileManager.applyDelta(address, payload.requestId, payload.getBody().nioBuffer());
+            case SYNC_COMMIT -> commitSync(address, payload.requestId, payload.getBody());
+            default -> throw new IllegalArgumentException("Unexpected cmd: " + payload.cmd);
+        };
+        if (result.getFirst()) {
+            if (payload.cmd == Cmd.SYNC_COMMIT) {
+                context.writeAndFlush(getPacket(payload.requestId, "File synchronized successfully.".getBytes()));
+            }
+        } else if (result.getSecond() != null) {
+            context.writeAndFlush(getPacket(payload.requestId, ("Failed to synchronize file. " + result.getSecond()).getBytes()));
+        }
+    }
+
+    private Pair<BlockSignatures, String> startSync(SocketAddress address, int syncId, ByteBuf body) {
+        Path path;
+        try {
+            path = Path.of(body.toString(StandardCharsets.UTF_8)).normalize();
+        } catch (InvalidPathException e) {
+            return new Pair<>(null, "Invalid path passed.");
+        }
+        return fileManager.startSync(address, syncId, path);
+    }
+
+    private Pair<Boolean, String> commitSync(SocketAddress address, int syncId, ByteBuf body) {
+        if (body.readableBytes() != Long.BYTES + Delta.HASH_LENGTH) {
+            return new Pair<>(false, "Malformed commit.");
+        }
+        long size = body.readLong();
+        byte[] hash = new byte[Delta.HASH_LENGTH];
+        body.readBytes(hash);
+        return fileManager.commitSync(address, syncId, size, hash);
+    }
+}
@@ -13,8 +13,8 @@ import io.netty.channel.ChannelHandlerContext;
 public class TimePayloadHandler implements PayloadHandler {
     private static final Cmd CMD = Cmd.TIME;
 
-    private static Packet getPacket(byte[] cmbBody) {
-        return new Packet(new Payload(CMD, cmbBody));
+    private static Packet getPacket(int requestId, TimeData timeData) {
+        return new Packet(new Payload(requestId, CMD, timeData));
     }
 
     /**
@@ -25,6 +25,6 @@ public class TimePayloadHandler implements PayloadHandler {
      */
     @Override
     public void handle(ChannelHandlerContext context, Payload payload) {
-        context.writeAndFlush(getPacket((new TimeData()).getBytes()));
+        context.writeAndFlush(getPacket(payload.requestId, new TimeData()));
     }
 }
@@ -1,21 +1,34 @@
 package cloud.storage.server;
 
+import cloud.storage.data.ByteBufPayload;
 import cloud.storage.data.Cmd;
 import cloud.storage.data.Packet;
 import cloud.storage.data.Payload;
-import cloud.storage.nio.PayloadHandler;
+import cloud.storage.nio.ChunkCodec;
+import cloud.storage.nio.UploadRequest;
 import cloud.storage.server.file.manager.FileManager;
 import cloud.storage.util.Pair;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 
-import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
-public class UploadHandler implements PayloadHandler {
+/**
+ * Class for server side inbound chunked upload payloads handling.
+ * Handles {@link Cmd#UPLOAD}, {@link Cmd#UPLOAD_CHUNK} and {@link Cmd#UPLOAD_COMMIT} payloads
+ * and writes every chunk to disk as soon as it is received, decompressing it if needed:
+ * uncompressed chunks go to the file right from the inbound frame buffer.
+ * Uploads are identified by the id of their {@link Cmd#UPLOAD} request, so one channel may run several at once.
+ * {@link Cmd#UPLOAD} is answered with {@link Cmd#UPLOAD_OFFSET}: the number of bytes the server already has
+ * from a suspended upload of the same file, the client continues from it,
+ * followed by the bit set of the chunks the client doesn't have to send as the server has their content already.
+ * {@link Cmd#UPLOAD_COMMIT} is answered when the file is durable, so the next requests of the channel wait for it.
+ */
+public class UploadHandler implements AsyncPayloadHandler {
     private final static Cmd CMD = Cmd.UPLOAD;
     private final FileManager fileManager;
 
@@ -23,35 +36,73 @@ public class UploadHandler implements PayloadHandler {
         this.fileManager = fileManager;
     }
 
-    private static Packet getPacket(byte[] cmdBody) {
-        return new Packet(new Payload(CMD, cmdBody));
+    private static Packet getPacket(int requestId, byte[] cmdBody) {
+        return new Packet(new Payload(requestId, CMD, cmdBody));
     }
 
     @Override
-    public void handle(ChannelHandlerContext context, Payload payload) {
-        ByteBuf byteBuf = Unpooled.wrappedBuffer(payload.cmdBody);
-        int pathLength = byteBuf.readInt();
-        byte[] pathBytes = new byte[pathLength];
-        byteBuf.readBytes(pathBytes);
-        String pathString = new String(pathBytes);
-        // TODO:: handle InvalidPathException
-        Path path = Path.of(pathString).normalize();
+    public CompletionStage<Void> handleAsync(ChannelHandlerContext context, Payload payload) {
         SocketAddress address = context.channel().remoteAddress();
-        try (ByteBufInputStream byteBufInputStream = new ByteBufInputStream(byteBuf, true)) {
-            Pair<Boolean, String> result = fileManager.uploadFile(address, path, byteBufInputStream);
-            if (result.getFirst()) {
-                context.write(getPacket("File uploaded successfully.".getBytes()));
-            } else {
-                context.write(getPacket("Failed to upload file.".getBytes()));
+        int requestId = payload.requestId;
+        switch (payload.cmd) {
+            case UPLOAD -> {
+                Pair<FileManager.UploadStart, String> result = startUpload(address, requestId, payload.getBody());
+                if (result.getFirst() == null) {
+                    context.writeAndFlush(getPacket(requestId, ("Failed to upload file. " + result.getSecond()).getBytes()));
+                } else {
+                    byte[] storedChunks = result.getFirst().storedChunks().toByteArray();
+                    ByteBuf offsetBody = context.alloc().ioBuffer(Long.BYTES + storedChunks.length)
+                            .writeLong(result.getFirst().offset())
+                            .writeBytes(storedChunks);
+                    context.writeAndFlush(new Packet(new ByteBufPayload(requestId, Cmd.UPLOAD_OFFSET, offsetBody)));
+                }
             }
-            if (result.getSecond() != null) {
-                context.write(getPacket(result.getSecond().getBytes()));
+            case UPLOAD_CHUNK -> sendFailure(context, requestId,
+                    uploadChunk(context, address, requestId, payload.getBody()));
+            case UPLOAD_COMMIT -> {
+                return fileManager.commitUpload(address, requestId).thenAccept(result -> {
+                    if (result.getFirst()) {
+                        context.writeAndFlush(getPacket(requestId, "File uploaded successfully.".getBytes()));
+                    } else {
+                        sendFailure(context, requestId, result);
+                    }
+                });
             }
-            context.flush();
-        } catch (IOException e) {
-            System.err.println("Error occurred during handling upload command: " + e.getMessage());
-            context.write(getPacket("Failed to upload a file.".getBytes()));
+            default -> throw new IllegalArgumentException("Unexpected cmd: " + payload.cmd);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static void sendFailure(ChannelHandlerContext context, int requestId, Pair<Boolean, String> result) {
+        if (!result.getFirst() && result.getSecond() != null) {
+            context.writeAndFlush(getPacket(requestId, ("Failed to upload file. " + result.getSecond()).getBytes()));
+        }
+    }
+
+    private Pair<FileManager.UploadStart, String> startUpload(SocketAddress address, int uploadId, ByteBuf body) {
+        UploadRequest uploadRequest = UploadRequest.fromBytes(body.nioBuffer());
+        Path path;
+        try {
+            path = Path.of(uploadRequest.getPath()).normalize();
+        } catch (InvalidPathException e) {
+            return new Pair<>(null, "Invalid path passed.");
+        }
+        return fileManager.startUpload(address, uploadId, path, uploadRequest.getSize(), uploadRequest.getChunkHashes());
+    }
+
+    private Pair<Boolean, String> uploadChunk(ChannelHandlerContext context, SocketAddress address, int uploadId,
+                                              ByteBuf body) {
+        long offset = body.readLong();
+        ByteBuf data;
+        try {
+            data = ChunkCodec.decodeChunk(context.alloc(), body);
+        } catch (IllegalArgumentException e) {
+            return new Pair<>(false, fileManager.suspendUpload(address, uploadId) ? e.getMessage() : null);
+        }
+        try {
+            return fileManager.uploadFile(address, uploadId, offset, data);
+        } finally {
+            data.release();
         }
-        context.flush();
     }
 }
@@ -0,0 +1,276 @@
+package cloud.storage.server.file.manager;
+
+import cloud.storage.nio.ContentChunks;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Content-addressed store deduplicating uploaded files.
+ * <p>
+ * Every committed upload is split into {@link ContentChunks} and identified by the hash of its chunk hashes.
+ * The first copy of some content becomes an object of the store, which is hard linked into the user folder,
+ * and every later copy is replaced with another hard link to the same object, so it takes no disk space.
+ * The link count of an object is its reference count: objects which are not linked from any user folder anymore
+ * are removed by {@link #removeUnreferenced()}, unless an upload is copying chunks from them.
+ * <p>
+ * The chunk hashes of every object are kept in its manifest, and every user has a list of objects they uploaded.
+ * An upload may skip the chunks the user has uploaded before as a part of any file:
+ * the server copies them from the objects instead.
+ * Chunks are looked up only among the uploads of the same user, so knowing a hash does not give access
+ * to the content of other users.
+ * <p>
+ * Layout of the store folder: {@code objects/<id>}, {@code manifests/<id>} and {@code users/<login>}.
+ * The store is disabled if the file system has no link counts.
+ */
+@Slf4j
+class ChunkStore {
+    private static final HexFormat HEX = HexFormat.of();
+    private final Path objectsFolder;
+    private final Path manifestsFolder;
+    private final Path usersFolder;
+    private final boolean enabled;
+    private final Map<String, UserObjects> objectsByUser = new HashMap<>();
+    private final Map<Path, Integer> pins = new HashMap<>();
+
+    /**
+     * Location of a chunk in an object.
+     */
+    record ChunkLocation(Path object, long offset, int length) {
+    }
+
+    /**
+     * Objects a user uploaded and their chunks by hash.
+     */
+    private record UserObjects(Set<String> ids, Map<String, ChunkLocation> chunks) {
+    }
+
+    ChunkStore(Path folder) throws IOException {
+        objectsFolder = folder.resolve("objects");
+        manifestsFolder = folder.resolve("manifests");
+        usersFolder = folder.resolve("users");
+        Files.createDirectories(objectsFolder);
+        Files.createDirectories(manifestsFolder);
+        Files.createDirectories(usersFolder);
+        enabled = objectsFolder.getFileSystem().supportedFileAttributeViews().contains("unix");
+        if (!enabled) {
+            log.warn("File system has no link counts, uploads are not deduplicated");
+        }
+    }
+
+    /**
+     * Finds the chunks of the upload the user has uploaded before.
+     * The objects of the found chunks are pinned, so they are not removed while the upload copies from them,
+     * the caller has to {@link #unpin} them when it does not need the chunks anymore.
+     *
+     * @param hashes hashes of the chunks of the file.
+     * @param size   size of the file.
+     * @return locations of the found chunks by their offsets in the file.
+     */
+    synchronized NavigableMap<Long, ChunkLocation> findChunks(String login, List<byte[]> hashes, long size) {
+        NavigableMap<Long, ChunkLocation> found = new TreeMap<>();
+        if (!enabled || hashes.size() != ContentChunks.getChunkCount(size)) {
+            return found;
+        }
+        Map<String, ChunkLocation> userChunks = getUserObjects(login).chunks();
+        for (int i = 0; i < hashes.size(); i++) {
+            ChunkLocation location = userChunks.get(HEX.formatHex(hashes.get(i)));
+            if (location != null && location.length() == ContentChunks.getChunkLength(size, i)) {
+                found.put((long) i * ContentChunks.CHUNK_SIZE, location);
+            }
+        }
+        found.values().forEach(location -> pins.merge(location.object(), 1, Integer::sum));
+        return found;
+    }
+
+    /**
+     * Releases the objects pinned by {@link #findChunks}.
+     *
+     * @param chunks all the chunks found by the call.
+     */
+    synchronized void unpin(Collection<ChunkLocation> chunks) {
+        chunks.forEach(location -> pins.computeIfPresent(location.object(), (object, count) -> count == 1 ? null : count - 1));
+    }
+
+    /**
+     * Adds the committed file to the store: links it to the object with the same content if there is one,
+     * or makes it a new object otherwise, and remembers its chunks for the later uploads of the user.
+     * The file is hashed without holding the store, so other uploads are not held up by a large file.
+     * If the file is replaced while it is hashed, e.g. moved over or synchronized, it is left as it is.
+     *
+     * @return {@link ContentChunks#hashOfHashes} of the file or null if the store is disabled or the file changed.
+     */
+    byte[] add(String login, Path file) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+        List<byte[]> hashes;
+        BasicFileAttributes hashed;
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            hashed = Files.readAttributes(file, BasicFileAttributes.class);
+            hashes = ContentChunks.hash(fileChannel, fileChannel.size());
+        }
+        byte[] hash = ContentChunks.hashOfHashes(hashes);
+        String id = HEX.formatHex(hash);
+        Path object = objectsFolder.resolve(id);
+        synchronized (this) {
+            if (!isUnchanged(file, hashed)) {
+                log.info("File " + file + " changed while it was hashed, it is not deduplicated");
+                return null;
+            }
+            if (Files.exists(object)) {
+                // the link is made next to the file and renamed over it, so the file never disappears
+                Path link = file.resolveSibling("." + file.getFileName() + ".link");
+                Files.deleteIfExists(link);
+                Files.createLink(link, object);
+                if (!isUnchanged(file, hashed)) {
+                    Files.deleteIfExists(link);
+                    return null;
+                }
+                Files.move(link, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                log.info("File " + file + " is a copy of " + id);
+            } else {
+                writeManifest(id, hashes);
+                Files.createLink(object, file);
+            }
+            UserObjects userObjects = getUserObjects(login);
+            if (userObjects.ids().add(id)) {
+                Files.writeString(usersFolder.resolve(login), id + System.lineSeparator(),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                indexObject(userObjects.chunks(), id, hashes, Files.size(object));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the file by the path is still the one with the attributes.
+     */
+    static boolean isUnchanged(Path file, BasicFileAttributes hashed) {
+        try {
+            BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class);
+            return Objects.equals(current.fileKey(), hashed.fileKey()) && current.size() == hashed.size()
+                    && current.lastModifiedTime().equals(hashed.lastModifiedTime());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes objects which are not linked from any user folder anymore with their manifests.
+     * Meant to be called periodically in background.
+     */
+    synchronized void removeUnreferenced() {
+        if (!enabled) {
+            return;
+        }
+        Set<String> removed = new HashSet<>();
+        try (DirectoryStream<Path> objects = Files.newDirectoryStream(objectsFolder)) {
+            for (Path object : objects) {
+                try {
+                    // objects being copied into uploads are kept, they are removed by a later collection
+                    if (!pins.containsKey(object) && (Integer) Files.getAttribute(object, "unix:nlink") == 1) {
+                        Files.delete(object);
+                        Files.deleteIfExists(manifestsFolder.resolve(object.getFileName()));
+                        removed.add(object.getFileName().toString());
+                    }
+                } catch (IOException e) {
+                    log.error("Failed to remove unreferenced object: ", e);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to read the objects folder: ", e);
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        log.info("Unreferenced objects removed: " + removed.size());
+        objectsByUser.clear();
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(usersFolder)) {
+            for (Path userObjects : users) {
+                List<String> ids = Files.readAllLines(userObjects);
+                if (ids.removeAll(removed)) {
+                    Files.write(userObjects, ids);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to update the object lists of users: ", e);
+        }
+    }
+
+    /**
+     * @return objects the user uploaded, their chunks are loaded from the manifests on first use.
+     */
+    private UserObjects getUserObjects(String login) {
+        UserObjects userObjects = objectsByUser.get(login);
+        if (userObjects != null) {
+            return userObjects;
+        }
+        userObjects = new UserObjects(new HashSet<>(), new HashMap<>());
+        Path listPath = usersFolder.resolve(login);
+        try {
+            if (Files.exists(listPath)) {
+                for (String id : Files.readAllLines(listPath)) {
+                    try {
+                        indexObject(userObjects.chunks(), id, readManifest(id), Files.size(objectsFolder.resolve(id)));
+                        userObjects.ids().add(id);
+                    } catch (NoSuchFileException ignored) {
+                        // removed by the collection, which cleans up the list too
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to load the objects of " + login + ": ", e);
+        }
+        objectsByUser.put(login, userObjects);
+        return userObjects;
+    }
+
+    private void indexObject(Map<String, ChunkLocation> userChunks, String id, List<byte[]> hashes, long size) {
+        Path object = objectsFolder.resolve(id);
+        for (int i = 0; i < hashes.size(); i++) {
+            userChunks.putIfAbsent(HEX.formatHex(hashes.get(i)), new ChunkLocation(object,
+                    (long) i * ContentChunks.CHUNK_SIZE, ContentChunks.getChunkLength(size, i)));
+        }
+    }
+
+    private void writeManifest(String id, List<byte[]> hashes) throws IOException {
+        ByteBuffer manifest = ByteBuffer.allocate(hashes.size() * ContentChunks.HASH_LENGTH);
+        hashes.forEach(manifest::put);
+        Path manifestPath = manifestsFolder.resolve(id);
+        Path tmpPath = manifestsFolder.resolve(id + ".tmp");
+        Files.write(tmpPath, manifest.array());
+        Files.move(tmpPath, manifestPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private List<byte[]> readManifest(String id) throws IOException {
+        ByteBuffer manifest = ByteBuffer.wrap(Files.readAllBytes(manifestsFolder.resolve(id)));
+        List<byte[]> hashes = new ArrayList<>(manifest.remaining() / ContentChunks.HASH_LENGTH);
+        while (manifest.remaining() >= ContentChunks.HASH_LENGTH) {
+            byte[] hash = new byte[ContentChunks.HASH_LENGTH];
+            manifest.get(hash);
+            hashes.add(hash);
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,106 @@
+package cloud.storage.server.file.manager;
+
+import cloud.storage.nio.ListPage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Listing of a folder which is read page by page, so a folder with millions of entries
+ * is never held in memory at once: the entries are read from an open {@link DirectoryStream}
+ * only when the next page is requested.
+ * A recursive listing goes depth first and keeps a stream open for every folder on the way down.
+ * Symbolic links are listed but not followed.
+ */
+class DirectoryListing implements Closeable {
+    private final Path folder;
+    private final boolean recursive;
+    private final Deque<Level> levels = new ArrayDeque<>();
+
+    private record Level(DirectoryStream<Path> stream, Iterator<Path> iterator) {
+    }
+
+    private DirectoryListing(Path folder, boolean recursive) {
+        this.folder = folder;
+        this.recursive = recursive;
+    }
+
+    /**
+     * @param folder    folder to list.
+     * @param recursive true to list the subfolders too.
+     */
+    static DirectoryListing open(Path folder, boolean recursive) throws IOException {
+        DirectoryListing listing = new DirectoryListing(folder, recursive);
+        listing.push(folder);
+        return listing;
+    }
+
+    private void push(Path path) throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+        levels.push(new Level(stream, stream.iterator()));
+    }
+
+    /**
+     * Reads the next entries.
+     *
+     * @param maxEntries maximum number of entries to read.
+     * @return entries, fewer than the maximum only if the listing is done.
+     */
+    synchronized List<ListPage.Entry> next(int maxEntries) throws IOException {
+        List<ListPage.Entry> entries = new ArrayList<>();
+        while (entries.size() < maxEntries && !levels.isEmpty()) {
+            Level level = levels.peek();
+            Path path;
+            try {
+                if (!level.iterator().hasNext()) {
+                    levels.pop().stream().close();
+                    continue;
+                }
+                path = level.iterator().next();
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException ignored) {
+                // removed after it was read from the folder
+                continue;
+            }
+            boolean isFolder = attributes.isDirectory();
+            entries.add(new ListPage.Entry(folder.relativize(path).toString().replace(File.separatorChar, '/'),
+                    isFolder, isFolder ? 0 : attributes.size(), attributes.lastModifiedTime().toMillis()));
+            if (recursive && isFolder) {
+                push(path);
+            }
+        }
+        return entries;
+    }
+
+    synchronized boolean isDone() {
+        return levels.isEmpty();
+    }
+
+    @Override
+    public synchronized void close() {
+        while (!levels.isEmpty()) {
+            try {
+                levels.pop().stream().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package cloud.storage.server.file.manager;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of the content of small files in direct memory, so files downloaded over and over,
+ * e.g. shared configs and assets, are not read from disk on every request.
+ * <p>
+ * An entry is found by the path of the file and is used only if the file still has the size and the modification
+ * time it had when it was read, so files changed behind the back of the server are never served stale.
+ * The files uploaded, synchronized or moved through the server are invalidated right away to free the memory.
+ * <p>
+ * Entries are chosen with W-TinyLFU: new entries go to a small LRU window, and an entry leaving the window
+ * replaces the least recently used entries of the main space only if it was requested more often than they were,
+ * as estimated by a count-min sketch of recent requests. The main space is split into probation for the entries
+ * which were not requested since they got there and protected space for the ones which were.
+ * A file is read into the cache only the second time it is requested recently, so files downloaded once
+ * are not read into memory at all.
+ * <p>
+ * Hits are retained duplicates of the cached buffer, which stays valid until the last of them is released
+ * even if the entry is evicted meanwhile.
+ */
+class FileContentCache {
+    /**
+     * Capacity meaning that nothing is cached.
+     */
+    static final long DISABLED = 0;
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    private static final int AVERAGE_FILE_SIZE = 4 * 1024;
+
+    private final long capacity;
+    private final long maxFileSize;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<Path, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<Path, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<Path, Entry> protectedEntries = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long hits;
+    private long misses;
+    private long hitBytes;
+    private long loadedBytes;
+    private long evictions;
+    private long rejections;
+
+    private static final class Entry {
+        private final Path path;
+        private final long size;
+        private final long modified;
+        private final ByteBuf content;
+        private Map<Path, Entry> segment;
+
+        private Entry(Path path, long size, long modified, ByteBuf content) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param capacity number of bytes of file content to keep or {@link #DISABLED}.
+     */
+    FileContentCache(long capacity) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(MAX_FILE_SIZE, capacity / 8);
+        this.windowCapacity = Math.max(maxFileSize, (long) (capacity * WINDOW_SHARE));
+        this.protectedCapacity = (long) ((capacity - windowCapacity) * PROTECTED_SHARE);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, capacity / AVERAGE_FILE_SIZE)));
+    }
+
+    /**
+     * Finds the content of the file and counts the request.
+     *
+     * @param attributes current attributes of the file.
+     * @return retained duplicate of the content, the caller has to release it, or null.
+     */
+    synchronized ByteBuf get(Path path, BasicFileAttributes attributes) {
+        if (capacity == DISABLED || attributes.size() > maxFileSize) {
+            return null;
+        }
+        sketch.increment(path);
+        Entry entry = entries.get(path);
+        if (entry == null || entry.size != attributes.size()
+                || entry.modified != attributes.lastModifiedTime().toMillis()) {
+            if (entry != null) {
+                remove(entry);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        hitBytes += entry.size;
+        touch(entry);
+        return entry.content.retainedDuplicate();
+    }
+
+    /**
+     * Reads the file into the cache after a miss if it was requested recently.
+     *
+     * @param file       the file opened after its attributes were read.
+     * @param attributes attributes the file had before it was opened.
+     * @return retained duplicate of the content, the caller has to release it,
+     * or null if the file is not worth caching or changed while it was read.
+     */
+    ByteBuf load(Path path, BasicFileAttributes attributes, FileChannel file) throws IOException {
+        synchronized (this) {
+            if (capacity == DISABLED || attributes.size() > maxFileSize || sketch.frequency(path) < 2) {
+                return null;
+            }
+        }
+        int size = (int) attributes.size();
+        ByteBuf content = ByteBufAllocator.DEFAULT.directBuffer(size, size);
+        try {
+            while (content.isWritable()) {
+                if (content.writeBytes(file, content.writerIndex(), content.writableBytes()) < 0) {
+                    throw new EOFException("File was truncated while reading");
+                }
+            }
+            BasicFileAttributes loadedAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (file.size() != size || loadedAttributes.size() != size
+                    || !loadedAttributes.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+                content.release();
+                return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            content.release();
+            throw e;
+        }
+        synchronized (this) {
+            Entry previous = entries.get(path);
+            if (previous != null) {
+                remove(previous);
+            }
+            Entry entry = new Entry(path, size, attributes.lastModifiedTime().toMillis(), content);
+            entries.put(path, entry);
+            add(window, entry);
+            loadedBytes += size;
+            evictFromWindow();
+            return content.retainedDuplicate();
+        }
+    }
+
+    /**
+     * Drops the file or the folder with everything in it, e.g. after it was replaced or moved.
+     */
+    synchronized void invalidate(Path path) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            remove(entry);
+            return;
+        }
+        entries.values().stream()
+                .filter(candidate -> candidate.path.startsWith(path))
+                .toList()
+                .forEach(this::remove);
+    }
+
+    private void touch(Entry entry) {
+        if (entry.segment == probation) {
+            detach(entry);
+            add(protectedEntries, entry);
+            while (protectedBytes > protectedCapacity) {
+                Entry demoted = first(protectedEntries);
+                detach(demoted);
+                add(probation, demoted);
+            }
+        } else {
+            Map<Path, Entry> segment = entry.segment;
+            detach(entry);
+            add(segment, entry);
+        }
+    }
+
+    /**
+     * Moves the entries leaving the window to the main space if they are requested more often than the ones there.
+     */
+    private void evictFromWindow() {
+        while (windowBytes > windowCapacity) {
+            Entry candidate = first(window);
+            detach(candidate);
+            add(probation, candidate);
+            while (windowBytes + probationBytes + protectedBytes > capacity) {
+                Entry victim = probation.size() > 1 ? first(probation) : first(protectedEntries);
+                if (victim == null || victim == candidate) {
+                    victim = candidate;
+                } else if (sketch.frequency(candidate.path) <= sketch.frequency(victim.path)) {
+                    victim = candidate;
+                    rejections++;
+                }
+                remove(victim);
+                evictions++;
+                if (victim == candidate) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static Entry first(LinkedHashMap<Path, Entry> segment) {
+        Iterator<Entry> iterator = segment.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private void add(Map<Path, Entry> segment, Entry entry) {
+        segment.put(entry.path, entry);
+        entry.segment = segment;
+        addBytes(segment, entry.size);
+    }
+
+    private void detach(Entry entry) {
+        entry.segment.remove(entry.path);
+        addBytes(entry.segment, -entry.size);
+        entry.segment = null;
+    }
+
+    private void addBytes(Map<Path, Entry> segment, long bytes) {
+        if (segment == window) {
+            windowBytes += bytes;
+        } else if (segment == probation) {
+            probationBytes += bytes;
+        } else {
+            protectedBytes += bytes;
+        }
+    }
+
+    private void remove(Entry entry) {
+        detach(entry);
+        entries.remove(entry.path);
+        entry.content.release();
+    }
+
+    /**
+     * Reports the requests since the previous report and starts counting anew.
+     *
+     * @return report or null if there were no requests.
+     */
+    synchronized String getReport() {
+        if (hits == 0 && misses == 0) {
+            return null;
+        }
+        String report = String.format("File cache: hit ratio %.2f (%d hits, %d misses), %d bytes served, "
+                        + "%d bytes read, %d files of %d bytes cached of %d, %d evicted, %d rejected",
+                (double) hits / (hits + misses), hits, misses, hitBytes, loadedBytes,
+                entries.size(), windowBytes + probationBytes + protectedBytes, capacity, evictions, rejections);
+        hits = 0;
+        misses = 0;
+        hitBytes = 0;
+        loadedBytes = 0;
+        evictions = 0;
+        rejections = 0;
+        return report;
+    }
+
+    /**
+     * Count-min sketch of the recent request frequency of the paths with 4-bit counters.
+     * The counters are halved after a number of requests proportional to the width,
+     * so files which are not requested anymore lose their history.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetPeriod;
+        private int additions;
+
+        private FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(expectedEntries - 1, 1)) << 1;
+            counters = new byte[DEPTH][width];
+            mask = width - 1;
+            resetPeriod = 10 * width;
+        }
+
+        private void increment(Path path) {
+            int hash = path.hashCode();
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < MAX_COUNT) {
+                    counters[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= resetPeriod) {
+                for (byte[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        private int frequency(Path path) {
+            int hash = path.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int mixed = hash * SEEDS[row];
+            return (mixed ^ mixed >>> 16) & mask;
+        }
+    }
+}
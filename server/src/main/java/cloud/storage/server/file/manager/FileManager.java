@@ -1,69 +1,158 @@
 package cloud.storage.server.file.manager;
 
+import cloud.storage.nio.BlockSignatures;
+import cloud.storage.nio.ContentChunks;
+import cloud.storage.nio.ListPage;
+import cloud.storage.nio.ListRequest;
 import cloud.storage.nio.UserData;
 import cloud.storage.util.Pair;
+import io.netty.buffer.ByteBuf;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class responsible for managing inner file system and giving access to users.
  */
 @Slf4j
 public class FileManager {
-    private final static Duration PENALTY = Duration.ofMinutes(5);
-    private final static Integer SIGN_IN_ATTEMPTS_LIMIT = 3;
-    private final Map<String, String> users;
-    private final Map<String, SocketAddress> sessionByUser = new HashMap<>();
-    private final Map<SocketAddress, String> userBySession = new HashMap<>();
-    private final Map<SocketAddress, Instant> addressPenalty = new HashMap<>();
-    private final Map<SocketAddress, Integer> addressSignInAttempts = new HashMap<>();
+    private final static int SIGN_IN_ATTEMPTS_LIMIT = 3;
+    private final static Duration SIGN_IN_ATTEMPTS_PERIOD = Duration.ofMinutes(5);
+    private final static int SIGN_IN_TRACKED_ADDRESSES = 100_000;
+    private final static int PASSWORD_HASH_ITERATIONS = 100_000;
+    private final static int PASSWORD_HASHING_QUEUE_CAPACITY = 64;
+    private final static String STAGING_FOLDER_NAME = ".uploads";
+    private final static String USERS_FOLDER_NAME = ".users";
+    private final static String STORE_FOLDER_NAME = ".store";
+    private final static String CATALOG_FOLDER_NAME = ".catalog";
+    /**
+     * Time after which suspended uploads are removed.
+     */
+    public final static Duration UPLOAD_TTL = Duration.ofHours(24);
+    private final static Duration ATTACH_TOKEN_TTL = Duration.ofMinutes(1);
+    private final static int ATTACH_TOKEN_BYTES = 16;
+    private final static int LIST_PAGE_ENTRIES = 1000;
+    private final static int MAX_LISTINGS_PER_SESSION = 16;
+    private final UserStore users;
+    private final ChunkStore chunkStore;
+    private final MetadataCatalog catalog;
+    private final QuotaTracker quota;
+    private final FsyncBatcher fsync;
+    private final FileContentCache contentCache;
+    private final MappedFileCache mappedFiles;
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final SignInLimiter signInLimiter = new SignInLimiter(SIGN_IN_ATTEMPTS_LIMIT, SIGN_IN_ATTEMPTS_PERIOD,
+            SIGN_IN_TRACKED_ADDRESSES);
+    private final Map<TransferKey, UploadSession> uploads = new ConcurrentHashMap<>();
+    private final Map<Path, UploadSession> uploadsByTarget = new ConcurrentHashMap<>();
+    private final Map<TransferKey, QuotaTracker.Reservation> reservations = new ConcurrentHashMap<>();
+    private final Map<TransferKey, SyncSession> syncs = new ConcurrentHashMap<>();
+    private final Map<ListingKey, DirectoryListing> listings = new ConcurrentHashMap<>();
+    private final Map<String, AttachToken> attachTokens = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final PasswordHasher passwordHasher = new PasswordHasher(PASSWORD_HASH_ITERATIONS,
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), PASSWORD_HASHING_QUEUE_CAPACITY);
+    /**
+     * Finishes forced uploads: hashes the files for deduplication and records them in the catalog.
+     * The queue is not bounded, as every task is a file which is saved already and has to be recorded.
+     */
+    private final ExecutorService commitExecutor = newCommitExecutor();
 
     private final File root;
-    private final Map<String, File> userRoot = new HashMap<>();
-    private final Map<String, Path> userWorkingDirectory = new HashMap<>();
+    private final Path stagingFolder;
+    private final Map<String, File> userRoot = new ConcurrentHashMap<>();
+    private final Map<String, Path> userWorkingDirectory = new ConcurrentHashMap<>();
 
-    public FileManager(Path root) {
-        this.root = new File(root.toAbsolutePath().normalize().toUri());
-        this.root.mkdirs();
-        users = new HashMap<>();
+    /**
+     * @throws IOException if the stored users can't be loaded.
+     */
+    public FileManager(Path root) throws IOException {
+        this(root, QuotaTracker.UNLIMITED, Duration.ZERO, FileContentCache.DISABLED, MappedFileCache.DISABLED);
     }
 
-    private boolean addressIsBanned(SocketAddress address) {
-        if (!addressPenalty.containsKey(address)) {
-            return false;
+    /**
+     * @param userQuota   number of bytes every user may store, 0 for no limit.
+     * @param fsyncWindow time uploaded files wait to be forced to disk together with others,
+     *                    zero to force every file right away.
+     * @param cacheSize   number of bytes of small files kept in memory, 0 to read every file from disk.
+     * @param mmapMinSize size of the smallest file which small ranges are served from its memory mapping,
+     *                    0 to read every range from the file.
+     * @throws IOException if the stored users can't be loaded.
+     */
+    public FileManager(Path root, long userQuota, Duration fsyncWindow, long cacheSize, long mmapMinSize)
+            throws IOException {
+        if (userQuota < 0) {
+            throw new IllegalArgumentException("User quota can't be negative: " + userQuota);
         }
-        Duration timePassed = Duration.between(addressPenalty.get(address), Instant.now());
-        if (timePassed.minus(PENALTY).isPositive()) {
-            addressPenalty.remove(address);
-            return false;
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size can't be negative: " + cacheSize);
         }
-        return true;
+        if (mmapMinSize < 0) {
+            throw new IllegalArgumentException("Minimum size of mapped files can't be negative: " + mmapMinSize);
+        }
+        this.root = new File(root.toAbsolutePath().normalize().toUri());
+        this.root.mkdirs();
+        this.stagingFolder = this.root.toPath().resolve(STAGING_FOLDER_NAME);
+        new File(stagingFolder.toUri()).mkdirs();
+        long loadStart = System.nanoTime();
+        users = new UserStore(this.root.toPath().resolve(USERS_FOLDER_NAME));
+        chunkStore = new ChunkStore(this.root.toPath().resolve(STORE_FOLDER_NAME));
+        log.info("Users loaded: " + users.size() + " in " + (System.nanoTime() - loadStart) / 1_000_000 + " ms");
+        loadStart = System.nanoTime();
+        fsync = new FsyncBatcher(fsyncWindow);
+        catalog = new MetadataCatalog(this.root.toPath().resolve(CATALOG_FOLDER_NAME), this.root.toPath(), fsync);
+        log.info("Catalog loaded: " + catalog.getFileCount() + " files of " + catalog.getUserCount() + " users in "
+                + (System.nanoTime() - loadStart) / 1_000_000 + " ms");
+        quota = new QuotaTracker(catalog, userQuota);
+        contentCache = new FileContentCache(cacheSize);
+        mappedFiles = new MappedFileCache(mmapMinSize);
+        loadUploads();
+    }
+
+    private static ExecutorService newCommitExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "file-commit-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     private Pair<Boolean, String> startSession(SocketAddress address, String login) {
-        if (sessionByUser.containsKey(login)) {
-            return new Pair<>(false, "This user already has an active session.");
-        }
-        if (userBySession.containsKey(address)) {
-            return new Pair<>(false, "This address already has an active session.");
+        Pair<Boolean, String> result = sessions.start(address, login);
+        if (!result.getFirst()) {
+            return result;
         }
 
-        userBySession.put(address, login);
-        sessionByUser.put(login, address);
-
         log.info("Session started: " + address + "->" + login);
 
         Path userRelativeWorkingDirectory = Path.of("/").resolve(
@@ -72,88 +161,732 @@ public class FileManager {
     }
 
     private void endSession(SocketAddress address) {
-        if (!userBySession.containsKey(address)) {
+        suspendUploads(address);
+        discardSyncs(address);
+        closeListings(address);
+        String login = sessions.end(address);
+        if (login == null) {
             return;
         }
-        String login = userBySession.get(address);
-        userBySession.remove(address);
-        sessionByUser.remove(login);
 
         log.info("Session ended: " + address + "->" + login);
     }
 
-    public Pair<Boolean, String> signUp(SocketAddress address, UserData userData) {
-        if (userBySession.containsKey(address)) {
-            return new Pair<>(false, "There is an active session with such address already.");
+    /**
+     * Registers the user and starts a session for the address.
+     * The password is hashed on the password hashing executor, so the result comes later.
+     */
+    public CompletableFuture<Pair<Boolean, String>> signUp(SocketAddress address, UserData userData) {
+        if (sessions.hasSession(address)) {
+            return completed(false, "There is an active session with such address already.");
         }
-        if (users.containsKey(userData.getLogin())) {
-            return new Pair<>(false, "User with such login is already registered.");
+        String login = userData.getLogin();
+        if (users.contains(login)) {
+            return completed(false, "User with such login is already registered.");
         }
-        users.put(userData.getLogin(), userData.getPassword());
+        if (!isValidUserFolder(login)) {
+            return completed(false, "Failed to create user folder");
+        }
+        // nothing is created until the password is hashed, so a rejected request leaves nothing behind
+        return passwordHasher.hash(userData.getPassword()).thenApply(hash -> {
+            // the folder is made before the user is saved, so the user is never visible without it
+            File folder = userRoot.computeIfAbsent(login, this::createUserFolder);
+            if (folder == null) {
+                return new Pair<>(false, "Failed to create user folder");
+            }
+            try {
+                if (!users.add(login, hash)) {
+                    return new Pair<>(false, "User with such login is already registered.");
+                }
+            } catch (IOException e) {
+                log.error("Error occurred while trying to save a user: ", e);
+                if (!users.contains(login)) {
+                    removeUserFolder(login, folder);
+                }
+                return new Pair<>(false, "Failed to save user.");
+            }
 
-        log.info("User created: " + userData.getLogin() + " " + userData.getPassword());
+            log.info("User created: " + login);
 
-        File folder = userRoot.computeIfAbsent(userData.getLogin(), this::createUserFolder);
-        if (folder == null) {
-            users.remove(userData.getLogin());
-            log.info("User removed: " + userData.getLogin());
-            return new Pair<>(false, "Failed to create user folder");
+            return startSession(address, login);
+        }).exceptionally(FileManager::hashingFailed);
+    }
+
+    /**
+     * Checks the password and starts a session for the address.
+     * The password is checked on the password hashing executor, so the result comes later.
+     */
+    public CompletableFuture<Pair<Boolean, String>> signIn(SocketAddress address, UserData userData) {
+        Duration waitTime = signInLimiter.getWaitTime(address);
+        if (!waitTime.isZero()) {
+            return completed(false, "Address is banned due to excessive number of signing in attempts.\n" +
+                    "Please wait " + (waitTime.toSeconds() + 1) + " seconds and try again.");
+        }
+        if (sessions.hasSession(address)) {
+            return completed(false, "There is an active session with such address already.");
+        }
+        String login = userData.getLogin();
+        String storedHash = users.getPassword(login);
+        if (storedHash == null) {
+            signInLimiter.registerFailure(address);
+            return completed(false, "There is no user with such login.");
         }
+        return passwordHasher.verify(storedHash, userData.getPassword()).thenApply(matches -> {
+            if (!matches) {
+                signInLimiter.registerFailure(address);
+                return new Pair<>(false, "Wrong password.");
+            }
+            // folders of stored users are named after their logins, so they are resolved on the first sign-in
+            // instead of walking the root folder at startup
+            if (userRoot.computeIfAbsent(login, this::createUserFolder) == null) {
+                return new Pair<>(false, "Failed to open user folder");
+            }
+            if (PasswordHasher.isLegacy(storedHash)) {
+                rehashPassword(login, storedHash, userData.getPassword());
+            }
+            return startSession(address, login);
+        }).exceptionally(FileManager::hashingFailed);
+    }
 
-        return startSession(address, userData.getLogin());
+    /**
+     * Replaces the plain password stored before hashing was introduced with its hash in background,
+     * the sign-in does not wait for it.
+     */
+    private void rehashPassword(String login, String storedPassword, String password) {
+        passwordHasher.hash(password).thenAccept(hash -> {
+            try {
+                if (users.replace(login, storedPassword, hash)) {
+                    log.info("Plain password of " + login + " replaced with its hash.");
+                }
+            } catch (IOException e) {
+                log.error("Error occurred while trying to save a password hash: ", e);
+            }
+        }).exceptionally(cause -> {
+            // the plain password stays, so it is hashed on the next sign-in
+            log.warn("Failed to hash the plain password of " + login + ": " + cause.getMessage());
+            return null;
+        });
     }
 
-    public Pair<Boolean, String> signIn(SocketAddress address, UserData userData) {
-        if (addressIsBanned(address)) {
-            return new Pair<>(false, "Address is still banned. Please try again later.");
+    private static CompletableFuture<Pair<Boolean, String>> completed(boolean success, String message) {
+        return CompletableFuture.completedFuture(new Pair<>(success, message));
+    }
+
+    private static Pair<Boolean, String> hashingFailed(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
         }
-        addressSignInAttempts.put(address, addressSignInAttempts.getOrDefault(address, 0) + 1);
-        if (addressSignInAttempts.get(address) > SIGN_IN_ATTEMPTS_LIMIT) {
-            addressSignInAttempts.remove(address);
-            addressPenalty.put(address, Instant.now());
-            return new Pair<>(false, "Address is banned due to excessive number of signing in attempts.\n" +
-                    "Please wait " + PENALTY.toMinutes() + " minutes and try again.");
+        if (cause instanceof RejectedExecutionException) {
+            return new Pair<>(false, "The server is busy. Please try again later.");
         }
-        if (userBySession.containsKey(address)) {
+        log.error("Error occurred while trying to check a password: ", cause);
+        return new Pair<>(false, "Failed to check the password.");
+    }
+
+    /**
+     * @return queue and service times of password hashing since the previous call or null if there was none.
+     */
+    public String getPasswordHashingReport() {
+        return passwordHasher.getReport();
+    }
+
+    /**
+     * @return fsync batches of uploaded files since the previous call or null if there were none.
+     */
+    public String getFsyncReport() {
+        return fsync.getReport();
+    }
+
+    /**
+     * @return hit ratio and traffic of the file cache since the previous call or null if there were no downloads.
+     */
+    public String getFileCacheReport() {
+        return contentCache.getReport();
+    }
+
+    public void signOut(SocketAddress address) {
+        endSession(address);
+    }
+
+    /**
+     * Creates a token to attach other channels of the client to the session of the address,
+     * e.g. to download parts of a file over several channels at once.
+     * The token may be used by several channels until it expires.
+     *
+     * @return token or error message.
+     */
+    public Pair<String, String> createAttachToken(SocketAddress address) {
+        String login = sessions.getUser(address);
+        if (login == null) {
+            return new Pair<>(null, "Unknown session. Please sign up or sign in and try again.");
+        }
+        Instant now = Instant.now();
+        attachTokens.values().removeIf(attachToken -> attachToken.expiresAt().isBefore(now));
+        byte[] tokenBytes = new byte[ATTACH_TOKEN_BYTES];
+        random.nextBytes(tokenBytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+        attachTokens.put(token, new AttachToken(login, now.plus(ATTACH_TOKEN_TTL)));
+        return new Pair<>(token, null);
+    }
+
+    /**
+     * Starts a session of the address for the user who created the token.
+     */
+    public Pair<Boolean, String> attachSession(SocketAddress address, String token) {
+        if (sessions.hasSession(address)) {
             return new Pair<>(false, "There is an active session with such address already.");
         }
-        if (!users.containsKey(userData.getLogin())) {
-            return new Pair<>(false, "There is no user with such login.");
+        AttachToken attachToken = attachTokens.get(token);
+        if (attachToken == null || attachToken.expiresAt().isBefore(Instant.now())) {
+            return new Pair<>(false, "Invalid or expired token.");
         }
-        if (!Objects.equals(users.get(userData.getLogin()), userData.getPassword())) {
-            return new Pair<>(false, "Wrong password.");
+        Pair<Boolean, String> result = sessions.attach(address, attachToken.login());
+        if (!result.getFirst()) {
+            return result;
         }
-        return startSession(address, userData.getLogin());
+
+        log.info("Session attached: " + address + "->" + attachToken.login());
+        return new Pair<>(true, null);
     }
 
-    public void signOut(SocketAddress address) {
-        endSession(address);
+    private record AttachToken(String login, Instant expiresAt) {
     }
 
-    public Pair<Boolean, String> uploadFile(SocketAddress address, Path path, InputStream inputStream) {
-        String login = userBySession.get(address);
+    /**
+     * Starts or resumes a chunked upload for the session.
+     * If there is a suspended upload of the same file with the same size, it is continued,
+     * otherwise a new partial file is created in the staging folder.
+     *
+     * The chunks with the passed hashes which the user has uploaded before are not going to be sent.
+     *
+     * @param uploadId    id of the upload unique for the session.
+     * @param chunkHashes {@link cloud.storage.nio.ContentChunks} hashes of the file, may be empty.
+     * @return offset the client has to continue the upload from and chunks it may skip or error message.
+     */
+    public Pair<UploadStart, String> startUpload(SocketAddress address, int uploadId, Path path, long size,
+                                                 List<byte[]> chunkHashes) {
+        TransferKey key = new TransferKey(address, uploadId);
+        suspendUpload(key);
+        String login = sessions.getUser(address);
         if (login == null) {
-            return new Pair<>(false, "Unknown session. Please sign up or sign in and try again.");
+            return new Pair<>(null, "Unknown session. Please sign up or sign in and try again.");
+        }
+        if (size < 0) {
+            return new Pair<>(null, "Invalid file size.");
+        }
+        Pair<Path, String> resolveResult = resolveUserPath(login, path);
+        if (resolveResult.getFirst() == null) {
+            return new Pair<>(null, resolveResult.getSecond());
+        }
+        Path filePath = resolveResult.getFirst();
+        if (Files.exists(filePath)) {
+            return new Pair<>(null, "File already exists.");
+        }
+        QuotaTracker.Reservation reservation = quota.reserve(login, size);
+        if (reservation == null) {
+            return new Pair<>(null, quota.getExceededMessage(login));
         }
+        // the store is searched before the uploads are locked, so a file being hashed by the store holds up this upload only
+        NavigableMap<Long, ChunkStore.ChunkLocation> foundChunks = chunkStore.findChunks(login, chunkHashes, size);
+        Runnable unpinChunks = () -> chunkStore.unpin(foundChunks.values());
         try {
-            Pair<Path, String> resolveResult = resolveUserPath(login, path);
-            if (resolveResult.getFirst() == null) {
-                return new Pair<>(false, resolveResult.getSecond());
+            synchronized (uploadsByTarget) {
+                UploadSession upload = uploadsByTarget.get(filePath);
+                if (upload != null && upload.isAttached()) {
+                    reservation.release();
+                    unpinChunks.run();
+                    return new Pair<>(null, "The file is being uploaded already.");
+                }
+                if (upload != null && upload.getSize() != size) {
+                    removeUpload(upload);
+                    upload = null;
+                }
+                if (upload == null) {
+                    upload = UploadSession.create(root.toPath(), stagingFolder, filePath, size);
+                    uploadsByTarget.put(filePath, upload);
+                }
+                long offset = upload.attach();
+                NavigableMap<Long, ChunkStore.ChunkLocation> knownChunks = foundChunks.tailMap(offset, true);
+                upload.setKnownChunks(knownChunks, unpinChunks);
+                reservations.put(key, reservation);
+                uploads.put(key, upload);
+                if (offset > 0) {
+                    log.info("Upload of " + filePath + " resumed from " + offset);
+                }
+                BitSet storedChunks = new BitSet();
+                knownChunks.keySet().forEach(chunkOffset -> storedChunks.set((int) (chunkOffset / ContentChunks.CHUNK_SIZE)));
+                return new Pair<>(new UploadStart(offset, storedChunks), null);
+            }
+        } catch (IOException e) {
+            log.error("Error occurred while trying to create a file: ", e);
+            reservation.release();
+            unpinChunks.run();
+            return new Pair<>(null, "Error occurred while trying to write a file in cloud.");
+        }
+    }
+
+    /**
+     * Where a started upload continues from.
+     *
+     * @param offset       number of bytes the server has already.
+     * @param storedChunks indexes of the {@link cloud.storage.nio.ContentChunks} after the offset
+     *                     the client doesn't have to send.
+     */
+    public record UploadStart(long offset, BitSet storedChunks) {
+    }
+
+    /**
+     * Writes the next chunk of the current upload to the partial file.
+     * Returns {@code false} with {@code null} message if there is no upload in progress,
+     * e.g. it was already rejected, so the caller has nothing to report.
+     */
+    public Pair<Boolean, String> uploadFile(SocketAddress address, int uploadId, long offset, ByteBuf chunk) {
+        TransferKey key = new TransferKey(address, uploadId);
+        UploadSession upload = uploads.get(key);
+        if (upload == null) {
+            return new Pair<>(false, null);
+        }
+        try {
+            upload.write(offset, chunk);
+        } catch (IOException e) {
+            log.error("Error occurred while trying to write a file: ", e);
+            suspendUpload(key);
+            return new Pair<>(false, "Error occurred while trying to write a file in cloud.");
+        }
+        return new Pair<>(true, null);
+    }
+
+    /**
+     * Finishes the current upload if all the declared bytes were received:
+     * the partial file is moved to its target path.
+     * Returns {@code false} with {@code null} message if there is no upload in progress.
+     *
+     * @return future which completes when the file is durable, forced to disk in a batch with others.
+     */
+    public CompletableFuture<Pair<Boolean, String>> commitUpload(SocketAddress address, int uploadId) {
+        TransferKey key = new TransferKey(address, uploadId);
+        UploadSession upload = uploads.get(key);
+        if (upload == null) {
+            return CompletableFuture.completedFuture(new Pair<>(false, null));
+        }
+        if (!upload.isComplete()) {
+            suspendUpload(key);
+            return completed(false, "File was not uploaded completely.");
+        }
+        uploads.remove(key);
+        // the request id may start another upload while the file is forced, e.g. the next file of a bundle
+        QuotaTracker.Reservation reservation = reservations.remove(key);
+        // the session may end while the file is forced, the file belongs to the user anyway
+        String login = sessions.getUser(address);
+        CompletableFuture<Void> committed;
+        try {
+            committed = upload.commit(fsync);
+        } catch (IOException e) {
+            committed = CompletableFuture.failedFuture(e);
+        }
+        // the saved file is hashed for deduplication on the commit threads, so it holds up neither the fsync thread
+        // nor the common pool
+        return committed.handleAsync((ignored, cause) -> {
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause != null) {
+                removeUpload(upload);
+                release(reservation);
+                if (cause instanceof FileAlreadyExistsException) {
+                    return new Pair<>(false, "File already exists.");
+                }
+                log.error("Error occurred while trying to save a file: ", cause);
+                return new Pair<>(false, "Error occurred while trying to write a file in cloud.");
+            }
+            uploadsByTarget.remove(upload.getTarget(), upload);
+            log.info("File " + upload.getTarget() + " uploaded.");
+            // the reservation is released only when the catalog counts the file
+            fileSaved(login, upload.getTarget());
+            release(reservation);
+            return new Pair<>(true, null);
+        }, commitExecutor);
+    }
+
+    /**
+     * Stops the upload, e.g. if the client sent malformed data.
+     * Bytes received so far are kept, so the upload may be resumed.
+     *
+     * @return true if the upload was in progress.
+     */
+    public boolean suspendUpload(SocketAddress address, int uploadId) {
+        return suspendUpload(new TransferKey(address, uploadId));
+    }
+
+    private boolean suspendUpload(TransferKey key) {
+        UploadSession upload = uploads.remove(key);
+        if (upload == null) {
+            return false;
+        }
+        releaseReservation(key);
+        upload.suspend();
+        log.info("Upload of " + upload.getTarget() + " suspended.");
+        return true;
+    }
+
+    private void releaseReservation(TransferKey key) {
+        release(reservations.remove(key));
+    }
+
+    private static void release(QuotaTracker.Reservation reservation) {
+        if (reservation != null) {
+            reservation.release();
+        }
+    }
+
+    private void suspendUploads(SocketAddress address) {
+        uploads.keySet().stream()
+                .filter(key -> key.address().equals(address))
+                .toList()
+                .forEach(this::suspendUpload);
+    }
+
+    private void removeUpload(UploadSession upload) {
+        uploadsByTarget.remove(upload.getTarget(), upload);
+        upload.discard();
+    }
+
+    /**
+     * Removes partial files of the uploads which were not continued for longer than the TTL,
+     * and the files in the staging folder older than the TTL which belong to no upload,
+     * e.g. the ones with unreadable metadata or left by a crash.
+     * Meant to be called periodically in background.
+     */
+    public void removeAbandonedUploads() {
+        Instant expired = Instant.now().minus(UPLOAD_TTL);
+        Set<Path> stagedFiles = new HashSet<>();
+        synchronized (uploadsByTarget) {
+            uploadsByTarget.values().stream()
+                    .filter(upload -> !upload.isAttached() && upload.getLastActivity().isBefore(expired))
+                    .toList()
+                    .forEach(upload -> {
+                        removeUpload(upload);
+                        log.info("Abandoned upload of " + upload.getTarget() + " removed.");
+                    });
+            uploadsByTarget.values().forEach(upload -> stagedFiles.addAll(upload.getFiles()));
+        }
+        syncs.values().forEach(sync -> stagedFiles.add(sync.getTempPath()));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(stagingFolder)) {
+            for (Path file : files) {
+                // files of uploads started after the set was collected are newer than the TTL
+                if (!stagedFiles.contains(file) && Files.isRegularFile(file)
+                        && Files.getLastModifiedTime(file).toInstant().isBefore(expired)) {
+                    Files.deleteIfExists(file);
+                    log.info("Orphan staging file " + file + " removed.");
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to clean the staging folder: ", e);
+        }
+    }
+
+    /**
+     * Removes stored content which is not referenced by any user file anymore.
+     * Meant to be called periodically in background.
+     */
+    public void removeUnreferencedChunks() {
+        chunkStore.removeUnreferenced();
+    }
+
+    /**
+     * Writes the file catalog to a new snapshot if its journal has grown long, meant to be called periodically.
+     */
+    public void compactCatalog() {
+        catalog.compactIfNeeded();
+    }
+
+    /**
+     * Restores suspended uploads from the staging folder after the server restart
+     * and removes the new versions of the files which were being synchronized, as synchronizations are not resumed.
+     */
+    private void loadUploads() {
+        try (DirectoryStream<Path> syncFiles = Files.newDirectoryStream(stagingFolder, SyncSession::isTempFile)) {
+            for (Path syncFile : syncFiles) {
+                Files.deleteIfExists(syncFile);
             }
-            Path filePath = resolveResult.getFirst();
+        } catch (IOException e) {
+            log.error("Failed to remove interrupted synchronizations: ", e);
+        }
+        try (DirectoryStream<Path> metaFiles = Files.newDirectoryStream(stagingFolder, UploadSession::isMetaFile)) {
+            for (Path metaFile : metaFiles) {
+                try {
+                    UploadSession upload = UploadSession.load(metaFile, root.toPath());
+                    uploadsByTarget.put(upload.getTarget(), upload);
+                } catch (IOException e) {
+                    log.error("Failed to restore upload: ", e);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to read the staging folder: ", e);
+        }
+    }
+
+    private record TransferKey(SocketAddress address, int requestId) {
+    }
+
+    /**
+     * Starts a delta synchronization of an existing file: signs the blocks of the file
+     * and opens a file for its new version in the staging folder.
+     *
+     * @param syncId id of the synchronization unique for the session.
+     * @return signatures of the blocks of the file or error message.
+     */
+    public Pair<BlockSignatures, String> startSync(SocketAddress address, int syncId, Path path) {
+        TransferKey key = new TransferKey(address, syncId);
+        discardSync(key);
+        String login = sessions.getUser(address);
+        if (login == null) {
+            return new Pair<>(null, "Unknown session. Please sign up or sign in and try again.");
+        }
+        Pair<Path, String> resolveResult = resolveUserPath(login, path);
+        if (resolveResult.getFirst() == null) {
+            return new Pair<>(null, resolveResult.getSecond());
+        }
+        Path filePath = resolveResult.getFirst();
+        if (!Files.isRegularFile(filePath)) {
+            return new Pair<>(null, "File not found. Please check the path or upload the file.");
+        }
+        // nothing is reserved until the new version outgrows the old one
+        QuotaTracker.Reservation reservation = quota.reserve(login, 0);
+        try {
+            SyncSession sync = SyncSession.create(filePath, stagingFolder, reservation);
+            syncs.put(key, sync);
+            return new Pair<>(sync.getSignatures(), null);
+        } catch (NoSuchFileException ignored) {
+            reservation.release();
+            return new Pair<>(null, "File not found. Please check the path or upload the file.");
+        } catch (IOException e) {
+            reservation.release();
+            log.error("Error occurred while trying to sign a file: ", e);
+            return new Pair<>(null, "Error occurred while trying to read a file in cloud.");
+        }
+    }
 
-            new File(filePath.getParent().toUri()).mkdirs();
-            Files.copy(inputStream, filePath);
-            log.info("File " + filePath + " uploaded.");
+    /**
+     * Applies the next {@link cloud.storage.nio.Delta} instructions of the synchronization.
+     * Returns {@code false} with {@code null} message if there is no synchronization in progress,
+     * e.g. it was already rejected, so the caller has nothing to report.
+     */
+    public Pair<Boolean, String> applyDelta(SocketAddress address, int syncId, ByteBuffer instructions) {
+        TransferKey key = new TransferKey(address, syncId);
+        SyncSession sync = syncs.get(key);
+        if (sync == null) {
+            return new Pair<>(false, null);
+        }
+        try {
+            sync.apply(instructions);
+        } catch (IllegalArgumentException e) {
+            discardSync(key);
+            return new Pair<>(false, e.getMessage());
         } catch (IOException e) {
             log.error("Error occurred while trying to write a file: ", e);
-            return new Pair<>(false, "Error occurred while trying to write a file in cloud .");
+            discardSync(key);
+            return new Pair<>(false, "Error occurred while trying to write a file in cloud.");
         }
         return new Pair<>(true, null);
     }
 
-    public Pair<InputStream, String> downloadFile(SocketAddress address, Path path) {
-        String login = userBySession.get(address);
+    /**
+     * Replaces the file with its rebuilt version if it has the size and the SHA-256 hash the client declared.
+     * Returns {@code false} with {@code null} message if there is no synchronization in progress.
+     */
+    public Pair<Boolean, String> commitSync(SocketAddress address, int syncId, long size, byte[] hash) {
+        SyncSession sync = syncs.remove(new TransferKey(address, syncId));
+        if (sync == null) {
+            return new Pair<>(false, null);
+        }
+        try {
+            if (!sync.commit(size, hash)) {
+                return new Pair<>(false, "File was changed while synchronizing. Please try again.");
+            }
+        } catch (IOException e) {
+            log.error("Error occurred while trying to save a file: ", e);
+            sync.discard();
+            return new Pair<>(false, "Error occurred while trying to write a file in cloud.");
+        }
+        log.info("File " + sync.getTarget() + " synchronized.");
+        // the reservation is released only when the catalog counts the new version
+        fileSaved(sessions.getUser(address), sync.getTarget());
+        sync.getReservation().release();
+        return new Pair<>(true, null);
+    }
+
+    /**
+     * Deduplicates the file which has just appeared by its path and records it in the catalog.
+     */
+    private void fileSaved(String login, Path file) {
+        contentCache.invalidate(file);
+        mappedFiles.invalidate(file);
+        if (login == null) {
+            return;
+        }
+        byte[] hash = null;
+        try {
+            hash = chunkStore.add(login, file);
+        } catch (IOException e) {
+            // the file is saved anyway, it is just not deduplicated
+            log.error("Failed to add a file to the chunk store: ", e);
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            catalog.putFile(login, getUserRelativePath(login, file), attributes.size(),
+                    attributes.lastModifiedTime().toMillis(), hash);
+        } catch (IOException e) {
+            log.error("Failed to read the attributes of a saved file: ", e);
+        }
+    }
+
+    private void discardSync(TransferKey key) {
+        SyncSession sync = syncs.remove(key);
+        if (sync != null) {
+            sync.discard();
+        }
+    }
+
+    private void discardSyncs(SocketAddress address) {
+        syncs.keySet().stream()
+                .filter(key -> key.address().equals(address))
+                .toList()
+                .forEach(this::discardSync);
+    }
+
+    /**
+     * Gets metadata of a file or a folder from the catalog without touching the disk.
+     *
+     * @return metadata or error message.
+     */
+    public Pair<FileMetadata, String> getFileMetadata(SocketAddress address, Path path) {
+        String login = sessions.getUser(address);
+        if (login == null) {
+            return new Pair<>(null, "Unknown session. Please sign up or sign in and try again.");
+        }
+        Pair<Path, String> resolveResult = resolveUserPath(login, path, true);
+        if (resolveResult.getFirst() == null) {
+            return new Pair<>(null, resolveResult.getSecond());
+        }
+        FileMetadata metadata = catalog.stat(login, getUserRelativePath(login, resolveResult.getFirst()));
+        if (metadata == null) {
+            return new Pair<>(null, "File not found. Please check the path and try again.");
+        }
+        return new Pair<>(metadata, null);
+    }
+
+    /**
+     * Checks the usage counters of the catalog against the user folders and fixes the ones which drifted.
+     * Meant to be called periodically in background.
+     */
+    public void reconcileUsage() {
+        for (String login : catalog.getUsers()) {
+            Path userFolder = root.toPath().resolve(login);
+            try {
+                if (Files.isDirectory(userFolder)) {
+                    catalog.reconcile(login, userFolder);
+                }
+            } catch (IOException e) {
+                log.error("Failed to reconcile the usage of " + login + ": ", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the next page of the entries of a folder.
+     * A new listing is opened if there is no cursor, and it is kept open between the pages
+     * under a new cursor returned with every page but the last one.
+     *
+     * @param path      path of the folder, ignored when the cursor is passed.
+     * @param recursive true to list the subfolders too, ignored when the cursor is passed.
+     * @param cursor    cursor of the previous page or {@link ListRequest#NO_CURSOR}.
+     * @return page of entries or error message.
+     */
+    public Pair<ListPage, String> listFolder(SocketAddress address, Path path, boolean recursive, long cursor) {
+        String login = sessions.getUser(address);
+        if (login == null) {
+            return new Pair<>(null, "Unknown session. Please sign up or sign in and try again.");
+        }
+        DirectoryListing listing;
+        if (cursor == ListRequest.NO_CURSOR) {
+            Pair<Path, String> resolveResult = resolveUserPath(login, path, true);
+            if (resolveResult.getFirst() == null) {
+                return new Pair<>(null, resolveResult.getSecond());
+            }
+            if (!Files.isDirectory(resolveResult.getFirst())) {
+                return new Pair<>(null, "Folder not found. Please check the path and try again.");
+            }
+            if (listings.keySet().stream().filter(key -> key.address().equals(address)).count() >= MAX_LISTINGS_PER_SESSION) {
+                return new Pair<>(null, "Too many unfinished listings. Please finish them or reconnect.");
+            }
+            try {
+                listing = DirectoryListing.open(resolveResult.getFirst(), recursive);
+            } catch (IOException e) {
+                log.error("Error occurred while trying to open a folder: ", e);
+                return new Pair<>(null, "Failed to read folder in cloud.");
+            }
+        } else {
+            listing = listings.remove(new ListingKey(address, cursor));
+            if (listing == null) {
+                return new Pair<>(null, "Listing is over or unknown. Please start it again.");
+            }
+        }
+        try {
+            List<ListPage.Entry> entries = listing.next(LIST_PAGE_ENTRIES);
+            if (listing.isDone()) {
+                listing.close();
+                return new Pair<>(new ListPage(ListRequest.NO_CURSOR, entries), null);
+            }
+            long nextCursor;
+            do {
+                nextCursor = random.nextLong();
+            } while (nextCursor == ListRequest.NO_CURSOR);
+            listings.put(new ListingKey(address, nextCursor), listing);
+            return new Pair<>(new ListPage(nextCursor, entries), null);
+        } catch (IOException e) {
+            log.error("Error occurred while trying to read a folder: ", e);
+            listing.close();
+            return new Pair<>(null, "Failed to read folder in cloud.");
+        }
+    }
+
+    /**
+     * Closes the listing before its last page, e.g. if the pages are not needed anymore.
+     *
+     * @param cursor cursor of the last page read, unknown cursors are ignored.
+     */
+    public void closeListing(SocketAddress address, long cursor) {
+        DirectoryListing listing = listings.remove(new ListingKey(address, cursor));
+        if (listing != null) {
+            listing.close();
+        }
+    }
+
+    private void closeListings(SocketAddress address) {
+        listings.keySet().stream()
+                .filter(key -> key.address().equals(address))
+                .toList()
+                .forEach(key -> {
+                    DirectoryListing listing = listings.remove(key);
+                    if (listing != null) {
+                        listing.close();
+                    }
+                });
+    }
+
+    private record ListingKey(SocketAddress address, long cursor) {
+    }
+
+    /**
+     * Opens the file to send it, small files which are downloaded often come from the cache instead,
+     * and small ranges of large files come from their mappings.
+     *
+     * @param rangeLength length of the requested range or {@link cloud.storage.nio.DownloadRequest#TILL_END}.
+     * @return content of the file or error message.
+     */
+    public Pair<FileSource, String> downloadFile(SocketAddress address, Path path, long rangeLength) {
+        String login = sessions.getUser(address);
         if (login == null) {
             return new Pair<>(null, "Unknown session. Please sign up or sign in and try again.");
         }
@@ -163,17 +896,53 @@ public class FileManager {
         }
         Path filePath = resolveResult.getFirst();
 
-        File file = new File(filePath.toUri());
         try {
-            FileInputStream fileInputStream = new FileInputStream(file);
-            return new Pair<>(fileInputStream, null);
-        } catch (FileNotFoundException ignored) {
+            BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return new Pair<>(null, "File not found. Please check the path and try again.");
+            }
+            ByteBuf content = contentCache.get(filePath, attributes);
+            if (content != null) {
+                return new Pair<>(new FileSource(content, null, null), null);
+            }
+            if (mappedFiles.accepts(attributes, rangeLength)) {
+                return new Pair<>(new FileSource(null, mappedFiles.get(filePath, attributes), null), null);
+            }
+            FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);
+            try {
+                content = contentCache.load(filePath, attributes, fileChannel);
+            } catch (IOException e) {
+                // the file is sent from disk then
+                log.error("Failed to read a file into the cache: ", e);
+            }
+            if (content != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException ignored) {
+                }
+                return new Pair<>(new FileSource(content, null, null), null);
+            }
+            return new Pair<>(new FileSource(null, null, fileChannel), null);
+        } catch (NoSuchFileException ignored) {
             return new Pair<>(null, "File not found. Please check the path and try again.");
+        } catch (IOException e) {
+            log.error("Error occurred while trying to open a file: ", e);
+            return new Pair<>(null, "Failed to read file from cloud.");
         }
     }
 
+    /**
+     * File to send: cached, mapped or open.
+     *
+     * @param content cached content of the file, the receiver has to release it, or null.
+     * @param mapping mapping of the file, the receiver has to release it, or null.
+     * @param channel open file, the receiver has to close it, or null if the file is cached or mapped.
+     */
+    public record FileSource(ByteBuf content, MappedFile mapping, FileChannel channel) {
+    }
+
     public Pair<Boolean, String> moveFile(SocketAddress address, Path source, Path dest) {
-        String login = userBySession.get(address);
+        String login = sessions.getUser(address);
         if (login == null) {
             return new Pair<>(null, "Unknown session. Please sign up or sign in and try again.");
         }
@@ -204,15 +973,38 @@ public class FileManager {
         if (!success) {
             return new Pair<>(false, "Failed to move a file");
         }
+        catalog.move(login, getUserRelativePath(login, sourceResolved), getUserRelativePath(login, destResolved));
+        contentCache.invalidate(sourceResolved);
+        contentCache.invalidate(destResolved);
+        mappedFiles.invalidate(sourceResolved);
+        mappedFiles.invalidate(destResolved);
         return new Pair<>(true, null);
 
     }
 
+    /**
+     * @return true if the login may name a folder in the root, which is not checked to exist.
+     */
+    private boolean isValidUserFolder(String login) {
+        // hidden names are reserved for the server, e.g. for the staging folder
+        if (login.startsWith(".")) {
+            return false;
+        }
+        try {
+            Path folder = getFilePath(new File(root, login));
+            return folder.startsWith(getFilePath(root)) && !folder.equals(getFilePath(root));
+        } catch (InvalidPathException | SecurityException e) {
+            return false;
+        }
+    }
+
     private File createUserFolder(String login) {
+        if (!isValidUserFolder(login)) {
+            return null;
+        }
         File file = new File(root, login);
         try {
-            if (!getFilePath(file).startsWith(getFilePath(root))
-                    || !file.exists() && !file.mkdir()
+            if (!file.exists() && !file.mkdir()
                     || !file.isDirectory()
                     || !file.canWrite()
                     || !file.canRead()) {
@@ -225,11 +1017,39 @@ public class FileManager {
         return file;
     }
 
+    /**
+     * Forgets the folder of a user who failed to be saved and removes it if it is empty.
+     */
+    private void removeUserFolder(String login, File folder) {
+        userRoot.remove(login, folder);
+        userWorkingDirectory.remove(login);
+        try {
+            Files.deleteIfExists(folder.toPath());
+        } catch (IOException ignored) {
+            // the folder has files, so it was there before
+        }
+    }
+
     private static Path getFilePath(File file) {
         return file.toPath().toAbsolutePath().normalize();
     }
 
+    /**
+     * @param filePath resolved path of a file of the user.
+     * @return path of the file relative to the user folder.
+     */
+    private Path getUserRelativePath(String login, Path filePath) {
+        return getFilePath(userRoot.get(login)).relativize(filePath);
+    }
+
     private Pair<Path, String> resolveUserPath(String login, Path path) {
+        return resolveUserPath(login, path, false);
+    }
+
+    /**
+     * @param allowFolder true if the path may point to the user folder itself.
+     */
+    private Pair<Path, String> resolveUserPath(String login, Path path, boolean allowFolder) {
         path = path.normalize();
 
         // converting absolute path to relative by removing root
@@ -240,7 +1060,7 @@ public class FileManager {
 
         Path filePath = userWorkingDirectory.get(login).resolve(path).normalize();
         Path userRootPath = getFilePath(userRoot.get(login));
-        if (!filePath.startsWith(userRootPath) || filePath.equals(userRootPath)) {
+        if (!filePath.startsWith(userRootPath) || !allowFolder && filePath.equals(userRootPath)) {
             return new Pair<>(null, "Invalid path passed. You have no access to files outside your folder.");
         }
         return new Pair<>(filePath, null);
@@ -0,0 +1,13 @@
+package cloud.storage.server.file.manager;
+
+/**
+ * Metadata of a file or a folder of a user kept by the {@link MetadataCatalog}.
+ *
+ * @param name     name of the file, empty for the root folder of the user.
+ * @param folder   true for folders, which have no size, modification time and hash.
+ * @param size     size of the file in bytes.
+ * @param modified last modification time of the file in milliseconds since the epoch.
+ * @param hash     {@link cloud.storage.nio.ContentChunks#hashOfHashes} of the content or null if it is unknown.
+ */
+public record FileMetadata(String name, boolean folder, long size, long modified, byte[] hash) {
+}
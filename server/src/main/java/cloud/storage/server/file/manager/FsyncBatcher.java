@@ -0,0 +1,169 @@
+package cloud.storage.server.file.manager;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit of fsync calls.
+ * <p>
+ * A file is durable only after it is forced to disk, and its new name is durable only after the folder is forced,
+ * but forcing costs milliseconds, so hundreds of small uploads forcing one by one would spend most of their time
+ * waiting for the disk. Instead, the requests which arrive within the latency window are collected into a batch
+ * and forced together on a dedicated thread: a folder is forced once for the whole batch however many files
+ * were renamed in it, and the disk gets the writes of the batch at once.
+ * <p>
+ * The futures complete on the fsync thread, so their callbacks must be short.
+ * With zero window everything is forced right away by the calling thread.
+ */
+class FsyncBatcher {
+    private final long windowNanos;
+    private final ScheduledExecutorService executor;
+    private List<Request> pending = new ArrayList<>();
+    private long batches;
+    private long requests;
+    private long forcedFolders;
+    private long forceNanos;
+    private long maxForceNanos;
+
+    private record Request(FileChannel file, Collection<Path> folders, CompletableFuture<Void> future) {
+    }
+
+    /**
+     * @param window time the first request of a batch waits for others, zero to force every request separately.
+     */
+    FsyncBatcher(Duration window) {
+        windowNanos = window.toNanos();
+        executor = windowNanos == 0 ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fsync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Forces the content and the metadata of the file to disk.
+     *
+     * @return future which completes when the file is durable.
+     */
+    CompletableFuture<Void> force(FileChannel file) {
+        return submit(new Request(file, List.of(), new CompletableFuture<>()));
+    }
+
+    /**
+     * Forces the folders to disk, so the files created, renamed or removed in them stay so after a crash.
+     *
+     * @return future which completes when the folders are durable.
+     */
+    CompletableFuture<Void> forceFolders(Collection<Path> folders) {
+        return submit(new Request(null, folders, new CompletableFuture<>()));
+    }
+
+    private CompletableFuture<Void> submit(Request request) {
+        if (executor == null) {
+            flush(List.of(request));
+            return request.future();
+        }
+        synchronized (this) {
+            pending.add(request);
+            if (pending.size() == 1) {
+                executor.schedule(this::flushPending, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        return request.future();
+    }
+
+    private void flushPending() {
+        List<Request> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        flush(batch);
+    }
+
+    private void flush(List<Request> batch) {
+        long start = System.nanoTime();
+        Map<Path, List<Request>> folders = new LinkedHashMap<>();
+        List<Request> forced = new ArrayList<>();
+        for (Request request : batch) {
+            if (request.file() != null) {
+                try {
+                    request.file().force(true);
+                } catch (IOException | RuntimeException e) {
+                    request.future().completeExceptionally(e);
+                    continue;
+                }
+            }
+            for (Path folder : request.folders()) {
+                folders.computeIfAbsent(folder, key -> new ArrayList<>()).add(request);
+            }
+            forced.add(request);
+        }
+        for (Map.Entry<Path, List<Request>> folder : folders.entrySet()) {
+            try {
+                forceFolder(folder.getKey());
+            } catch (IOException | RuntimeException e) {
+                folder.getValue().forEach(request -> request.future().completeExceptionally(e));
+            }
+        }
+        count(batch.size(), folders.size(), System.nanoTime() - start);
+        forced.forEach(request -> request.future().complete(null));
+    }
+
+    /**
+     * Forces the folder to disk right away on the calling thread, e.g. after a rename in a folder of the server's own files.
+     */
+    static void forceFolder(Path folder) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(folder, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // folders can't be opened on some platforms, e.g. on Windows, where renames are durable anyway
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    private synchronized void count(int batchRequests, int batchFolders, long batchNanos) {
+        batches++;
+        requests += batchRequests;
+        forcedFolders += batchFolders;
+        forceNanos += batchNanos;
+        maxForceNanos = Math.max(maxForceNanos, batchNanos);
+    }
+
+    /**
+     * Reports the batches since the previous report and starts counting anew.
+     *
+     * @return report or null if nothing was forced.
+     */
+    synchronized String getReport() {
+        if (batches == 0) {
+            return null;
+        }
+        String report = String.format("Fsync: %d requests in %d batches, %.1f requests per batch, %d folders forced, "
+                        + "batch time avg %d ms max %d ms",
+                requests, batches, (double) requests / batches, forcedFolders,
+                forceNanos / batches / 1_000_000, maxForceNanos / 1_000_000);
+        batches = 0;
+        requests = 0;
+        forcedFolders = 0;
+        forceNanos = 0;
+        maxForceNanos = 0;
+        return report;
+    }
+}
@@ -0,0 +1,111 @@
+package cloud.storage.server.file.manager;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only mapping of a whole file shared by the {@link MappedFileCache} and the downloads,
+ * in regions of at most {@link #REGION_SIZE} bytes, as a single buffer can't be longer than 2 GiB.
+ * The file is unmapped when the last reference is released.
+ */
+public final class MappedFile extends AbstractReferenceCounted {
+    private static final long REGION_SIZE = 1L << 30;
+    private final long size;
+    private final long modified;
+    private final List<MappedByteBuffer> regions;
+
+    private MappedFile(long size, long modified, List<MappedByteBuffer> regions) {
+        this.size = size;
+        this.modified = modified;
+        this.regions = regions;
+    }
+
+    /**
+     * @param attributes attributes the file had before it was opened.
+     */
+    static MappedFile map(Path path, BasicFileAttributes attributes) throws IOException {
+        List<MappedByteBuffer> regions = new ArrayList<>();
+        long size;
+        long modified;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // a mapping longer than the file would fail on access, and if the file was replaced after the attributes
+            // were read, the mapping matches no attributes, so the cache does not keep it
+            size = channel.size();
+            modified = size == attributes.size() ? attributes.lastModifiedTime().toMillis() : -1;
+            for (long position = 0; position < size; position += REGION_SIZE) {
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(REGION_SIZE, size - position)));
+            }
+        } catch (IOException | RuntimeException e) {
+            regions.forEach(PlatformDependent::freeDirectBuffer);
+            throw e;
+        }
+        return new MappedFile(size, modified, regions);
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+        return size == attributes.size() && modified == attributes.lastModifiedTime().toMillis();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Wraps the range of the mapping without copying it.
+     * The buffer does not hold a reference to the mapping, so the caller has to hold one till the buffer is used.
+     *
+     * @param position position of the range in the file.
+     * @param length   length of the range, the range has to be inside the file.
+     */
+    public ByteBuf slice(long position, int length) {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IndexOutOfBoundsException("Range " + position + "+" + length + " is out of file size " + size);
+        }
+        int first = (int) (position / REGION_SIZE);
+        int last = (int) ((position + length - 1) / REGION_SIZE);
+        if (length == 0) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+        if (first == last) {
+            return Unpooled.wrappedBuffer(regionSlice(first, position, length));
+        }
+        // the range crosses the end of a region
+        int firstLength = (int) ((long) last * REGION_SIZE - position);
+        return Unpooled.wrappedBuffer(regionSlice(first, position, firstLength),
+                regionSlice(last, position + firstLength, length - firstLength));
+    }
+
+    private ByteBuffer regionSlice(int region, long position, int length) {
+        return regions.get(region).slice((int) (position - region * REGION_SIZE), length);
+    }
+
+    @Override
+    public MappedFile retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public MappedFile touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        // unmapped right away, the file may be replaced by then, so its old content should not stay mapped
+        regions.forEach(PlatformDependent::freeDirectBuffer);
+    }
+}
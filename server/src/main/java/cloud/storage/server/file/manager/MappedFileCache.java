@@ -0,0 +1,106 @@
+package cloud.storage.server.file.manager;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory mappings of large files for serving small ranges of them, e.g. random reads of a multi-GB file:
+ * a file is mapped once and every range is a slice of the mapping, so serving it takes neither opening the file
+ * nor reading it into a buffer.
+ * <p>
+ * A mapping is shared through a reference-counted {@link MappedFile}: the cache holds one reference
+ * and every download holds one while it sends the range. A mapping is found by the path of the file and is used
+ * only if the file still has the size and the modification time it had when it was mapped.
+ * The least recently used mappings are evicted when there are too many, and the mappings of the files uploaded,
+ * synchronized or moved through the server are evicted right away.
+ * Evicted mappings are unmapped as soon as the last download using them is over,
+ * instead of when the garbage collector gets to them.
+ */
+class MappedFileCache {
+    /**
+     * Minimum size meaning that nothing is mapped.
+     */
+    static final long DISABLED = 0;
+    /**
+     * Maximum length of a range served from a mapping, longer ones are sent from the file with zero-copy transfer.
+     */
+    static final long MAX_RANGE_LENGTH = 1024 * 1024;
+    private static final int MAX_MAPPINGS = 64;
+
+    private final long minFileSize;
+    private final Map<Path, MappedFile> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param minFileSize size of the smallest file to map or {@link #DISABLED}.
+     */
+    MappedFileCache(long minFileSize) {
+        this.minFileSize = minFileSize;
+    }
+
+    /**
+     * @return true if the range of the file is served from its mapping.
+     */
+    boolean accepts(BasicFileAttributes attributes, long rangeLength) {
+        return minFileSize != DISABLED && attributes.size() >= minFileSize
+                && rangeLength > 0 && rangeLength <= MAX_RANGE_LENGTH;
+    }
+
+    /**
+     * Finds the mapping of the file or maps it.
+     *
+     * @param attributes current attributes of the file.
+     * @return retained mapping, the caller has to release it. A mapping of a file which changed since the attributes
+     * were read is not cached, so it neither replaces a valid mapping nor evicts others.
+     */
+    MappedFile get(Path path, BasicFileAttributes attributes) throws IOException {
+        synchronized (this) {
+            MappedFile mapping = mappings.get(path);
+            if (mapping != null && mapping.matches(attributes)) {
+                return mapping.retain();
+            }
+        }
+        // mapping does not read the file, but it is still a system call, so it is done without holding the cache
+        MappedFile mapping = MappedFile.map(path, attributes);
+        if (!mapping.matches(attributes)) {
+            // the file changed after its attributes were read, the mapping serves the current download only
+            return mapping;
+        }
+        synchronized (this) {
+            MappedFile current = mappings.get(path);
+            if (current != null && current.matches(attributes)) {
+                // another download mapped the file meanwhile
+                mapping.release();
+                return current.retain();
+            }
+            MappedFile previous = mappings.put(path, mapping.retain());
+            if (previous != null) {
+                previous.release();
+            }
+            if (mappings.size() > MAX_MAPPINGS) {
+                Map.Entry<Path, MappedFile> eldest = mappings.entrySet().iterator().next();
+                mappings.remove(eldest.getKey());
+                eldest.getValue().release();
+            }
+        }
+        return mapping;
+    }
+
+    /**
+     * Evicts the mapping of the file or of the files in the folder, e.g. after they were replaced or moved.
+     */
+    synchronized void invalidate(Path path) {
+        if (mappings.isEmpty()) {
+            return;
+        }
+        mappings.entrySet().removeIf(entry -> {
+            if (entry.getKey().startsWith(path)) {
+                entry.getValue().release();
+                return true;
+            }
+            return false;
+        });
+    }
+}
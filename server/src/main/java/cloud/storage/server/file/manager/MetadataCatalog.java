@@ -0,0 +1,766 @@
+package cloud.storage.server.file.manager;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory catalog of the files of all users, so stat and usage queries don't touch the disk.
+ * Listings stream from the folders themselves, see {@link DirectoryListing}, so a huge folder is never copied.
+ * <p>
+ * Every user has a {@link Tree}: a table of nodes with their names, sizes, modification times and content hashes,
+ * linked to their parents and siblings by indexes, and a hash index of the nodes by their parent and name.
+ * <p>
+ * Changes are recorded after they are made on disk: every change is a single record appended to a journal
+ * and applied to the catalog in the same order. The journal is forced to disk in batches by the {@link FsyncBatcher},
+ * and a record is applied as a whole or not at all, but a crash may lose the last records,
+ * leaving the catalog behind the file system until {@link #reconcile} fixes it.
+ * When the journal grows long, the whole catalog is written to a snapshot in background by {@link #compactIfNeeded()},
+ * the snapshot replaces the previous one with an atomic rename, and the journal is cleared.
+ * <p>
+ * The catalog itself is locked only to apply a record or to read it: the journal and the snapshot are written
+ * under a separate lock, so queries never wait for the disk, while changes wait for the snapshot being written.
+ * Both files consist of records {@code int length | int crc32 | byte operation | string login | operands},
+ * where strings are {@code int length | UTF-8 bytes} and paths are relative to the folder of the user.
+ * A torn record at the end of the journal, left by a crash in the middle of an append, is dropped.
+ * <p>
+ * The catalog is filled from the file system when there are no catalog files yet, e.g. on the first start.
+ */
+@Slf4j
+class MetadataCatalog {
+    private static final String SNAPSHOT_FILE_NAME = "catalog.snapshot";
+    private static final String JOURNAL_FILE_NAME = "catalog.journal";
+    private static final int SNAPSHOT_THRESHOLD = 100_000;
+    private static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+    private static final int WRITE_BUFFER_LENGTH = 1024 * 1024;
+    private static final byte PUT_FILE = 1;
+    private static final byte MAKE_FOLDER = 2;
+    private static final byte MOVE = 4;
+
+    private final Map<String, Tree> trees = new ConcurrentHashMap<>();
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final FileChannel journalChannel;
+    private final FsyncBatcher fsync;
+    /**
+     * Held while the journal or the snapshot is written and taken before the catalog,
+     * so the records are in the journal in the order they are applied, and the snapshot sees no changes.
+     */
+    private final Object journalLock = new Object();
+    private int journalRecords;
+    private volatile boolean snapshotNeeded;
+
+    /**
+     * Loads the catalog from the folder or builds it from the user folders in the root if there is no catalog yet.
+     *
+     * @param fsync batcher the journal is forced with.
+     * @throws IOException if the files can't be read or the snapshot is corrupted.
+     */
+    MetadataCatalog(Path folder, Path root, FsyncBatcher fsync) throws IOException {
+        this.fsync = fsync;
+        Files.createDirectories(folder);
+        snapshotPath = folder.resolve(SNAPSHOT_FILE_NAME);
+        journalPath = folder.resolve(JOURNAL_FILE_NAME);
+        boolean exists = Files.exists(snapshotPath) || Files.exists(journalPath);
+        long snapshotLength = Files.exists(snapshotPath) ? Files.size(snapshotPath) : 0;
+        if (load(snapshotPath) != snapshotLength) {
+            throw new IOException("Catalog snapshot " + snapshotPath + " is corrupted");
+        }
+        journalRecords = 0;
+        long journalLength = load(journalPath);
+        journalChannel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (journalChannel.size() > journalLength) {
+            log.warn("Torn record at the end of the catalog journal is dropped");
+            journalChannel.truncate(journalLength);
+        }
+        journalChannel.position(journalLength);
+        if (!exists) {
+            scan(root);
+            compact();
+        } else if (journalRecords >= SNAPSHOT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Reads records of the file into the catalog.
+     *
+     * @return length of the valid records at the beginning of the file.
+     */
+    private long load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Catalog file " + path + " is too large");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+                int recordStart = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    return recordStart;
+                }
+                ByteBuffer body = buffer.slice(buffer.position(), length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    return recordStart;
+                }
+                try {
+                    apply(body);
+                } catch (IllegalArgumentException | BufferUnderflowException e) {
+                    return recordStart;
+                }
+                buffer.position(recordStart + RECORD_HEADER_LENGTH + length);
+                journalRecords++;
+            }
+            return buffer.position();
+        }
+    }
+
+    /**
+     * Fills the catalog with the files in the user folders, which are the folders of the root with non-hidden names.
+     */
+    private void scan(Path root) throws IOException {
+        long start = System.currentTimeMillis();
+        try (DirectoryStream<Path> userFolders = Files.newDirectoryStream(root,
+                path -> Files.isDirectory(path) && !path.getFileName().toString().startsWith("."))) {
+            for (Path userFolder : userFolders) {
+                scan(userFolder, getTree(userFolder.getFileName().toString()));
+            }
+        }
+        log.info("Catalog built of {} users in {} ms", trees.size(), System.currentTimeMillis() - start);
+    }
+
+    private static void scan(Path userFolder, Tree tree) throws IOException {
+        Files.walkFileTree(userFolder, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                tree.makeFolder(getNames(userFolder.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    tree.putFile(getNames(userFolder.relativize(file)), attrs.size(),
+                            attrs.lastModifiedTime().toMillis(), null);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // removed while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Compares the usage of the user by the catalog with the files in the user folder
+     * and replaces the tree of the user with the one read from disk if they differ,
+     * e.g. if the server crashed after a file was saved but before it was recorded.
+     * The folder is read without holding the catalog, and if the user changes something meanwhile,
+     * nothing is replaced, so the next call has to try again.
+     * Known hashes of the files which did not change are kept.
+     *
+     * @return true if the tree was replaced.
+     */
+    boolean reconcile(String login, Path userFolder) throws IOException {
+        long version;
+        synchronized (this) {
+            version = getTree(login).version;
+        }
+        Tree scanned = new Tree();
+        scan(userFolder, scanned);
+        synchronized (journalLock) {
+            Tree current;
+            synchronized (this) {
+                current = getTree(login);
+                if (current.version != version
+                        || current.usedBytes == scanned.usedBytes && current.fileCount == scanned.fileCount) {
+                    return false;
+                }
+                scanned.copyHashes(Tree.ROOT, current, Tree.ROOT);
+                scanned.version = current.version + 1;
+                trees.put(login, scanned);
+            }
+            log.warn("Catalog of {} drifted: {} bytes in {} files recorded, {} bytes in {} files found",
+                    login, current.usedBytes, current.fileCount, scanned.usedBytes, scanned.fileCount);
+            // the new tree is not in the journal, so it is persisted with a snapshot right away
+            try {
+                compact();
+            } catch (IOException e) {
+                snapshotNeeded = true;
+                log.error("Failed to write catalog snapshot: ", e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return logins of the users which have files in the catalog.
+     */
+    List<String> getUsers() {
+        return new ArrayList<>(trees.keySet());
+    }
+
+    private static String[] getNames(Path relativePath) {
+        if (relativePath.toString().isEmpty()) {
+            return new String[0];
+        }
+        String[] names = new String[relativePath.getNameCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = relativePath.getName(i).toString();
+        }
+        return names;
+    }
+
+    private static String[] getNames(String path) {
+        return path.isEmpty() ? new String[0] : path.split("/");
+    }
+
+    private Tree getTree(String login) {
+        return trees.computeIfAbsent(login, key -> new Tree());
+    }
+
+    /**
+     * Records a new or replaced file.
+     *
+     * @param path path of the file relative to the user folder.
+     * @param hash hash of the content or null if it is unknown.
+     */
+    void putFile(String login, Path path, long size, long modified, byte[] hash) {
+        Record record = new Record(PUT_FILE, login).putPath(path).putLong(size).putLong(modified);
+        record.putBytes(hash == null ? new byte[0] : hash);
+        commit(record);
+    }
+
+    /**
+     * Records a move of a file or a folder, replacing the destination if there is one.
+     */
+    void move(String login, Path source, Path dest) {
+        commit(new Record(MOVE, login).putPath(source).putPath(dest));
+    }
+
+    /**
+     * @param path path relative to the user folder, empty for the user folder itself.
+     * @return metadata of the file or folder or null if there is no such file.
+     */
+    synchronized FileMetadata stat(String login, Path path) {
+        Tree tree = trees.get(login);
+        if (tree == null) {
+            return null;
+        }
+        int node = tree.find(getNames(path));
+        return node < 0 ? null : tree.getMetadata(node);
+    }
+
+    /**
+     * Reads the counter without locking the catalog.
+     *
+     * @return total size of the files of the user.
+     */
+    long getUsedBytes(String login) {
+        Tree tree = trees.get(login);
+        return tree == null ? 0 : tree.usedBytes;
+    }
+
+    /**
+     * @return number of files of all users.
+     */
+    long getFileCount() {
+        return trees.values().stream().mapToLong(tree -> tree.fileCount).sum();
+    }
+
+    int getUserCount() {
+        return trees.size();
+    }
+
+    /**
+     * Appends the record to the journal and applies it, the journal is forced later in a batch.
+     * The change has been made on disk already, so it is applied even if the journal can't be written:
+     * the catalog is written to a new snapshot then, which makes the journal unnecessary.
+     */
+    private void commit(Record record) {
+        ByteBuffer frame = record.toFrame();
+        synchronized (journalLock) {
+            boolean journaled = append(frame.duplicate());
+            synchronized (this) {
+                apply(frame.position(RECORD_HEADER_LENGTH).slice());
+            }
+            if (!journaled || ++journalRecords >= SNAPSHOT_THRESHOLD) {
+                snapshotNeeded = true;
+            }
+        }
+    }
+
+    /**
+     * @return false if the record can't be written, the journal is left as it was then.
+     */
+    private boolean append(ByteBuffer frame) {
+        long journalLength = -1;
+        try {
+            journalLength = journalChannel.position();
+            writeFully(journalChannel, frame);
+        } catch (IOException e) {
+            log.error("Failed to write the catalog journal: ", e);
+            if (journalLength >= 0) {
+                try {
+                    journalChannel.truncate(journalLength);
+                    journalChannel.position(journalLength);
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+        fsync.force(journalChannel).exceptionally(cause -> {
+            log.error("Failed to force the catalog journal: ", cause);
+            snapshotNeeded = true;
+            return null;
+        });
+        return true;
+    }
+
+    /**
+     * Writes the catalog to a new snapshot if the journal is long or some records could not be journaled.
+     * Meant to be called periodically in background.
+     */
+    void compactIfNeeded() {
+        if (!snapshotNeeded) {
+            return;
+        }
+        synchronized (journalLock) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the journal still has every change but the failed ones, the compaction is retried on the next call
+                log.error("Failed to write catalog snapshot: ", e);
+            }
+        }
+    }
+
+    private void apply(ByteBuffer body) {
+        byte operation = body.get();
+        Tree tree = getTree(readString(body));
+        tree.version++;
+        switch (operation) {
+            case PUT_FILE -> {
+                String[] names = getNames(readString(body));
+                long size = body.getLong();
+                long modified = body.getLong();
+                byte[] hash = new byte[body.getInt()];
+                body.get(hash);
+                tree.putFile(names, size, modified, hash.length == 0 ? null : hash);
+            }
+            case MAKE_FOLDER -> tree.makeFolder(getNames(readString(body)));
+            case MOVE -> tree.move(getNames(readString(body)), getNames(readString(body)));
+            default -> throw new IllegalArgumentException("Unknown catalog operation: " + operation);
+        }
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        String string = StandardCharsets.UTF_8.decode(body.slice(body.position(), length)).toString();
+        body.position(body.position() + length);
+        return string;
+    }
+
+    /**
+     * Writes the whole catalog to a new snapshot as folder and file records and clears the journal.
+     * If the server crashes before the journal is cleared, its records are applied again over the snapshot,
+     * which is harmless as replaying them gives the same state.
+     * Called with the journal lock held, so the catalog does not change meanwhile, but queries go on.
+     */
+    private void compact() throws IOException {
+        Path tmpPath = snapshotPath.resolveSibling(SNAPSHOT_FILE_NAME + ".tmp");
+        try (FileChannel snapshot = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_LENGTH);
+            for (Map.Entry<String, Tree> entry : trees.entrySet()) {
+                String login = entry.getKey();
+                Tree tree = entry.getValue();
+                writeTree(snapshot, buffer, login, tree);
+            }
+            writeFully(snapshot, buffer.flip());
+            snapshot.force(true);
+        }
+        Files.move(tmpPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the new snapshot has to be durable before the journal is cleared, or a crash may lose both
+        FsyncBatcher.forceFolder(snapshotPath.getParent());
+        journalChannel.truncate(0);
+        journalChannel.position(0);
+        journalChannel.force(true);
+        journalRecords = 0;
+        snapshotNeeded = false;
+        log.info("Catalog snapshot of {} files written", getFileCount());
+    }
+
+    /**
+     * Writes the records of the tree, every folder before the entries in it.
+     * The tree is walked with an explicit stack, so the depth of the folders is not limited by the thread stack.
+     */
+    private static void writeTree(FileChannel snapshot, ByteBuffer buffer, String login, Tree tree) throws IOException {
+        Deque<NodePath> pending = new ArrayDeque<>();
+        pending.push(new NodePath(Tree.ROOT, ""));
+        while (!pending.isEmpty()) {
+            NodePath next = pending.pop();
+            int node = next.node();
+            String path = next.path();
+            Record record;
+            if (tree.isFolder(node)) {
+                record = new Record(MAKE_FOLDER, login).putString(path);
+            } else {
+                record = new Record(PUT_FILE, login).putString(path).putLong(tree.sizes[node]).putLong(tree.modified[node]);
+                record.putBytes(tree.hashes[node] == null ? new byte[0] : tree.hashes[node]);
+            }
+            ByteBuffer frame = record.toFrame();
+            if (frame.remaining() > buffer.remaining()) {
+                writeFully(snapshot, buffer.flip());
+                buffer.clear();
+            }
+            if (frame.remaining() > buffer.remaining()) {
+                writeFully(snapshot, frame);
+            } else {
+                buffer.put(frame);
+            }
+            for (int child = tree.firstChildren[node]; child != Tree.NONE; child = tree.nextSiblings[child]) {
+                pending.push(new NodePath(child, path.isEmpty() ? tree.names[child] : path + "/" + tree.names[child]));
+            }
+        }
+    }
+
+    private record NodePath(int node, String path) {
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Builder of a single record.
+     */
+    private static class Record {
+        private ByteBuffer body = ByteBuffer.allocate(256);
+
+        private Record(byte operation, String login) {
+            body.put(operation);
+            putString(login);
+        }
+
+        private Record putPath(Path path) {
+            return putString(String.join("/", getNames(path)));
+        }
+
+        private Record putString(String string) {
+            return putBytes(string.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private Record putBytes(byte[] bytes) {
+            ensureRemaining(Integer.BYTES + bytes.length);
+            body.putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        private Record putLong(long value) {
+            ensureRemaining(Long.BYTES);
+            body.putLong(value);
+            return this;
+        }
+
+        private void ensureRemaining(int length) {
+            if (body.remaining() < length) {
+                body = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + length))
+                        .put(body.flip());
+            }
+        }
+
+        /**
+         * @return the record with its header.
+         */
+        private ByteBuffer toFrame() {
+            body.flip();
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            return ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.remaining())
+                    .putInt(body.remaining())
+                    .putInt((int) crc.getValue())
+                    .put(body)
+                    .flip();
+        }
+    }
+
+    /**
+     * Files of a single user as a table of nodes, the root folder of the user is the node 0.
+     * Arrays grow by doubling, and slots of removed nodes are reused.
+     */
+    private static class Tree {
+        private static final int ROOT = 0;
+        private static final int NONE = -1;
+        private static final long FOLDER = -1;
+        private static final int INITIAL_CAPACITY = 16;
+
+        private int[] parents = new int[INITIAL_CAPACITY];
+        private int[] firstChildren = new int[INITIAL_CAPACITY];
+        private int[] nextSiblings = new int[INITIAL_CAPACITY];
+        private int[] previousSiblings = new int[INITIAL_CAPACITY];
+        private String[] names = new String[INITIAL_CAPACITY];
+        private long[] sizes = new long[INITIAL_CAPACITY];
+        private long[] modified = new long[INITIAL_CAPACITY];
+        private byte[][] hashes = new byte[INITIAL_CAPACITY][];
+        private int[] freeNodes = new int[INITIAL_CAPACITY];
+        private int freeCount;
+        private int count;
+        private final Map<ChildKey, Integer> index = new HashMap<>();
+        /**
+         * Usage counters are changed under the catalog lock only and read without it, e.g. by quota checks.
+         */
+        private volatile long usedBytes;
+        private volatile long fileCount;
+        /**
+         * Number of changes applied to the tree.
+         */
+        private long version;
+
+        private record ChildKey(int parent, String name) {
+        }
+
+        private Tree() {
+            int root = allocate();
+            parents[root] = NONE;
+            names[root] = "";
+            sizes[root] = FOLDER;
+        }
+
+        private boolean isFolder(int node) {
+            return sizes[node] == FOLDER;
+        }
+
+        private FileMetadata getMetadata(int node) {
+            return isFolder(node)
+                    ? new FileMetadata(names[node], true, 0, 0, null)
+                    : new FileMetadata(names[node], false, sizes[node], modified[node], hashes[node]);
+        }
+
+        /**
+         * @return node by the path or {@link #NONE}.
+         */
+        private int find(String[] path) {
+            int node = ROOT;
+            for (String name : path) {
+                Integer child = index.get(new ChildKey(node, name));
+                if (child == null) {
+                    return NONE;
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        /**
+         * Finds the folder by the first {@code length} names of the path creating missing folders,
+         * files in the way are replaced with folders, as they would be on disk by now.
+         */
+        private int makeFolders(String[] path, int length) {
+            int node = ROOT;
+            for (int i = 0; i < length; i++) {
+                Integer child = index.get(new ChildKey(node, path[i]));
+                if (child != null && !isFolder(child)) {
+                    removeNode(child);
+                    child = null;
+                }
+                if (child == null) {
+                    child = allocate();
+                    sizes[child] = FOLDER;
+                    attach(node, path[i], child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        private void makeFolder(String[] path) {
+            makeFolders(path, path.length);
+        }
+
+        private void putFile(String[] path, long size, long modified, byte[] hash) {
+            if (path.length == 0) {
+                return;
+            }
+            int parent = makeFolders(path, path.length - 1);
+            String name = path[path.length - 1];
+            Integer node = index.get(new ChildKey(parent, name));
+            if (node != null && isFolder(node)) {
+                removeNode(node);
+                node = null;
+            }
+            if (node == null) {
+                node = allocate();
+                attach(parent, name, node);
+                fileCount++;
+            } else {
+                usedBytes -= sizes[node];
+            }
+            sizes[node] = size;
+            this.modified[node] = modified;
+            hashes[node] = hash;
+            usedBytes += size;
+        }
+
+        /**
+         * Copies the known hashes of the other tree to the files of this one which have the same path,
+         * size and modification time.
+         */
+        private void copyHashes(int node, Tree other, int otherNode) {
+            for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+                Integer otherChild = other.index.get(new ChildKey(otherNode, names[child]));
+                if (otherChild == null || isFolder(child) != other.isFolder(otherChild)) {
+                    continue;
+                }
+                if (isFolder(child)) {
+                    copyHashes(child, other, otherChild);
+                } else if (sizes[child] == other.sizes[otherChild] && modified[child] == other.modified[otherChild]) {
+                    hashes[child] = other.hashes[otherChild];
+                }
+            }
+        }
+
+        private void move(String[] source, String[] dest) {
+            int node = find(source);
+            if (node <= ROOT || dest.length == 0) {
+                return;
+            }
+            int parent = makeFolders(dest, dest.length - 1);
+            for (int ancestor = parent; ancestor != NONE; ancestor = parents[ancestor]) {
+                if (ancestor == node) {
+                    // a folder can't be moved into itself
+                    return;
+                }
+            }
+            String name = dest[dest.length - 1];
+            Integer existing = index.get(new ChildKey(parent, name));
+            if (existing != null && existing == node) {
+                return;
+            }
+            if (existing != null) {
+                removeNode(existing);
+            }
+            detach(node);
+            attach(parent, name, node);
+        }
+
+        private void attach(int parent, String name, int node) {
+            parents[node] = parent;
+            names[node] = name;
+            previousSiblings[node] = NONE;
+            nextSiblings[node] = firstChildren[parent];
+            if (firstChildren[parent] != NONE) {
+                previousSiblings[firstChildren[parent]] = node;
+            }
+            firstChildren[parent] = node;
+            index.put(new ChildKey(parent, name), node);
+        }
+
+        private void detach(int node) {
+            int parent = parents[node];
+            index.remove(new ChildKey(parent, names[node]));
+            if (previousSiblings[node] == NONE) {
+                firstChildren[parent] = nextSiblings[node];
+            } else {
+                nextSiblings[previousSiblings[node]] = nextSiblings[node];
+            }
+            if (nextSiblings[node] != NONE) {
+                previousSiblings[nextSiblings[node]] = previousSiblings[node];
+            }
+        }
+
+        /**
+         * Removes the node with everything in it and frees their slots.
+         */
+        private void removeNode(int node) {
+            detach(node);
+            free(node);
+        }
+
+        private void free(int node) {
+            for (int child = firstChildren[node]; child != NONE; ) {
+                int next = nextSiblings[child];
+                index.remove(new ChildKey(node, names[child]));
+                free(child);
+                child = next;
+            }
+            if (!isFolder(node)) {
+                usedBytes -= sizes[node];
+                fileCount--;
+            }
+            names[node] = null;
+            hashes[node] = null;
+            if (freeCount == freeNodes.length) {
+                freeNodes = Arrays.copyOf(freeNodes, freeCount * 2);
+            }
+            freeNodes[freeCount++] = node;
+        }
+
+        private int allocate() {
+            int node;
+            if (freeCount > 0) {
+                node = freeNodes[--freeCount];
+            } else {
+                if (count == parents.length) {
+                    grow();
+                }
+                node = count++;
+            }
+            firstChildren[node] = NONE;
+            nextSiblings[node] = NONE;
+            previousSiblings[node] = NONE;
+            sizes[node] = 0;
+            modified[node] = 0;
+            return node;
+        }
+
+        private void grow() {
+            int capacity = parents.length * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            previousSiblings = Arrays.copyOf(previousSiblings, capacity);
+            names = Arrays.copyOf(names, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            modified = Arrays.copyOf(modified, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package cloud.storage.server.file.manager;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hashes and verifies passwords with salted PBKDF2 on a dedicated bounded executor.
+ * <p>
+ * A slow hash costs tens of milliseconds of CPU by design, so it is never computed on the threads handling requests:
+ * a storm of sign-ins makes only sign-ins slower, while uploads and downloads go on as usual.
+ * When the queue of the executor is full, new tasks fail with {@link RejectedExecutionException} right away.
+ * <p>
+ * Hashes are stored as {@code PBKDF2$iterations$salt$hash} with Base64 salt and hash.
+ */
+class PasswordHasher {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "PBKDF2$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final ThreadPoolExecutor executor;
+    private final SecureRandom random = new SecureRandom();
+    private long tasks;
+    private long queueNanos;
+    private long maxQueueNanos;
+    private long serviceNanos;
+    private long maxServiceNanos;
+    private long rejected;
+
+    /**
+     * @param iterations    number of PBKDF2 iterations of new hashes.
+     * @param threads       number of hashing threads.
+     * @param queueCapacity number of tasks which may wait for a hashing thread.
+     */
+    PasswordHasher(int iterations, int threads, int queueCapacity) {
+        this.iterations = iterations;
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "password-hasher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return future of the hash to store, it fails with {@link RejectedExecutionException} if the queue is full.
+     */
+    CompletableFuture<String> hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return submit(() -> PREFIX + iterations + "$" + Base64.getEncoder().encodeToString(salt) + "$"
+                + Base64.getEncoder().encodeToString(pbkdf2(password, salt, iterations)));
+    }
+
+    /**
+     * Checks the password against the stored hash.
+     * Values stored before hashing was introduced are compared as plain passwords,
+     * they have to be replaced with a hash after a successful check, see {@link #isLegacy(String)}.
+     *
+     * @return future of the result, it fails with {@link RejectedExecutionException} if the queue is full
+     * and with {@link IllegalArgumentException} if the stored hash is malformed.
+     */
+    CompletableFuture<Boolean> verify(String stored, String password) {
+        if (isLegacy(stored)) {
+            return CompletableFuture.completedFuture(MessageDigest.isEqual(stored.getBytes(), password.getBytes()));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Malformed password hash"));
+        }
+        int storedIterations;
+        byte[] salt;
+        byte[] hash;
+        try {
+            storedIterations = Integer.parseInt(parts[1]);
+            salt = Base64.getDecoder().decode(parts[2]);
+            hash = Base64.getDecoder().decode(parts[3]);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Malformed password hash", e));
+        }
+        if (storedIterations <= 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Malformed password hash"));
+        }
+        return submit(() -> MessageDigest.isEqual(hash, pbkdf2(password, salt, storedIterations)));
+    }
+
+    /**
+     * @return true if the value was stored before hashing was introduced and is the plain password.
+     */
+    static boolean isLegacy(String stored) {
+        return !stored.startsWith(PREFIX);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long started = System.nanoTime();
+                try {
+                    return task.get();
+                } finally {
+                    count(started - submitted, System.nanoTime() - started);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                rejected++;
+            }
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private synchronized void count(long taskQueueNanos, long taskServiceNanos) {
+        tasks++;
+        queueNanos += taskQueueNanos;
+        maxQueueNanos = Math.max(maxQueueNanos, taskQueueNanos);
+        serviceNanos += taskServiceNanos;
+        maxServiceNanos = Math.max(maxServiceNanos, taskServiceNanos);
+    }
+
+    /**
+     * Reports queue time and service time of the tasks since the previous report and starts counting anew.
+     *
+     * @return report or null if there were no tasks.
+     */
+    synchronized String getReport() {
+        if (tasks == 0 && rejected == 0) {
+            return null;
+        }
+        String report = String.format("Password hashing: %d tasks, %d rejected, queue depth %d, "
+                        + "queue time avg %d ms max %d ms, service time avg %d ms max %d ms",
+                tasks, rejected, executor.getQueue().size(),
+                tasks == 0 ? 0 : queueNanos / tasks / 1_000_000, maxQueueNanos / 1_000_000,
+                tasks == 0 ? 0 : serviceNanos / tasks / 1_000_000, maxServiceNanos / 1_000_000);
+        tasks = 0;
+        queueNanos = 0;
+        maxQueueNanos = 0;
+        serviceNanos = 0;
+        maxServiceNanos = 0;
+        rejected = 0;
+        return report;
+    }
+}
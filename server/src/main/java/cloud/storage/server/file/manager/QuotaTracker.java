@@ -0,0 +1,125 @@
+package cloud.storage.server.file.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-user storage limit check which costs O(1) per request.
+ * <p>
+ * The bytes a user stores come from the counters of the {@link MetadataCatalog},
+ * which are updated with every saved, moved and removed file and are read without locking the catalog.
+ * Uploads in progress reserve their declared size up front, so concurrent uploads can't overshoot the limit together,
+ * and the reservation is released when the upload is committed, and counted by the catalog, or stopped.
+ * Synchronizations don't know the size of the new version in advance, so they grow their reservation as it is written.
+ */
+class QuotaTracker {
+    /**
+     * Limit meaning that users may store any number of bytes.
+     */
+    static final long UNLIMITED = 0;
+
+    private final MetadataCatalog catalog;
+    private final long limit;
+    private final Map<String, Long> reservedBytes = new HashMap<>();
+
+    /**
+     * Bytes reserved for a single upload or synchronization.
+     */
+    class Reservation {
+        private final String login;
+        private long bytes;
+        private boolean released;
+
+        private Reservation(String login, long bytes) {
+            this.login = login;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Reserves more bytes if the reservation is smaller than the number.
+         *
+         * @return false if the user does not have that much space left or the reservation is released.
+         */
+        boolean growTo(long total) {
+            synchronized (QuotaTracker.this) {
+                if (released) {
+                    return false;
+                }
+                if (limit == UNLIMITED || total <= bytes) {
+                    return true;
+                }
+                if (total - bytes > getAvailableBytes(login)) {
+                    return false;
+                }
+                reservedBytes.merge(login, total - bytes, Long::sum);
+                bytes = total;
+                return true;
+            }
+        }
+
+        /**
+         * Returns the bytes to the user, further calls do nothing.
+         */
+        void release() {
+            synchronized (QuotaTracker.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (bytes > 0) {
+                    reservedBytes.merge(login, -bytes, (reserved, freed) -> reserved + freed == 0 ? null : reserved + freed);
+                }
+                bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * @param limit number of bytes every user may store or {@link #UNLIMITED}.
+     */
+    QuotaTracker(MetadataCatalog catalog, long limit) {
+        this.catalog = catalog;
+        this.limit = limit;
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Reserves space for a file of the size.
+     *
+     * @return reservation or null if the user does not have that much space left.
+     */
+    synchronized Reservation reserve(String login, long bytes) {
+        if (limit == UNLIMITED) {
+            return new Reservation(login, 0);
+        }
+        if (bytes > getAvailableBytes(login)) {
+            return null;
+        }
+        if (bytes > 0) {
+            reservedBytes.merge(login, bytes, Long::sum);
+        }
+        return new Reservation(login, bytes);
+    }
+
+    /**
+     * @return number of bytes the user may still add, {@link Long#MAX_VALUE} if there is no limit.
+     */
+    synchronized long getAvailableBytes(String login) {
+        if (limit == UNLIMITED) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, limit - catalog.getUsedBytes(login) - reservedBytes.getOrDefault(login, 0L));
+    }
+
+    /**
+     * @return message telling the user how much space is used.
+     */
+    synchronized String getExceededMessage(String login) {
+        long reserved = reservedBytes.getOrDefault(login, 0L);
+        return "Not enough space in your storage: " + catalog.getUsedBytes(login) + " of " + limit + " bytes are used"
+                + (reserved > 0 ? " and " + reserved + " are reserved by uploads in progress." : ".");
+    }
+}
@@ -0,0 +1,92 @@
+package cloud.storage.server.file.manager;
+
+import cloud.storage.util.Pair;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of active sessions: which user every channel address is signed in as.
+ * A user has a single session, other channels of the same client may be attached to it.
+ * <p>
+ * Lookups are lock-free reads of concurrent maps. Updates touching both maps are made under a lock
+ * picked by the login from a fixed set of stripes, so sign-ins of different users rarely contend.
+ */
+class SessionRegistry {
+    private static final int STRIPES = 64;
+    private final Map<String, SocketAddress> sessionByUser = new ConcurrentHashMap<>();
+    private final Map<SocketAddress, String> userBySession = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[STRIPES];
+
+    SessionRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object getLock(String login) {
+        return locks[Math.floorMod(login.hashCode(), STRIPES)];
+    }
+
+    /**
+     * @return login of the user the address is signed in as or null if there is no session.
+     */
+    String getUser(SocketAddress address) {
+        return userBySession.get(address);
+    }
+
+    boolean hasSession(SocketAddress address) {
+        return userBySession.containsKey(address);
+    }
+
+    /**
+     * Starts a new session of the user for the address.
+     */
+    Pair<Boolean, String> start(SocketAddress address, String login) {
+        synchronized (getLock(login)) {
+            if (sessionByUser.containsKey(login)) {
+                return new Pair<>(false, "This user already has an active session.");
+            }
+            if (userBySession.putIfAbsent(address, login) != null) {
+                return new Pair<>(false, "This address already has an active session.");
+            }
+            sessionByUser.put(login, address);
+        }
+        return new Pair<>(true, null);
+    }
+
+    /**
+     * Attaches the address to the active session of the user.
+     */
+    Pair<Boolean, String> attach(SocketAddress address, String login) {
+        synchronized (getLock(login)) {
+            if (!sessionByUser.containsKey(login)) {
+                return new Pair<>(false, "The session the token was created for has ended.");
+            }
+            if (userBySession.putIfAbsent(address, login) != null) {
+                return new Pair<>(false, "There is an active session with such address already.");
+            }
+        }
+        return new Pair<>(true, null);
+    }
+
+    /**
+     * Ends the session of the address. Attached addresses end only their own session.
+     *
+     * @return login of the user the address was signed in as or null if there was no session.
+     */
+    String end(SocketAddress address) {
+        String login = userBySession.get(address);
+        if (login == null) {
+            return null;
+        }
+        synchronized (getLock(login)) {
+            if (!userBySession.remove(address, login)) {
+                return null;
+            }
+            sessionByUser.remove(login, address);
+        }
+        return login;
+    }
+}
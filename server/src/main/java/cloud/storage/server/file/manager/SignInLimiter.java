@@ -0,0 +1,135 @@
+package cloud.storage.server.file.manager;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits failed sign-in attempts per IP address with token buckets.
+ * <p>
+ * Every address may fail {@code attempts} times in a row, then it has to wait until the bucket refills:
+ * one attempt is given back every {@code period / attempts}.
+ * Addresses are tracked regardless of the port, so opening new connections does not reset the limit.
+ * <p>
+ * Buckets are kept in a fixed number of access-ordered maps of bounded size, each guarded by its own lock.
+ * Refilled buckets are dropped from the head of the map on the next update and, when the map is full,
+ * the least recently failed address is evicted, so memory stays fixed and every attempt does O(1) work
+ * even during a flood from many addresses.
+ */
+class SignInLimiter {
+    private static final int STRIPES = 16;
+    private final int attempts;
+    private final long nanosPerAttempt;
+    private final int maxAddressesPerStripe;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param attempts     number of failed attempts allowed in a row.
+     * @param period       time it takes to get all the attempts back.
+     * @param maxAddresses maximum number of tracked addresses.
+     */
+    SignInLimiter(int attempts, Duration period, int maxAddresses) {
+        this.attempts = attempts;
+        this.nanosPerAttempt = period.toNanos() / attempts;
+        this.maxAddressesPerStripe = Math.max(1, maxAddresses / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static Object getKey(SocketAddress address) {
+        if (address instanceof InetSocketAddress inetAddress && inetAddress.getAddress() != null) {
+            return inetAddress.getAddress();
+        }
+        return address;
+    }
+
+    private Stripe getStripe(Object key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+
+    /**
+     * @return time the address has to wait before the next sign-in attempt, zero if it may try now.
+     */
+    Duration getWaitTime(SocketAddress address) {
+        Object key = getKey(address);
+        Stripe stripe = getStripe(key);
+        long now = System.nanoTime();
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket == null) {
+                return Duration.ZERO;
+            }
+            bucket.refill(now);
+            return bucket.failures < attempts
+                    ? Duration.ZERO
+                    : Duration.ofNanos(nanosPerAttempt - (now - bucket.updated));
+        }
+    }
+
+    /**
+     * Takes an attempt from the bucket of the address.
+     */
+    void registerFailure(SocketAddress address) {
+        Object key = getKey(address);
+        Stripe stripe = getStripe(key);
+        long now = System.nanoTime();
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.computeIfAbsent(key, ignored -> new Bucket(now));
+            bucket.refill(now);
+            bucket.failures = Math.min(bucket.failures + 1, attempts);
+            stripe.removeRefilled(now);
+        }
+    }
+
+    private class Stripe {
+        private final LinkedHashMap<Object, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Bucket> eldest) {
+                return size() > maxAddressesPerStripe;
+            }
+        };
+
+        /**
+         * Drops buckets which have refilled completely from the least recently used end of the map.
+         * Every dropped bucket was added once, so the work is O(1) per attempt on average.
+         */
+        private void removeRefilled(long now) {
+            Iterator<Bucket> iterator = buckets.values().iterator();
+            while (iterator.hasNext()) {
+                Bucket bucket = iterator.next();
+                bucket.refill(now);
+                if (bucket.failures > 0) {
+                    return;
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Number of attempts taken from the bucket, which are given back one by one over time.
+     */
+    private class Bucket {
+        private int failures;
+        private long updated;
+
+        private Bucket(long now) {
+            this.updated = now;
+        }
+
+        private void refill(long now) {
+            long refilled = (now - updated) / nanosPerAttempt;
+            if (refilled >= failures) {
+                failures = 0;
+                updated = now;
+            } else if (refilled > 0) {
+                failures -= (int) refilled;
+                updated += refilled * nanosPerAttempt;
+            }
+        }
+    }
+}
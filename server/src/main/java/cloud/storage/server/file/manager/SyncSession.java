@@ -0,0 +1,211 @@
+package cloud.storage.server.file.manager;
+
+import cloud.storage.nio.BlockSignatures;
+import cloud.storage.nio.Delta;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+/**
+ * State of a single delta synchronization of an existing file.
+ * <p>
+ * The new version is rebuilt from {@link Delta} instructions in a file in the staging folder,
+ * copying unchanged blocks from the old version, which is kept open, so the instructions refer
+ * to the content the signatures were computed of. On commit the new version replaces the old one
+ * with an atomic rename, so readers see either the old or the new version and never a mix of them.
+ * The rename is done only if the file by the path is still the one which was signed,
+ * so a file moved or uploaded there meanwhile is not overwritten.
+ * The staging folder is on the same file system as the user folders, and the files left there by a crash
+ * are removed at the next start.
+ * <p>
+ * The new version may take the size of the old one and the bytes reserved for the user,
+ * the reservation grows as the new version outgrows the old one.
+ */
+class SyncSession {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".sync";
+
+    private final Path target;
+    private final BasicFileAttributes signedAttributes;
+    private final Path tempPath;
+    private final FileChannel source;
+    private final BlockSignatures signatures;
+    private final FileChannel channel;
+    private final MessageDigest digest = Delta.newDigest();
+    private final ByteBuffer copyBuffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+    private final QuotaTracker.Reservation reservation;
+    private long written;
+
+    private SyncSession(Path target, BasicFileAttributes signedAttributes, Path tempPath, FileChannel source,
+                        BlockSignatures signatures, FileChannel channel, QuotaTracker.Reservation reservation) {
+        this.target = target;
+        this.signedAttributes = signedAttributes;
+        this.tempPath = tempPath;
+        this.source = source;
+        this.signatures = signatures;
+        this.channel = channel;
+        this.reservation = reservation;
+    }
+
+    /**
+     * Signs the file and creates an empty file for its new version in the staging folder.
+     *
+     * @param target        existing file to synchronize.
+     * @param stagingFolder folder for new versions.
+     * @param reservation   bytes reserved for the growth of the file, released when the session is discarded.
+     */
+    static SyncSession create(Path target, Path stagingFolder, QuotaTracker.Reservation reservation) throws IOException {
+        // read before the file is opened, so if it is replaced in between, the commit sees a changed file
+        BasicFileAttributes signedAttributes = Files.readAttributes(target, BasicFileAttributes.class);
+        FileChannel source = FileChannel.open(target, StandardOpenOption.READ);
+        try {
+            BlockSignatures signatures = BlockSignatures.compute(source, source.size());
+            Path tempPath = stagingFolder.resolve(UUID.randomUUID() + TEMP_SUFFIX);
+            FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return new SyncSession(target, signedAttributes, tempPath, source, signatures, channel, reservation);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    static boolean isTempFile(Path path) {
+        return path.getFileName().toString().endsWith(TEMP_SUFFIX);
+    }
+
+    Path getTarget() {
+        return target;
+    }
+
+    /**
+     * @return file of the new version in the staging folder.
+     */
+    Path getTempPath() {
+        return tempPath;
+    }
+
+    BlockSignatures getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * @return bytes reserved for the new version, to release when the catalog has counted it.
+     */
+    QuotaTracker.Reservation getReservation() {
+        return reservation;
+    }
+
+    /**
+     * Appends the result of the instructions to the new version.
+     *
+     * @throws IllegalArgumentException if the instructions are malformed or the new version gets too big.
+     */
+    synchronized void apply(ByteBuffer instructions) throws IOException {
+        try {
+            while (instructions.hasRemaining()) {
+                byte type = instructions.get();
+                switch (type) {
+                    case Delta.COPY -> copy(instructions.getInt(), instructions.getInt());
+                    case Delta.DATA -> {
+                        int length = instructions.getInt();
+                        if (length < 0 || length > instructions.remaining()) {
+                            throw new IllegalArgumentException("Invalid data length: " + length);
+                        }
+                        ByteBuffer data = instructions.slice(instructions.position(), length);
+                        instructions.position(instructions.position() + length);
+                        write(data);
+                    }
+                    default -> throw new IllegalArgumentException("Unknown delta instruction: " + type);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Delta instruction is truncated", e);
+        }
+    }
+
+    private void copy(int firstBlock, int count) throws IOException {
+        if (firstBlock < 0 || count <= 0 || (long) firstBlock + count > signatures.getBlockCount()) {
+            throw new IllegalArgumentException("Invalid blocks: " + firstBlock + "+" + count);
+        }
+        long position = (long) firstBlock * signatures.getBlockSize();
+        long end = Math.min(position + (long) count * signatures.getBlockSize(), signatures.getSize());
+        while (position < end) {
+            copyBuffer.clear().limit((int) Math.min(COPY_BUFFER_SIZE, end - position));
+            int read = source.read(copyBuffer, position);
+            if (read < 0) {
+                throw new EOFException("File was truncated while synchronizing");
+            }
+            position += read;
+            write(copyBuffer.flip());
+        }
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        if (!reservation.growTo(written + data.remaining() - signatures.getSize())) {
+            throw new IllegalArgumentException("Not enough space in your storage.");
+        }
+        digest.update(data.duplicate());
+        while (data.hasRemaining()) {
+            written += channel.write(data, written);
+        }
+    }
+
+    /**
+     * Replaces the old version with the new one if the new one is what the client has.
+     * The new version is forced to disk before the rename and the folder of the file after it.
+     *
+     * @param size size of the new version.
+     * @param hash SHA-256 of the new version.
+     * @return false if the rebuilt file differs from the client one or the file was changed since it was signed,
+     * the session is discarded then.
+     */
+    synchronized boolean commit(long size, byte[] hash) throws IOException {
+        if (written != size || !MessageDigest.isEqual(digest.digest(), hash)) {
+            discard();
+            return false;
+        }
+        channel.force(true);
+        // checked right before the rename, after the slow force
+        if (!ChunkStore.isUnchanged(target, signedAttributes)) {
+            discard();
+            return false;
+        }
+        close();
+        Files.move(tempPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FsyncBatcher.forceFolder(target.getParent());
+        return true;
+    }
+
+    /**
+     * Closes the files, removes the new version and releases the reservation.
+     */
+    synchronized void discard() {
+        close();
+        reservation.release();
+        try {
+            Files.deleteIfExists(tempPath);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            source.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package cloud.storage.server.file.manager;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * State of a single resumable upload.
+ * <p>
+ * Bytes are written to a partial file in the staging folder, the target file appears only on commit
+ * with an atomic rename after the partial file is forced to disk.
+ * Next to the partial file there is a metadata file with the target path, the declared size and the confirmed offset: the number of bytes which are known to be on disk.
+ * The offset is confirmed every {@link #CHECKPOINT_BYTES} bytes and when the upload is suspended:
+ * the metadata file is forced to disk before it replaces the previous one and the staging folder after that,
+ * so the upload may be continued from it after the client reconnects or even after the server restarts.
+ * <p>
+ * The session is attached to at most one upload request at a time.
+ * <p>
+ * The client may skip chunks the server has in its {@link ChunkStore}:
+ * when a chunk arrives after a gap or the upload is committed, the gap is filled with the known chunks.
+ */
+class UploadSession {
+    private static final long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+    private static final Runnable NO_RELEASE = () -> {
+    };
+
+    private final Path root;
+    private final Path target;
+    private final Path partPath;
+    private final Path metaPath;
+    private final long size;
+    private FileChannel channel;
+    private NavigableMap<Long, ChunkStore.ChunkLocation> knownChunks = Collections.emptyNavigableMap();
+    private Runnable knownChunksRelease = NO_RELEASE;
+    private long written;
+    private long confirmed;
+    private volatile Instant lastActivity = Instant.now();
+
+    private UploadSession(Path root, Path target, Path partPath, Path metaPath, long size, long confirmed) {
+        this.root = root;
+        this.target = target;
+        this.partPath = partPath;
+        this.metaPath = metaPath;
+        this.size = size;
+        this.confirmed = confirmed;
+        this.written = confirmed;
+    }
+
+    /**
+     * Creates a new session with an empty partial file in the staging folder.
+     *
+     * @param root          folder the target path is stored relative to.
+     * @param stagingFolder folder for partial files.
+     * @param target        path of the file to create on commit.
+     * @param size          declared size of the file.
+     */
+    static UploadSession create(Path root, Path stagingFolder, Path target, long size) throws IOException {
+        String name = UUID.randomUUID().toString();
+        UploadSession session = new UploadSession(root, target, stagingFolder.resolve(name + PART_SUFFIX),
+                stagingFolder.resolve(name + META_SUFFIX), size, 0);
+        Files.createFile(session.partPath);
+        session.writeMeta();
+        return session;
+    }
+
+    /**
+     * Restores the session from its metadata file, e.g. after the server restart.
+     *
+     * @param metaPath path of the metadata file in the staging folder.
+     * @param root     folder the target path is stored relative to.
+     */
+    static UploadSession load(Path metaPath, Path root) throws IOException {
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(metaPath)) {
+            meta.load(in);
+        }
+        String fileName = metaPath.getFileName().toString();
+        Path partPath = metaPath.resolveSibling(fileName.substring(0, fileName.length() - META_SUFFIX.length()) + PART_SUFFIX);
+        try {
+            UploadSession session = new UploadSession(root, root.resolve(meta.getProperty("target")).normalize(),
+                    partPath, metaPath, Long.parseLong(meta.getProperty("size")),
+                    Long.parseLong(meta.getProperty("confirmed")));
+            session.lastActivity = Files.getLastModifiedTime(metaPath).toInstant();
+            return session;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed upload metadata " + metaPath, e);
+        }
+    }
+
+    static boolean isMetaFile(Path path) {
+        return path.getFileName().toString().endsWith(META_SUFFIX);
+    }
+
+    /**
+     * @return files of the session in the staging folder.
+     */
+    List<Path> getFiles() {
+        return List.of(partPath, metaPath);
+    }
+
+    Path getTarget() {
+        return target;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    Instant getLastActivity() {
+        return lastActivity;
+    }
+
+    synchronized boolean isAttached() {
+        return channel != null;
+    }
+
+    /**
+     * @return true if all the bytes are received or known.
+     */
+    synchronized boolean isComplete() {
+        long position = written;
+        while (position < size) {
+            ChunkStore.ChunkLocation location = knownChunks.get(position);
+            if (location == null) {
+                return false;
+            }
+            position += location.length();
+        }
+        return true;
+    }
+
+    /**
+     * Sets the chunks the client is not going to send for the current attachment.
+     *
+     * @param knownChunks locations of the chunks in the store by their offsets in the file.
+     * @param release     unpins the chunks in the store, called when they are copied or not needed anymore.
+     */
+    synchronized void setKnownChunks(NavigableMap<Long, ChunkStore.ChunkLocation> knownChunks, Runnable release) {
+        releaseKnownChunks();
+        this.knownChunks = knownChunks;
+        this.knownChunksRelease = release;
+    }
+
+    private void releaseKnownChunks() {
+        knownChunks = Collections.emptyNavigableMap();
+        Runnable release = knownChunksRelease;
+        knownChunksRelease = NO_RELEASE;
+        release.run();
+    }
+
+    /**
+     * Opens the partial file to continue the upload from the confirmed offset.
+     * Bytes after the confirmed offset may be lost on crash, so they are dropped.
+     *
+     * @return offset to continue the upload from.
+     */
+    synchronized long attach() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Upload is attached already");
+        }
+        channel = FileChannel.open(partPath, StandardOpenOption.WRITE);
+        try {
+            channel.truncate(confirmed);
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+        written = confirmed;
+        releaseKnownChunks();
+        lastActivity = Instant.now();
+        return confirmed;
+    }
+
+    /**
+     * Writes the chunk after the bytes already received.
+     * The readable bytes go from the buffer straight to the file channel, with no copies on the heap
+     * when the buffer is direct, as the inbound buffers of the channel are.
+     *
+     * @param offset position of the chunk in the file, must be equal to the number of bytes already written.
+     * @param chunk  data to write, its reader index is not changed.
+     */
+    synchronized void write(long offset, ByteBuf chunk) throws IOException {
+        if (channel == null) {
+            throw new IOException("Upload is not attached");
+        }
+        fillKnownChunks(offset);
+        if (offset != written) {
+            throw new IOException("Unexpected chunk offset " + offset + ", expected " + written);
+        }
+        if (written + chunk.readableBytes() > size) {
+            throw new IOException("Chunk exceeds the declared file size " + size);
+        }
+        int index = chunk.readerIndex();
+        int end = chunk.writerIndex();
+        while (index < end) {
+            int writtenBytes = chunk.getBytes(index, channel, written, end - index);
+            index += writtenBytes;
+            written += writtenBytes;
+        }
+        lastActivity = Instant.now();
+        if (written - confirmed >= CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Confirms everything written so far and closes the partial file, so the upload may be continued later.
+     */
+    synchronized void suspend() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (IOException ignored) {
+            // the previous confirmed offset stays valid
+        }
+        releaseKnownChunks();
+        closeChannel();
+        lastActivity = Instant.now();
+    }
+
+    /**
+     * Makes the uploaded file visible by the target path with an atomic rename.
+     * The partial file is forced to disk before the rename, and the folders the rename changed after it,
+     * so after a crash there is either the complete file by the target path or none.
+     *
+     * @param fsync batcher the files and the folders are forced with.
+     * @return future which completes when the file is durable by the target path,
+     * it fails with {@link FileAlreadyExistsException} if there is a file by the target path already.
+     */
+    synchronized CompletableFuture<Void> commit(FsyncBatcher fsync) throws IOException {
+        if (channel == null) {
+            throw new IOException("Upload is not attached");
+        }
+        try {
+            fillKnownChunks(size);
+        } finally {
+            releaseKnownChunks();
+        }
+        return fsync.force(channel).thenCompose(ignored -> {
+            try {
+                return fsync.forceFolders(publish());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    /**
+     * Renames the forced partial file to the target path.
+     *
+     * @return folders which got new entries: the parent of the target and the folders created for it.
+     */
+    private synchronized List<Path> publish() throws IOException {
+        closeChannel();
+        if (Files.exists(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        List<Path> changedFolders = new ArrayList<>();
+        Path folder = target.getParent();
+        while (!Files.isDirectory(folder)) {
+            changedFolders.add(folder);
+            folder = folder.getParent();
+        }
+        changedFolders.add(folder);
+        Files.createDirectories(target.getParent());
+        Files.move(partPath, target, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(metaPath);
+        return changedFolders;
+    }
+
+    /**
+     * Closes the partial file and removes everything written so far.
+     */
+    synchronized void discard() {
+        releaseKnownChunks();
+        closeChannel();
+        try {
+            Files.deleteIfExists(metaPath);
+            Files.deleteIfExists(partPath);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Copies known chunks from the store to the partial file until the offset or the first unknown chunk.
+     */
+    private void fillKnownChunks(long offset) throws IOException {
+        while (written < offset) {
+            ChunkStore.ChunkLocation location = knownChunks.get(written);
+            if (location == null) {
+                return;
+            }
+            try (FileChannel object = FileChannel.open(location.object(), StandardOpenOption.READ)) {
+                object.position(location.offset());
+                long copied = 0;
+                while (copied < location.length()) {
+                    long transferred = channel.transferFrom(object, written + copied, location.length() - copied);
+                    if (transferred <= 0) {
+                        throw new IOException("Stored chunk of " + location.object() + " is truncated");
+                    }
+                    copied += transferred;
+                }
+            }
+            written += location.length();
+            if (written - confirmed >= CHECKPOINT_BYTES) {
+                checkpoint();
+            }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        channel.force(false);
+        confirmed = written;
+        writeMeta();
+    }
+
+    private void writeMeta() throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("target", root.relativize(target).toString());
+        meta.setProperty("size", Long.toString(size));
+        meta.setProperty("confirmed", Long.toString(confirmed));
+        Path tmpPath = metaPath.resolveSibling(metaPath.getFileName() + ".tmp");
+        try (FileChannel metaChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = Channels.newOutputStream(metaChannel);
+            meta.store(out, null);
+            out.flush();
+            metaChannel.force(true);
+        }
+        Files.move(tmpPath, metaPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FsyncBatcher.forceFolder(metaPath.getParent());
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+}
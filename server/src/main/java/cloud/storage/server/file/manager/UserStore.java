@@ -0,0 +1,247 @@
+package cloud.storage.server.file.manager;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent registry of users.
+ * <p>
+ * Every new user is appended to a log file, which is forced to disk before the sign-up is confirmed.
+ * When the log grows long, all users are written to a compacted snapshot, which replaces the previous one
+ * with an atomic rename, and the log is cleared.
+ * At startup the snapshot and the log are memory-mapped and parsed in one pass.
+ * <p>
+ * Both files consist of records {@code int length | int crc32 | int login length | login | password}.
+ * A torn record at the end of the log, left by a crash in the middle of an append, is dropped.
+ */
+@Slf4j
+class UserStore {
+    private static final String SNAPSHOT_FILE_NAME = "users.snapshot";
+    private static final String LOG_FILE_NAME = "users.log";
+    private static final int SNAPSHOT_THRESHOLD = 10_000;
+    private static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+    private static final int WRITE_BUFFER_LENGTH = 1024 * 1024;
+    private static final int ESTIMATED_RECORD_LENGTH = 64;
+
+    private final Map<String, String> users;
+    private final Path snapshotPath;
+    private final Path logPath;
+    private final FileChannel logChannel;
+    private int logRecords;
+
+    /**
+     * Loads users from the folder, the files are created on the first sign-up.
+     *
+     * @throws IOException if the files can't be read or the snapshot is corrupted.
+     */
+    UserStore(Path folder) throws IOException {
+        Files.createDirectories(folder);
+        snapshotPath = folder.resolve(SNAPSHOT_FILE_NAME);
+        logPath = folder.resolve(LOG_FILE_NAME);
+        long snapshotLength = Files.exists(snapshotPath) ? Files.size(snapshotPath) : 0;
+        long estimatedUsers = (snapshotLength + (Files.exists(logPath) ? Files.size(logPath) : 0)) / ESTIMATED_RECORD_LENGTH;
+        // the map is sized up front, so it is not rehashed over and over while a large store is loaded
+        users = new ConcurrentHashMap<>((int) Math.min(estimatedUsers, Integer.MAX_VALUE / 2) + 16);
+        if (load(snapshotPath) != snapshotLength) {
+            throw new IOException("User snapshot " + snapshotPath + " is corrupted");
+        }
+        long logLength = load(logPath);
+        logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (logChannel.size() > logLength) {
+            log.warn("Torn record at the end of the user log is dropped");
+            logChannel.truncate(logLength);
+        }
+        logChannel.position(logLength);
+        if (logRecords >= SNAPSHOT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Reads records of the file into the map.
+     *
+     * @return length of the valid records at the beginning of the file.
+     */
+    private long load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("User file " + path + " is too large");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            // every record body is copied into the same array, strings are decoded from it
+            byte[] body = new byte[256];
+            while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+                int recordStart = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < Integer.BYTES || length > buffer.remaining()) {
+                    return recordStart;
+                }
+                if (length > body.length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                buffer.get(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return recordStart;
+                }
+                int loginLength = ByteBuffer.wrap(body).getInt();
+                if (loginLength < 0 || loginLength > length - Integer.BYTES) {
+                    return recordStart;
+                }
+                int passwordStart = Integer.BYTES + loginLength;
+                users.put(new String(body, Integer.BYTES, loginLength, StandardCharsets.UTF_8),
+                        new String(body, passwordStart, length - passwordStart, StandardCharsets.UTF_8));
+                if (path.equals(logPath)) {
+                    logRecords++;
+                }
+            }
+            return buffer.position();
+        }
+    }
+
+    private static ByteBuffer encode(String login, String password) {
+        byte[] loginBytes = login.getBytes(StandardCharsets.UTF_8);
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        int length = Integer.BYTES + loginBytes.length + passwordBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length)
+                .putInt(length)
+                .putInt(0)
+                .putInt(loginBytes.length)
+                .put(loginBytes)
+                .put(passwordBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.flip();
+    }
+
+    boolean contains(String login) {
+        return users.containsKey(login);
+    }
+
+    /**
+     * @return password of the user or null if there is no such user.
+     */
+    String getPassword(String login) {
+        return users.get(login);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * Saves a new user.
+     *
+     * @return false if there is such user already.
+     * @throws IOException if the user can't be saved, the store is left as it was.
+     */
+    synchronized boolean add(String login, String password) throws IOException {
+        if (users.containsKey(login)) {
+            return false;
+        }
+        append(login, password);
+        return true;
+    }
+
+    /**
+     * Forces the record of the user to the log and puts it to the map, later records of a user replace earlier ones.
+     */
+    private void append(String login, String password) throws IOException {
+        ByteBuffer record = encode(login, password);
+        long logLength = logChannel.position();
+        try {
+            while (record.hasRemaining()) {
+                logChannel.write(record);
+            }
+            logChannel.force(false);
+        } catch (IOException e) {
+            logChannel.truncate(logLength);
+            logChannel.position(logLength);
+            throw e;
+        }
+        users.put(login, password);
+        if (++logRecords >= SNAPSHOT_THRESHOLD) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the log still has every user, the compaction is retried with the next record
+                log.error("Failed to write user snapshot: ", e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the password of the user, e.g. a plain password stored before hashing was introduced with its hash.
+     * The previous value is dropped from the files at the next compaction.
+     *
+     * @param expected password the user has to have now.
+     * @return false if the user has another password or there is no such user.
+     * @throws IOException if the password can't be saved, the store is left as it was.
+     */
+    synchronized boolean replace(String login, String expected, String password) throws IOException {
+        if (!expected.equals(users.get(login))) {
+            return false;
+        }
+        append(login, password);
+        return true;
+    }
+
+    /**
+     * Writes all users to a new snapshot and clears the log.
+     * If the server crashes before the log is cleared, its records are loaded again over the snapshot, which is harmless.
+     */
+    private void compact() throws IOException {
+        Path tmpPath = snapshotPath.resolveSibling(SNAPSHOT_FILE_NAME + ".tmp");
+        try (FileChannel snapshot = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_LENGTH);
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                ByteBuffer record = encode(user.getKey(), user.getValue());
+                if (record.remaining() > buffer.remaining()) {
+                    writeFully(snapshot, buffer.flip());
+                    buffer.clear();
+                }
+                if (record.remaining() > buffer.remaining()) {
+                    writeFully(snapshot, record);
+                } else {
+                    buffer.put(record);
+                }
+            }
+            writeFully(snapshot, buffer.flip());
+            snapshot.force(true);
+        }
+        Files.move(tmpPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the new snapshot has to be durable before the log is cleared, or a crash may bring back the old one alone
+        FsyncBatcher.forceFolder(snapshotPath.getParent());
+        logChannel.truncate(0);
+        logChannel.position(0);
+        logChannel.force(true);
+        logRecords = 0;
+        log.info("User snapshot of {} users written", users.size());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}